@@ -0,0 +1,565 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.apache.http.client.HttpResponseException;
+
+/**
+ * The API keys of the players making requests, so we don't have to ask the
+ * player service every time.
+ * <p>
+ * Keys are kept for {@link #DEFAULT_TTL_MS a day}. A key that is used when it
+ * is nearly that old is reloaded in the background, so busy players never
+ * wait for a reload. Requests for a key that isn't cached wait for one load
+ * between them, however many arrive together. Keys are loaded without
+ * blocking, see {@link #getAsync(String)}, so request threads need not wait
+ * for the player service either.
+ * </p>
+ * <p>
+ * Ids the player service doesn't know, or couldn't tell us about, are
+ * remembered for {@link #DEFAULT_NEGATIVE_TTL_MS a few seconds}, so requests
+ * that will be refused anyway are refused from here. Beyond that each id only
+ * gets so many lookups, see {@link LookupLimiter}, so a client can't use us to
+ * flood the player service.
+ * </p>
+ * <p>
+ * An expired key is kept for {@link #DEFAULT_STALE_MS another day}. It isn't
+ * used while the player service can be asked, but if the player service
+ * doesn't answer, because it is down or too busy (see
+ * {@link PlayerClient.UnavailableException}), it is used rather than turning
+ * the player away.
+ * </p>
+ * <p>
+ * At most {@code maxSize} keys are kept. When there are more, the least
+ * recently used are dropped in a batch, so the cost of finding them is
+ * spread across many inserts, and lookups never take a lock.
+ * </p>
+ */
+@ApplicationScoped
+public class ApiKeyCache {
+
+	public static final int DEFAULT_MAX_SIZE = 10000;
+	public static final long DEFAULT_TTL_MS = TimeUnit.DAYS.toMillis(1);
+	/** Default time before expiry that a used key is reloaded in the background */
+	public static final long DEFAULT_REFRESH_AHEAD_MS = TimeUnit.HOURS.toMillis(1);
+	/** Default time an id without a key is remembered for */
+	public static final long DEFAULT_NEGATIVE_TTL_MS = TimeUnit.SECONDS.toMillis(10);
+	/** Default time an expired key is kept, for when the player service can't be asked */
+	public static final long DEFAULT_STALE_MS = TimeUnit.DAYS.toMillis(1);
+
+	/**
+	 * Loads a key that isn't cached.
+	 */
+	public interface Loader {
+		/**
+		 * @return the key, or null if there isn't one, once it has been
+		 *         loaded. It fails with an IOException if the load did.
+		 */
+		CompletableFuture<String> load(String id);
+	}
+
+	/** A cached key */
+	private static final class Entry {
+		private final String key;
+		private final long loadedAt;
+		/** when it was last used, in ticks of the cache's access counter */
+		private volatile long lastUsed;
+		private final AtomicBoolean refreshing = new AtomicBoolean();
+
+		Entry(String key, long loadedAt, long lastUsed) {
+			this.key = key;
+			this.loadedAt = loadedAt;
+			this.lastUsed = lastUsed;
+		}
+	}
+
+	/** An id we recently failed to get a key for */
+	private static final class Missing {
+		private final long until;
+		/** true if the lookup failed, rather than finding there was no key */
+		private final boolean failed;
+
+		Missing(long until, boolean failed) {
+			this.until = until;
+			this.failed = failed;
+		}
+	}
+
+	/**
+	 * Counts of what the cache has done since it started.
+	 */
+	public static final class Stats {
+		private final long hits;
+		private final long misses;
+		private final long loads;
+		private final long loadFailures;
+		private final long loadTimeNanos;
+		private final long refreshes;
+		private final long evictions;
+		private final long negativeHits;
+		private final long limited;
+		private final long staleHits;
+		private final int size;
+
+		Stats(long hits, long misses, long loads, long loadFailures, long loadTimeNanos, long refreshes, long evictions,
+				long negativeHits, long limited, long staleHits, int size) {
+			this.hits = hits;
+			this.misses = misses;
+			this.loads = loads;
+			this.loadFailures = loadFailures;
+			this.loadTimeNanos = loadTimeNanos;
+			this.refreshes = refreshes;
+			this.evictions = evictions;
+			this.negativeHits = negativeHits;
+			this.limited = limited;
+			this.staleHits = staleHits;
+			this.size = size;
+		}
+
+		public long getHits() {
+			return hits;
+		}
+
+		public long getMisses() {
+			return misses;
+		}
+
+		/** loads that returned, including refreshes */
+		public long getLoads() {
+			return loads;
+		}
+
+		public long getLoadFailures() {
+			return loadFailures;
+		}
+
+		/** time spent in every load, including those that failed */
+		public long getLoadTimeNanos() {
+			return loadTimeNanos;
+		}
+
+		public long getRefreshes() {
+			return refreshes;
+		}
+
+		public long getEvictions() {
+			return evictions;
+		}
+
+		/** lookups answered by remembering the id had no key */
+		public long getNegativeHits() {
+			return negativeHits;
+		}
+
+		/** lookups refused because the id had been looked up too often */
+		public long getLimited() {
+			return limited;
+		}
+
+		/** expired keys used because the player service couldn't be asked */
+		public long getStaleHits() {
+			return staleHits;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		@Override
+		public String toString() {
+			return "hits=" + hits + " misses=" + misses + " loads=" + loads + " loadFailures=" + loadFailures
+					+ " loadTimeMS=" + TimeUnit.NANOSECONDS.toMillis(loadTimeNanos) + " refreshes=" + refreshes
+					+ " evictions=" + evictions + " negativeHits=" + negativeHits + " limited=" + limited + " staleHits=" + staleHits
+					+ " size=" + size;
+		}
+	}
+
+	@Inject
+	PlayerClient playerClient;
+
+	private Loader loader;
+	private Clock clock;
+	private int maxSize;
+	private long ttlMS;
+	private long refreshAheadMS;
+	private long negativeTtlMS;
+	private long staleMS;
+	private LookupLimiter limiter;
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final ConcurrentMap<String, Missing> missing = new ConcurrentHashMap<String, Missing>();
+	private final ConcurrentMap<String, CompletableFuture<String>> loading = new ConcurrentHashMap<String, CompletableFuture<String>>();
+	private final AtomicLong accesses = new AtomicLong();
+	private final ReentrantLock evicting = new ReentrantLock();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder loads = new LongAdder();
+	private final LongAdder loadFailures = new LongAdder();
+	private final LongAdder loadTimeNanos = new LongAdder();
+	private final LongAdder refreshes = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder negativeHits = new LongAdder();
+	private final LongAdder limited = new LongAdder();
+	private final LongAdder staleHits = new LongAdder();
+
+	public ApiKeyCache() {
+		//keys are loaded from the injected player client, see init.
+	}
+
+	public ApiKeyCache(Loader loader, Clock clock, int maxSize, long ttlMS, long refreshAheadMS) {
+		this(loader, clock, maxSize, ttlMS, refreshAheadMS, DEFAULT_NEGATIVE_TTL_MS, DEFAULT_STALE_MS, new LookupLimiter(clock));
+	}
+
+	public ApiKeyCache(Loader loader, Clock clock, int maxSize, long ttlMS, long refreshAheadMS, long negativeTtlMS,
+			long staleMS, LookupLimiter limiter) {
+		this.loader = loader;
+		this.clock = clock;
+		this.maxSize = maxSize;
+		this.ttlMS = ttlMS;
+		this.refreshAheadMS = refreshAheadMS;
+		this.negativeTtlMS = negativeTtlMS;
+		this.staleMS = staleMS;
+		this.limiter = limiter;
+	}
+
+	@PostConstruct
+	public void init() {
+		loader = new Loader() {
+			@Override
+			public CompletableFuture<String> load(String id) {
+				return playerClient.getApiKeyAsync(id);
+			}
+		};
+		clock = Clock.systemUTC();
+		maxSize = DEFAULT_MAX_SIZE;
+		ttlMS = DEFAULT_TTL_MS;
+		refreshAheadMS = DEFAULT_REFRESH_AHEAD_MS;
+		negativeTtlMS = DEFAULT_NEGATIVE_TTL_MS;
+		staleMS = DEFAULT_STALE_MS;
+		limiter = new LookupLimiter(clock);
+		registerMetrics(Metrics.getDefault());
+	}
+
+	/**
+	 * Report the cache's counts with the rest of the concierge's metrics.
+	 */
+	void registerMetrics(Metrics metrics) {
+		String lookups = "concierge_apikey_lookups_total";
+		String lookupsHelp = "Player key lookups, by whether the key was cached";
+		metrics.counter(lookups, lookupsHelp, Metrics.sampleOf(hits), "result", "hit");
+		metrics.counter(lookups, lookupsHelp, Metrics.sampleOf(misses), "result", "miss");
+		metrics.counter(lookups, lookupsHelp, Metrics.sampleOf(negativeHits), "result", "knownMissing");
+		metrics.counter("concierge_apikey_limited_total", "Player key loads refused because the id was looked up too often",
+				Metrics.sampleOf(limited));
+		metrics.counter("concierge_apikey_stale_total", "Expired player keys used because the player service couldn't be asked",
+				Metrics.sampleOf(staleHits));
+		metrics.counter("concierge_apikey_loads_total", "Player keys loaded, including refreshes", Metrics.sampleOf(loads));
+		metrics.counter("concierge_apikey_load_failures_total", "Player key loads that failed", Metrics.sampleOf(loadFailures));
+		metrics.counter("concierge_apikey_load_seconds_total", "Time spent loading player keys", new Metrics.Sample() {
+			@Override
+			public double get() {
+				return loadTimeNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1);
+			}
+		});
+		metrics.counter("concierge_apikey_refreshes_total", "Player keys refreshed before they expired", Metrics.sampleOf(refreshes));
+		metrics.counter("concierge_apikey_evictions_total", "Player keys evicted to make room", Metrics.sampleOf(evictions));
+		metrics.gauge("concierge_apikey_cache_size", "Player keys cached", new Metrics.Sample() {
+			@Override
+			public double get() {
+				return entries.size();
+			}
+		});
+	}
+
+	/**
+	 * Obtain the key for an id, loading it if it isn't cached (or has expired).
+	 *
+	 * @return the key, or null if there isn't one.
+	 * @throws IOException if the key had to be loaded, and that failed, or
+	 *             has failed recently, or the id has been looked up too often.
+	 */
+	public String get(String id) throws IOException {
+		return await(getAsync(id));
+	}
+
+	/**
+	 * Obtain the key for an id, without waiting if it has to be loaded.
+	 *
+	 * @return the key, or null if there isn't one. It is already complete if
+	 *         the key was cached. It fails with an IOException when
+	 *         {@link #get(String)} would have thrown one.
+	 */
+	public CompletableFuture<String> getAsync(String id) {
+		long now = clock.millis();
+		Entry entry = entries.get(id);
+		if (entry != null) {
+			long age = now - entry.loadedAt;
+			if (age < ttlMS) {
+				hits.increment();
+				entry.lastUsed = accesses.incrementAndGet();
+				if (age >= ttlMS - refreshAheadMS && entry.refreshing.compareAndSet(false, true)) {
+					refresh(id, entry);
+				}
+				return CompletableFuture.completedFuture(entry.key);
+			}
+			if (age < ttlMS + staleMS) {
+				misses.increment();
+				return orStale(load(id, entry), entry);
+			}
+			entries.remove(id, entry);
+		}
+		Missing known = missing.get(id);
+		if (known != null) {
+			if (now < known.until) {
+				negativeHits.increment();
+				if (known.failed) {
+					return failed(new IOException("recent lookup of the key failed"));
+				}
+				return CompletableFuture.completedFuture(null);
+			}
+			missing.remove(id, known);
+		}
+		misses.increment();
+		return load(id, null);
+	}
+
+	/**
+	 * Forget the key for an id, it will be loaded again when next needed.
+	 */
+	public void invalidate(String id) {
+		entries.remove(id);
+		missing.remove(id);
+	}
+
+	public Stats getStats() {
+		return new Stats(hits.sum(), misses.sum(), loads.sum(), loadFailures.sum(), loadTimeNanos.sum(), refreshes.sum(),
+				evictions.sum(), negativeHits.sum(), limited.sum(), staleHits.sum(), entries.size());
+	}
+
+	/**
+	 * Load a key, or join a load of it that is already under way.
+	 *
+	 * @param seen the entry the caller found, if any. If another load has
+	 *            finished since then, its outcome is used instead.
+	 */
+	private CompletableFuture<String> load(final String id, Entry seen) {
+		final CompletableFuture<String> pending = new CompletableFuture<String>();
+		CompletableFuture<String> existing = loading.putIfAbsent(id, pending);
+		if (existing != null) {
+			return existing;
+		}
+		// a load may have finished between the caller looking and us taking its place.
+		Entry current = entries.get(id);
+		if (current != null && current != seen) {
+			loading.remove(id, pending);
+			pending.complete(current.key);
+			return pending;
+		}
+		Missing known = seen == null ? missing.get(id) : null;
+		if (known != null && clock.millis() < known.until) {
+			loading.remove(id, pending);
+			if (known.failed) {
+				pending.completeExceptionally(new IOException("recent lookup of the key failed"));
+			} else {
+				pending.complete(null);
+			}
+			return pending;
+		}
+		if (!limiter.tryAcquire(id)) {
+			limited.increment();
+			loading.remove(id, pending);
+			pending.completeExceptionally(new IOException("too many lookups of the key"));
+			return pending;
+		}
+		final long start = System.nanoTime();
+		CompletableFuture<String> loaded;
+		try {
+			loaded = loader.load(id);
+		} catch (RuntimeException e) {
+			loaded = failed(e);
+		}
+		loaded.whenComplete(new BiConsumer<String, Throwable>() {
+			@Override
+			public void accept(String key, Throwable failure) {
+				loadTimeNanos.add(System.nanoTime() - start);
+				if (failure == null) {
+					loads.increment();
+					if (key != null) {
+						put(id, key);
+					} else {
+						entries.remove(id);
+						remember(id, false);
+					}
+				} else {
+					loadFailures.increment();
+					if (isAnswer(failure)) {
+						// the player service said no, so any key we have is no good either.
+						entries.remove(id);
+					}
+					remember(id, true);
+				}
+				// anyone who misses from here on finds the outcome in the maps.
+				loading.remove(id, pending);
+				if (failure == null) {
+					pending.complete(key);
+				} else {
+					pending.completeExceptionally(failure instanceof CompletionException && failure.getCause() != null
+							? failure.getCause() : failure);
+				}
+			}
+		});
+		return pending;
+	}
+
+	/**
+	 * Reload a key that is about to expire, while the current one carries on being used.
+	 * If that fails the next use tries again.
+	 */
+	private void refresh(String id, final Entry entry) {
+		refreshes.increment();
+		load(id, entry).whenComplete(new BiConsumer<String, Throwable>() {
+			@Override
+			public void accept(String key, Throwable failure) {
+				if (failure != null) {
+					entry.refreshing.set(false);
+				}
+			}
+		});
+	}
+
+	/**
+	 * The key from a load, or if the player service couldn't answer, the expired key we have.
+	 */
+	private CompletableFuture<String> orStale(CompletableFuture<String> loading, final Entry stale) {
+		final CompletableFuture<String> result = new CompletableFuture<String>();
+		loading.whenComplete(new BiConsumer<String, Throwable>() {
+			@Override
+			public void accept(String key, Throwable failure) {
+				if (failure == null) {
+					result.complete(key);
+				} else if (!isAnswer(failure)) {
+					staleHits.increment();
+					result.complete(stale.key);
+				} else {
+					result.completeExceptionally(failure);
+				}
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Whether a failed load was the player service refusing us, rather than
+	 * it being unavailable, or the lookup not being made.
+	 */
+	private static boolean isAnswer(Throwable failure) {
+		return failure instanceof HttpResponseException && ((HttpResponseException) failure).getStatusCode() < 500;
+	}
+
+	private static CompletableFuture<String> failed(Throwable failure) {
+		CompletableFuture<String> future = new CompletableFuture<String>();
+		future.completeExceptionally(failure);
+		return future;
+	}
+
+	private static String await(CompletableFuture<String> pending) throws IOException {
+		try {
+			return pending.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private void put(String id, String key) {
+		missing.remove(id);
+		entries.put(id, new Entry(key, clock.millis(), accesses.incrementAndGet()));
+		if (entries.size() > maxSize && evicting.tryLock()) {
+			try {
+				evict();
+			} finally {
+				evicting.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Remember that an id has no key, for a little while.
+	 */
+	private void remember(String id, boolean failed) {
+		if (entries.containsKey(id)) {
+			// a refresh failed, keep using the key we have until it expires, or as a stale key.
+			return;
+		}
+		if (missing.size() >= maxSize) {
+			// these only last seconds, so rather than pick which to keep, forget them all.
+			missing.clear();
+		}
+		missing.put(id, new Missing(clock.millis() + negativeTtlMS, failed));
+	}
+
+	/**
+	 * Drop the least recently used keys, taking the cache down to 15/16 of
+	 * its maximum size so that this only happens once every so many inserts.
+	 */
+	private void evict() {
+		int excess = entries.size() - (maxSize - maxSize / 16);
+		if (excess <= 0) {
+			return;
+		}
+		List<Map.Entry<String, Entry>> all = new ArrayList<Map.Entry<String, Entry>>(entries.entrySet());
+		Collections.sort(all, new Comparator<Map.Entry<String, Entry>>() {
+			@Override
+			public int compare(Map.Entry<String, Entry> a, Map.Entry<String, Entry> b) {
+				return Long.compare(a.getValue().lastUsed, b.getValue().lastUsed);
+			}
+		});
+		for (int i = 0; i < excess && i < all.size(); i++) {
+			if (entries.remove(all.get(i).getKey(), all.get(i).getValue())) {
+				evictions.increment();
+			}
+		}
+	}
+}
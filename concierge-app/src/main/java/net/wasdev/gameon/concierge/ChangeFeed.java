@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import net.wasdev.gameon.room.common.DirectoryChange;
+
+/**
+ * Streams changes to the room directory to subscribers.
+ * <p>
+ * Every change is given the next version and encoded once, whoever it goes
+ * to. The most recent changes are kept in a ring, so a subscriber that
+ * reconnects can carry on from the last version it saw. A subscriber that
+ * asks for something we no longer have (it was away too long, or we have
+ * restarted since) is sent a {@link DirectoryChange#RESET reset} and the
+ * whole directory instead.
+ * </p>
+ */
+public class ChangeFeed {
+
+	/** Default number of recent changes kept for subscribers that reconnect */
+	public static final int DEFAULT_HISTORY = 4096;
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	static {
+		MAPPER.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+	}
+
+	/**
+	 * Receives changes. Called while the feed is locked, so must not block.
+	 */
+	public interface Subscriber {
+		void send(String change);
+
+		/**
+		 * Take what a new subscriber needs before any other change: the
+		 * changes it missed, or a reset and the whole directory. However many
+		 * there are, they should not count against any limit on how far
+		 * behind the subscriber may fall.
+		 *
+		 * @return false if the subscriber has gone, and should not be added.
+		 */
+		boolean catchUp(List<String> changes);
+	}
+
+	/**
+	 * Supplies the whole directory, one {@link DirectoryChange#ROOM_REGISTERED} per room.
+	 */
+	public interface Snapshot {
+		List<DirectoryChange> rooms();
+	}
+
+	private final String epoch = UUID.randomUUID().toString();
+	private final Snapshot snapshot;
+	private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+
+	/** encoded changes, change n is at n % history.length. Guarded by this. */
+	private final String[] history;
+	private long version;
+
+	public ChangeFeed(Snapshot snapshot) {
+		this(snapshot, DEFAULT_HISTORY);
+	}
+
+	public ChangeFeed(Snapshot snapshot, int history) {
+		this.snapshot = snapshot;
+		this.history = new String[history];
+	}
+
+	public String getEpoch() {
+		return epoch;
+	}
+
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Give a change the next version, and send it to every subscriber. The
+	 * feed locks on itself, so a caller holding that lock can build a change
+	 * and publish it without another change getting in between.
+	 */
+	public synchronized long publish(DirectoryChange change) {
+		change.setEpoch(epoch);
+		change.setVersion(++version);
+		String encoded = encode(change);
+		history[(int) (version % history.length)] = encoded;
+		for (Subscriber subscriber : subscribers) {
+			subscriber.send(encoded);
+		}
+		return version;
+	}
+
+	/**
+	 * Start sending changes to a subscriber, starting with those after
+	 * {@code since} if we still have them, or with a reset if we don't.
+	 *
+	 * @param epoch the epoch {@code since} belongs to, or null to start afresh.
+	 */
+	public synchronized void subscribe(Subscriber subscriber, String epoch, long since) {
+		long oldest = Math.max(1, version - history.length + 1);
+		List<String> missed;
+		if (this.epoch.equals(epoch) && since >= oldest - 1 && since <= version) {
+			missed = new ArrayList<String>((int) (version - since));
+			for (long v = since + 1; v <= version; v++) {
+				missed.add(history[(int) (v % history.length)]);
+			}
+		} else {
+			List<DirectoryChange> rooms = snapshot.rooms();
+			missed = new ArrayList<String>(rooms.size() + 1);
+			DirectoryChange reset = new DirectoryChange(DirectoryChange.RESET, null);
+			reset.setEpoch(this.epoch);
+			reset.setVersion(version);
+			missed.add(encode(reset));
+			// changes are published after they are made, so this may include
+			// some that are still to come. They carry whole values, so
+			// receiving them again afterwards does no harm.
+			for (DirectoryChange room : rooms) {
+				room.setEpoch(this.epoch);
+				room.setVersion(version);
+				missed.add(encode(room));
+			}
+		}
+		if (subscriber.catchUp(missed)) {
+			subscribers.add(subscriber);
+		}
+	}
+
+	public void unsubscribe(Subscriber subscriber) {
+		subscribers.remove(subscriber);
+	}
+
+	public int getSubscriberCount() {
+		return subscribers.size();
+	}
+
+	private static String encode(DirectoryChange change) {
+		try {
+			return MAPPER.writeValueAsString(change);
+		} catch (JsonProcessingException e) {
+			// a DirectoryChange is just strings, lists and maps.
+			throw new IllegalStateException(e);
+		}
+	}
+}
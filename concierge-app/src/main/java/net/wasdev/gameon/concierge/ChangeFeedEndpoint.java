@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.websocket.CloseReason;
+import javax.websocket.OnClose;
+import javax.websocket.OnError;
+import javax.websocket.OnOpen;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import javax.websocket.server.ServerEndpoint;
+
+/**
+ * Streams changes to the room directory over a WebSocket, so that clients
+ * (mediators) can keep their own copy instead of asking us on every move.
+ * <p>
+ * Connect to {@code /changes}, optionally with {@code ?epoch=&since=} taken
+ * from the last change you saw to carry on from there. Each message is a
+ * {@link net.wasdev.gameon.room.common.DirectoryChange} in JSON.
+ * </p>
+ * <p>
+ * Messages are sent asynchronously, one at a time. A subscriber that falls
+ * more than {@link #MAX_BACKLOG} messages behind is disconnected, and can
+ * reconnect from the last version it saw. What it is sent to catch up when it
+ * connects, however large the directory, doesn't count towards that.
+ * </p>
+ */
+@ServerEndpoint("/changes")
+public class ChangeFeedEndpoint {
+
+	/** How many messages can queue up for a subscriber before it is disconnected */
+	static final int MAX_BACKLOG = 1024;
+
+	private static final String SUBSCRIBER = "concierge.changeFeedSubscriber";
+
+	@Inject
+	Concierge c;
+
+	@OnOpen
+	public void onOpen(Session session) {
+		Map<String, List<String>> params = session.getRequestParameterMap();
+		String epoch = first(params, "epoch");
+		long since = -1;
+		String sinceParam = first(params, "since");
+		if (sinceParam != null) {
+			try {
+				since = Long.parseLong(sinceParam);
+			} catch (NumberFormatException e) {
+				// start afresh
+			}
+		}
+		SessionSubscriber subscriber = new SessionSubscriber(session, c.getChangeFeed());
+		session.getUserProperties().put(SUBSCRIBER, subscriber);
+		c.getChangeFeed().subscribe(subscriber, epoch, since);
+	}
+
+	@OnClose
+	public void onClose(Session session, CloseReason reason) {
+		SessionSubscriber subscriber = (SessionSubscriber) session.getUserProperties().get(SUBSCRIBER);
+		if (subscriber != null) {
+			c.getChangeFeed().unsubscribe(subscriber);
+		}
+	}
+
+	@OnError
+	public void onError(Session session, Throwable t) {
+		Log.warn("changeFeed.error", "session", session.getId(), "error", t.toString());
+	}
+
+	private static String first(Map<String, List<String>> params, String name) {
+		List<String> values = params.get(name);
+		return values == null || values.isEmpty() ? null : values.get(0);
+	}
+
+	/**
+	 * Queues changes for one session, and sends them one after another.
+	 */
+	static final class SessionSubscriber implements ChangeFeed.Subscriber, SendHandler {
+		private final Session session;
+		private final ChangeFeed feed;
+		private final Queue<String> backlog = new ConcurrentLinkedQueue<String>();
+		/** live changes queued or being sent */
+		private final AtomicInteger queued = new AtomicInteger();
+		/** catch up messages still to be sent, they are ahead of any live change */
+		private final AtomicInteger catchingUp = new AtomicInteger();
+		private final AtomicBoolean sending = new AtomicBoolean();
+		private volatile boolean overflowed;
+
+		SessionSubscriber(Session session, ChangeFeed feed) {
+			this.session = session;
+			this.feed = feed;
+		}
+
+		@Override
+		public void send(String change) {
+			if (overflowed) {
+				return;
+			}
+			if (queued.incrementAndGet() > MAX_BACKLOG) {
+				// the feed is locked while we are called, so leave closing
+				// the session to whoever finishes the send in flight.
+				overflowed = true;
+				feed.unsubscribe(this);
+				backlog.clear();
+			} else {
+				backlog.add(change);
+			}
+			pump();
+		}
+
+		@Override
+		public boolean catchUp(List<String> changes) {
+			// called before any live change, so these go first.
+			catchingUp.addAndGet(changes.size());
+			backlog.addAll(changes);
+			pump();
+			return !overflowed && session.isOpen();
+		}
+
+		@Override
+		public void onResult(SendResult result) {
+			if (!result.isOK()) {
+				feed.unsubscribe(this);
+				return;
+			}
+			if (catchingUp.get() > 0) {
+				catchingUp.decrementAndGet();
+			} else {
+				queued.decrementAndGet();
+			}
+			sending.set(false);
+			pump();
+		}
+
+		/**
+		 * Start sending the next queued change, unless a send is already in flight.
+		 */
+		private void pump() {
+			while (sending.compareAndSet(false, true)) {
+				if (overflowed) {
+					close();
+					return;
+				}
+				String next = backlog.poll();
+				if (next != null) {
+					session.getAsyncRemote().sendText(next, this);
+					return;
+				}
+				sending.set(false);
+				// something may have been queued after the poll but before
+				// we cleared the flag, in which case go round again.
+				if (backlog.isEmpty()) {
+					return;
+				}
+			}
+		}
+
+		private void close() {
+			try {
+				session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER,
+						"Too far behind, reconnect with the last version received"));
+			} catch (IOException e) {
+				Log.warn("changeFeed.close.failed", "session", session.getId(), "error", e.toString());
+			}
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops calls to a service that is failing, or answering too slowly, so that
+ * callers fail straight away instead of each waiting out a timeout.
+ * <p>
+ * While closed, the outcome of the last {@code window} calls is kept. Once at
+ * least {@link #MIN_CALLS} have been made, if too many of them failed, or took
+ * longer than {@code slowCallMS}, the breaker opens and refuses every call for
+ * {@code openMS}. Then it lets {@link #HALF_OPEN_PROBES} calls through: if they
+ * all succeed quickly it closes again, otherwise it goes back to open.
+ * </p>
+ */
+public class CircuitBreaker {
+
+	public static final int DEFAULT_WINDOW = 20;
+	/** Calls seen before the failure and slow call rates are acted on */
+	static final int MIN_CALLS = 10;
+	/** Percentage of failed calls, or of slow calls, that opens the breaker */
+	public static final int DEFAULT_FAILURE_RATE = 50;
+	public static final long DEFAULT_SLOW_CALL_MS = 2000;
+	public static final long DEFAULT_OPEN_MS = TimeUnit.SECONDS.toMillis(10);
+	/** Calls let through to see whether the service has recovered */
+	static final int HALF_OPEN_PROBES = 3;
+
+	public enum State {
+		closed,
+		open,
+		halfOpen
+	}
+
+	private static final byte OK = 0;
+	private static final byte FAILED = 1;
+	private static final byte SLOW = 2;
+
+	private final String name;
+	private final Clock clock;
+	private final int failureRate;
+	private final long slowCallNanos;
+	private final long openMS;
+
+	/** the outcomes of the last calls while closed, guarded by this */
+	private final byte[] outcomes;
+	private int next;
+	private int calls;
+	private int failures;
+	private int slowCalls;
+
+	private State state = State.closed;
+	private long openedAt;
+	private int probesStarted;
+	private int probesPassed;
+
+	private long timesOpened;
+	private long rejected;
+
+	public CircuitBreaker(String name, Clock clock) {
+		this(name, clock, DEFAULT_WINDOW, DEFAULT_FAILURE_RATE, DEFAULT_SLOW_CALL_MS, DEFAULT_OPEN_MS);
+	}
+
+	public CircuitBreaker(String name, Clock clock, int window, int failureRate, long slowCallMS, long openMS) {
+		this.name = name;
+		this.clock = clock;
+		this.outcomes = new byte[window];
+		this.failureRate = failureRate;
+		this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMS);
+		this.openMS = openMS;
+	}
+
+	/**
+	 * Ask to make a call. Every call allowed must be followed by
+	 * {@link #succeeded(long)} or {@link #failed()}.
+	 *
+	 * @return false if the call should not be made.
+	 */
+	public synchronized boolean tryAcquire() {
+		if (state == State.open && clock.millis() - openedAt >= openMS) {
+			moveTo(State.halfOpen);
+			probesStarted = 0;
+			probesPassed = 0;
+		}
+		if (state == State.closed) {
+			return true;
+		}
+		if (state == State.halfOpen && probesStarted < HALF_OPEN_PROBES) {
+			probesStarted++;
+			return true;
+		}
+		rejected++;
+		return false;
+	}
+
+	/**
+	 * A call the service answered, after {@code nanos}.
+	 */
+	public synchronized void succeeded(long nanos) {
+		record(nanos >= slowCallNanos ? SLOW : OK);
+	}
+
+	/**
+	 * A call that failed, however long it took.
+	 */
+	public synchronized void failed() {
+		record(FAILED);
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/** how many times the breaker has opened */
+	public synchronized long getTimesOpened() {
+		return timesOpened;
+	}
+
+	/** calls refused because the breaker was open */
+	public synchronized long getRejected() {
+		return rejected;
+	}
+
+	/**
+	 * Report the breaker's state, and how often it has opened and refused calls, labelled with its name.
+	 */
+	public void registerMetrics(Metrics metrics) {
+		metrics.gauge("concierge_breaker_state", "Circuit breaker state: 0 closed, 1 open, 2 half open", new Metrics.Sample() {
+			@Override
+			public double get() {
+				return getState().ordinal();
+			}
+		}, "breaker", name);
+		metrics.counter("concierge_breaker_opened_total", "Times the circuit breaker has opened", new Metrics.Sample() {
+			@Override
+			public double get() {
+				return getTimesOpened();
+			}
+		}, "breaker", name);
+		metrics.counter("concierge_breaker_rejected_total", "Calls refused because the circuit breaker was open", new Metrics.Sample() {
+			@Override
+			public double get() {
+				return getRejected();
+			}
+		}, "breaker", name);
+	}
+
+	private void record(byte outcome) {
+		switch (state) {
+			case halfOpen:
+				if (outcome != OK) {
+					open();
+				} else if (++probesPassed == HALF_OPEN_PROBES) {
+					moveTo(State.closed);
+					clearWindow();
+				}
+				break;
+			case closed:
+				if (calls == outcomes.length) {
+					forget(outcomes[next]);
+				} else {
+					calls++;
+				}
+				outcomes[next] = outcome;
+				next = (next + 1) % outcomes.length;
+				if (outcome == FAILED) {
+					failures++;
+				} else if (outcome == SLOW) {
+					slowCalls++;
+				}
+				if (calls >= Math.min(MIN_CALLS, outcomes.length)
+						&& (failures * 100 >= failureRate * calls || slowCalls * 100 >= failureRate * calls)) {
+					open();
+				}
+				break;
+			case open:
+			default:
+				// a call that started before we opened, it changes nothing.
+				break;
+		}
+	}
+
+	private void forget(byte outcome) {
+		if (outcome == FAILED) {
+			failures--;
+		} else if (outcome == SLOW) {
+			slowCalls--;
+		}
+	}
+
+	private void open() {
+		moveTo(State.open);
+		openedAt = clock.millis();
+		timesOpened++;
+	}
+
+	private void clearWindow() {
+		next = 0;
+		calls = 0;
+		failures = 0;
+		slowCalls = 0;
+	}
+
+	private void moveTo(State newState) {
+		if (state != newState) {
+			Log.warn("breaker.state", "breaker", name, "state", newState, "was", state);
+			state = newState;
+		}
+	}
+}
@@ -15,58 +15,240 @@
  *******************************************************************************/
 package net.wasdev.gameon.concierge;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.io.File;
+import java.io.IOException;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
 
+import net.wasdev.gameon.room.common.DirectoryChange;
+import net.wasdev.gameon.room.common.Neighbourhood;
 import net.wasdev.gameon.room.common.RegistrationResponse;
 import net.wasdev.gameon.room.common.Room;
 import net.wasdev.gameon.room.common.RoomToEndpoints;
 
 @ApplicationScoped
 public class Concierge {
-	Map<String, RoomToEndpoints> roomDirectory = new HashMap<String, RoomToEndpoints>();
-	Set<String> startingRooms = new HashSet<String>();
-	int starterRoomIndex = 0;
+	/** The furthest a neighbourhood lookup will follow exits */
+	public static final int MAX_NEIGHBOURHOOD_DEPTH = 2;
+	/**
+	 * The room attribute holding how long, in seconds, a registration lasts
+	 * without a heartbeat. Rooms that don't set it stay registered for good.
+	 */
+	public static final String LEASE_TTL = "ttl";
+	static final String REJECTED_NO_NAME = "Rejected: a room name is required";
+
+	/**
+	 * Registrations change the directory, the placement and the starting
+	 * rooms together, so they take turns. Lookups never take this lock.
+	 */
+	private final Object registrationLock = new Object();
+
+	RoomDirectory roomDirectory = new RoomDirectory();
+	StartingRoomSelector startingRooms = new StartingRoomSelector();
+	RoomLoadTracker roomLoads = new RoomLoadTracker(Clock.systemUTC());
+	StartingRoomSelector.Mode startingRoomMode = StartingRoomSelector.Mode.fromString(System.getenv("CONCIERGE_STARTING_ROOM_MODE"));
+	EndpointProber prober;
+	RegistrationJournal journal;
+	LeaseWheel leases = new LeaseWheel(Clock.systemUTC());
+	ChangeFeed changes = new ChangeFeed(new ChangeFeed.Snapshot() {
+		@Override
+		public List<DirectoryChange> rooms() {
+			return currentRooms();
+		}
+	});
+	/** set while the journal is replayed, nobody can be subscribed to those changes yet */
+	private volatile boolean replaying;
 
 	PlacementStrategy ps = new ManualWiringPlacement();
 
 	public Concierge(PlacementStrategy placementStrategy) {
 		ps = placementStrategy;
+		watchDirectory();
 	}
 
 	public Concierge() {
-		System.out.println("CONCIERGE IS STARTING: " + this.hashCode());
+		Log.info("concierge.starting", "instance", this.hashCode());
 		ps = new ManualWiringPlacement();
+		watchDirectory();
 	}
 
-	public RoomToEndpoints getStartingRoom() {
-		boolean first = true;
-		while(first){
-			int roomIndex = 0;
-			
-			if (starterRoomIndex == 0){
-				first = false;
-			}			
-			for (String roomId : startingRooms) {
-				RoomToEndpoints roomCollection = roomDirectory.get(roomId);
-				if (roomCollection != null) {
-					roomIndex++;
-					if (roomIndex > starterRoomIndex){
-						System.out.println("Request for starting room : \n" + roomCollection + "\n" + roomDirectory);
-						starterRoomIndex = roomIndex;
-						return roomCollection;
+	/**
+	 * Publish endpoint changes, including those the prober makes, to the change feed.
+	 */
+	private void watchDirectory() {
+		roomDirectory.addListener(new RoomDirectory.Listener() {
+			@Override
+			public void endpointsChanged(String roomId, RoomToEndpoints previous, RoomToEndpoints current) {
+				// new rooms are announced once they have been placed (see
+				// register), and removed rooms once they are gone (see removeRoom).
+				if (previous != null && current != null && !replaying) {
+					publishEndpoints(roomId);
+				}
+			}
+		});
+	}
+
+	@PostConstruct
+	public void start() {
+		Log.getDefault().start();
+		registerMetrics(Metrics.getDefault());
+		recoverRegistrations();
+		startProbing();
+		leases.start(new LeaseWheel.Expiry() {
+			@Override
+			public void expired(String roomId, String endpoint) {
+				leaseExpired(roomId, endpoint);
+			}
+		});
+	}
+
+	@PreDestroy
+	public void stop() {
+		leases.stop();
+		stopProbing();
+		closeJournal();
+		Log.getDefault().stop();
+	}
+
+	/**
+	 * Report the size of the directory, and what the log has had to leave out.
+	 */
+	void registerMetrics(Metrics metrics) {
+		metrics.gauge("concierge_rooms", "Rooms registered", new Metrics.Sample() {
+			@Override
+			public double get() {
+				return roomDirectory.size();
+			}
+		});
+		metrics.counter("concierge_log_dropped_total", "Log events dropped because the log writer was behind", new Metrics.Sample() {
+			@Override
+			public double get() {
+				return Log.getDefault().getDropped();
+			}
+		});
+		metrics.counter("concierge_log_suppressed_total", "Log events suppressed because their type was logging too often", new Metrics.Sample() {
+			@Override
+			public double get() {
+				return Log.getDefault().getSuppressed();
+			}
+		});
+	}
+
+	/**
+	 * Start checking the endpoints rooms register in the background, so that
+	 * we hand out the fastest live endpoint first.
+	 */
+	void startProbing() {
+		prober = new EndpointProber(roomDirectory, new EndpointProber.TcpProbe(EndpointProber.DEFAULT_CONNECT_TIMEOUT_MS),
+				EndpointProber.DEFAULT_CONCURRENCY, new EndpointProber.Removal() {
+					@Override
+					public void remove(String roomId, String endpoint) {
+						endpointFailed(roomId, endpoint);
+					}
+				});
+		roomDirectory.setRanking(prober.getRanking());
+		prober.start(EndpointProber.DEFAULT_INTERVAL_MS);
+	}
+
+	void stopProbing() {
+		if (prober != null) {
+			prober.stop();
+		}
+	}
+
+	/**
+	 * Recover the rooms registered before we last stopped, if the concierge
+	 * has somewhere to keep them.
+	 */
+	void recoverRegistrations() {
+		String dataDir = System.getenv("CONCIERGE_DATA_DIR");
+		if (dataDir == null || dataDir.isEmpty()) {
+			Log.warn("journal.disabled", "reason", "CONCIERGE_DATA_DIR is not set, registrations will not survive a restart");
+			return;
+		}
+		try {
+			openJournal(new File(dataDir));
+		} catch (IOException e) {
+			Log.error("journal.open.failed", "dir", dataDir, "error", e.toString());
+		}
+	}
+
+	/**
+	 * Replay the registrations in a journal, then record new registrations there.
+	 *
+	 * @return the number of registrations replayed.
+	 */
+	int openJournal(File directory) throws IOException {
+		return openJournal(directory, RegistrationJournal.DEFAULT_SNAPSHOT_EVERY);
+	}
+
+	int openJournal(File directory, int snapshotEvery) throws IOException {
+		RegistrationJournal opened = new RegistrationJournal(directory, snapshotEvery);
+		long start = System.nanoTime();
+		int replayed;
+		synchronized (registrationLock) {
+			replaying = true;
+			// starting rooms are added in one go at the end, rather than one array copy each.
+			final Set<String> starters = new LinkedHashSet<String>();
+			replayed = opened.open(new RegistrationJournal.Replay() {
+				@Override
+				public void replay(RegistrationJournal.Record record) {
+					if (record.room == null || record.room.getRoomName() == null) {
+						return;
+					}
+					if (RegistrationJournal.Record.REGISTER.equals(record.type)) {
+						// an occupancy from before the restart says nothing about now.
+						record.room.getAttributes().remove("occupancy");
+						if (apply(record.room)) {
+							starters.add(record.room.getRoomName());
+						}
+					} else if (RegistrationJournal.Record.EXPIRE.equals(record.type)) {
+						if (expire(record.room.getRoomName(), record.room.getAttribute("endPoint"))
+								&& !roomDirectory.contains(record.room.getRoomName())) {
+							starters.remove(record.room.getRoomName());
+						}
 					}
 				}
+			});
+			startingRooms.addAll(starters);
+			roomDirectory.changed();
+			replaying = false;
+			journal = opened;
+		}
+		Log.info("journal.recovered", "registrations", replayed, "ms", (System.nanoTime() - start) / 1000000);
+		return replayed;
+	}
+
+	void closeJournal() {
+		synchronized (registrationLock) {
+			if (journal != null) {
+				try {
+					journal.close();
+				} catch (IOException e) {
+					Log.error("journal.close.failed", "error", e.toString());
+				}
+				journal = null;
 			}
-			starterRoomIndex = 0;
 		}
-		System.out.println("Request for starting room : \n null\n" + roomDirectory);
-		return null;
+	}
+
+	public RoomToEndpoints getStartingRoom() {
+		RoomToEndpoints startingRoom = roomDirectory.get(startingRooms.next(startingRoomMode, roomLoads));
+		if (startingRoom != null && startingRoomMode != StartingRoomSelector.Mode.roundRobin) {
+			roomLoads.placed(startingRoom.getRoomId());
+		}
+		Log.info("startingRoom", "room", startingRoom == null ? null : startingRoom.getRoomId());
+		return startingRoom;
 	}
 
 	public RoomToEndpoints exitRoom(String currentRoomId, String exitName) {
@@ -74,35 +256,346 @@ public class Concierge {
 		return roomDirectory.get(roomId);
 	}
 
+	/**
+	 * A room, and the rooms behind each of its exits, following exits up to
+	 * {@code depth} rooms away. Exits to rooms that haven't registered are left out.
+	 *
+	 * @return the neighbourhood, or null if the room is unknown.
+	 */
+	public Neighbourhood getNeighbourhood(String roomId, int depth) {
+		RoomToEndpoints rte = roomDirectory.get(roomId);
+		if (rte == null) {
+			return null;
+		}
+		Neighbourhood neighbourhood = new Neighbourhood();
+		neighbourhood.setRel(rte);
+		if (depth > 0) {
+			for (Map.Entry<String, String> exit : ps.getConnectingRooms(roomId).entrySet()) {
+				Neighbourhood next = getNeighbourhood(exit.getValue(), Math.min(depth, MAX_NEIGHBOURHOOD_DEPTH) - 1);
+				if (next != null) {
+					neighbourhood.getExits().put(exit.getKey(), next);
+				}
+			}
+		}
+		return neighbourhood;
+	}
+
+	/**
+	 * Register a room, rooms without a name are rejected.
+	 */
 	public RegistrationResponse registerRoom(Room room, String ownerId) {
-		boolean reRegistration = roomDirectory.containsKey(room.getRoomName());
+		if (!hasName(room)) {
+			return rejectedNoName();
+		}
+		synchronized (registrationLock) {
+			RegistrationResponse rr = register(room, ownerId);
+			roomDirectory.changed();
+			return rr;
+		}
+	}
+
+	/**
+	 * Register a batch of rooms in one go. Rooms are registered in order, so
+	 * exits between rooms in the batch resolve as soon as the batch is done.
+	 * Rooms without a name are rejected, without affecting the rest of the batch.
+	 *
+	 * @return a response for each room, in the same order.
+	 */
+	public List<RegistrationResponse> registerRooms(List<Room> rooms, String ownerId) {
+		List<RegistrationResponse> responses = new ArrayList<RegistrationResponse>(rooms.size());
+		synchronized (registrationLock) {
+			for (Room room : rooms) {
+				if (!hasName(room)) {
+					responses.add(rejectedNoName());
+					continue;
+				}
+				responses.add(register(room, ownerId));
+			}
+			roomDirectory.changed();
+		}
+		return responses;
+	}
+
+	private static boolean hasName(Room room) {
+		return room != null && room.getRoomName() != null && !room.getRoomName().isEmpty();
+	}
+
+	private static RegistrationResponse rejectedNoName() {
+		RegistrationResponse rejected = new RegistrationResponse();
+		rejected.setResponse(REJECTED_NO_NAME);
+		return rejected;
+	}
+
+	/**
+	 * Apply and record a registration, the caller must hold the registration lock.
+	 */
+	private RegistrationResponse register(Room room, String ownerId) {
+		boolean reRegistration = roomDirectory.contains(room.getRoomName());
 		
-		if(!reRegistration)System.out.println("Processing registration by '"+ownerId+"' for : \n" + room.toString());
+		if(!reRegistration)Log.info("registration", "owner", ownerId, "room", room.getRoomName(),
+				"endPoint", room.getAttribute("endPoint"), "exits", room.getExits() == null ? 0 : room.getExits().size());
 		
-		RoomToEndpoints rte = roomDirectory.get(room.getRoomName());
-		if (rte == null) {
-			rte = new RoomToEndpoints();
-			rte.setRoomId(room.getRoomName());
+		Map<String, String> exitsBefore = reRegistration ? ps.getConnectingRooms(room.getRoomName()) : null;
+		if (apply(room)) {
+			startingRooms.add(room.getRoomName());
+		}
+		publishRegistration(room.getRoomName(), exitsBefore);
+		if (journal != null) {
+			try {
+				journal.append(room, ownerId);
+			} catch (IOException e) {
+				Log.error("journal.append.failed", "room", room.getRoomName(), "error", e.toString());
+			}
 		}
+		RegistrationResponse rr = new RegistrationResponse();
+		return rr;
+	}
+
+	/**
+	 * Update the directory and placement for a registration.
+	 *
+	 * @return true if the room should be a starting room.
+	 */
+	private boolean apply(Room room) {
+		roomDirectory.addEndpoint(room.getRoomName(), room.getAttribute("endPoint"));
 
-		List<String> endpoints = rte.getEndpoints();
-		endpoints.add(room.getAttribute("endPoint"));
-		roomDirectory.put(room.getRoomName(), rte);
+		long ttlMS = 0;
+		String ttl = room.getAttribute(LEASE_TTL);
+		if (ttl != null) {
+			try {
+				ttlMS = TimeUnit.SECONDS.toMillis(Long.parseLong(ttl));
+			} catch (NumberFormatException e) {
+				Log.warn("registration.ignored", "room", room.getRoomName(), LEASE_TTL, ttl);
+			}
+		}
+		if (ttlMS > 0) {
+			leases.grant(room.getRoomName(), room.getAttribute("endPoint"), ttlMS);
+		} else {
+			leases.release(room.getRoomName(), room.getAttribute("endPoint"));
+		}
 		boolean startLocation = true;
 		String setStartLocation = room.getAttribute("startLocation");
 		if (setStartLocation != null) {
 			startLocation = Boolean.valueOf(setStartLocation);
 		}
 
+		String occupancy = room.getAttribute("occupancy");
+		if (occupancy != null) {
+			try {
+				roomLoads.report(room.getRoomName(), Integer.parseInt(occupancy));
+			} catch (NumberFormatException e) {
+				Log.warn("registration.ignored", "room", room.getRoomName(), "occupancy", occupancy);
+			}
+		}
+
 		ps.placeRoom(room);
-		if (startLocation) {
-			startingRooms.add(room.getRoomName());
+		return startLocation;
+	}
+
+	/**
+	 * Renew a room's lease.
+	 *
+	 * @param endpoint the endpoint to renew the lease for, or null for all of the room's leases.
+	 * @return false if the room (or endpoint) is not registered any more, it must register again.
+	 */
+	public boolean heartbeat(String roomId, String endpoint) {
+		if (leases.renew(roomId, endpoint)) {
+			return true;
+		}
+		// rooms that registered without a lease never expire.
+		return roomDirectory.contains(roomId) && !leases.isLeased(roomId);
+	}
+
+	/**
+	 * Drop an endpoint (or room) whose lease has expired.
+	 */
+	void leaseExpired(String roomId, String endpoint) {
+		synchronized (registrationLock) {
+			// it may have registered again while the lease was expiring.
+			if (leases.isHeld(roomId, endpoint) || !expire(roomId, endpoint)) {
+				return;
+			}
+			recordExpiry(roomId, endpoint);
+			roomDirectory.changed();
+		}
+	}
+
+	/**
+	 * Drop an endpoint the prober can't reach, as if its lease had expired,
+	 * so that it stays dropped after a restart. The room keeps its other endpoints.
+	 */
+	void endpointFailed(String roomId, String endpoint) {
+		synchronized (registrationLock) {
+			// it may have gone, or be all the room has left, by now.
+			RoomToEndpoints rte = roomDirectory.get(roomId);
+			if (rte == null || rte.getEndpoints().size() < 2 || !rte.getEndpoints().contains(endpoint)) {
+				return;
+			}
+			expire(roomId, endpoint);
+			recordExpiry(roomId, endpoint);
+			roomDirectory.changed();
+		}
+	}
+
+	/**
+	 * Journal an expiry, the caller must hold the registration lock.
+	 */
+	private void recordExpiry(String roomId, String endpoint) {
+		if (journal != null) {
+			try {
+				journal.appendExpiry(roomId, endpoint);
+			} catch (IOException e) {
+				Log.error("journal.append.failed", "room", roomId, "error", e.toString());
+			}
+		}
+	}
+
+	/**
+	 * Drop an endpoint, and the room if that was its last endpoint. The
+	 * caller must hold the registration lock.
+	 *
+	 * @param endpoint the endpoint to drop, or null to drop the room if it has no endpoints.
+	 * @return false if the room is unknown.
+	 */
+	private boolean expire(String roomId, String endpoint) {
+		if (!roomDirectory.contains(roomId)) {
+			return false;
+		}
+		leases.release(roomId, endpoint);
+		if (endpoint != null) {
+			roomDirectory.removeEndpoint(roomId, endpoint);
+		}
+		if (roomDirectory.get(roomId).getEndpoints().isEmpty()) {
+			removeRoom(roomId);
+		}
+		return true;
+	}
+
+	/**
+	 * Forget a room entirely. The caller must hold the registration lock.
+	 */
+	private void removeRoom(String roomId) {
+		if (!replaying) {
+			Log.info("lease.expired", "room", roomId);
+		}
+		// removing a room can close exits from the rooms around it.
+		Map<String, Map<String, String>> neighbours = new LinkedHashMap<String, Map<String, String>>();
+		for (String neighbour : ps.getConnectingRooms(roomId).values()) {
+			neighbours.put(neighbour, ps.getConnectingRooms(neighbour));
+		}
+		ps.removeRoom(roomId);
+		roomDirectory.remove(roomId);
+		startingRooms.remove(roomId);
+		roomLoads.forget(roomId);
+		leases.releaseRoom(roomId);
+		if (!replaying) {
+			changes.publish(new DirectoryChange(DirectoryChange.ROOM_REMOVED, roomId));
+			for (Map.Entry<String, Map<String, String>> neighbour : neighbours.entrySet()) {
+				Map<String, String> exits = ps.getConnectingRooms(neighbour.getKey());
+				if (!exits.equals(neighbour.getValue())) {
+					publishExits(neighbour.getKey(), exits);
+				}
+			}
 		}
-		RegistrationResponse rr = new RegistrationResponse();
-		return rr;
+	}
+
+	/**
+	 * Publish what a registration changed, other than endpoints, to the change feed.
+	 *
+	 * @param exitsBefore the exits of the room before it re-registered, or null if it is new.
+	 */
+	private void publishRegistration(String roomId, Map<String, String> exitsBefore) {
+		Map<String, String> exits = ps.getConnectingRooms(roomId);
+		if (exitsBefore == null) {
+			DirectoryChange registered = new DirectoryChange(DirectoryChange.ROOM_REGISTERED, roomId);
+			registered.setEndpoints(roomDirectory.get(roomId).getEndpoints());
+			registered.setExits(exits);
+			changes.publish(registered);
+			// placing a room can give the rooms around it a new exit (with 2D
+			// placement it always does). Rooms that already declared an exit
+			// to it are republished too, which is harmless.
+			for (String neighbour : new ArrayList<String>(exits.values())) {
+				Map<String, String> neighbourExits = ps.getConnectingRooms(neighbour);
+				if (neighbourExits.containsValue(roomId)) {
+					publishExits(neighbour, neighbourExits);
+				}
+			}
+		} else if (!exits.equals(exitsBefore)) {
+			publishExits(roomId, exits);
+		}
+	}
+
+	private void publishExits(String roomId, Map<String, String> exits) {
+		DirectoryChange changed = new DirectoryChange(DirectoryChange.EXITS_CHANGED, roomId);
+		changed.setExits(exits);
+		changes.publish(changed);
+	}
+
+	private void publishEndpoints(String roomId) {
+		// read the room under the feed's lock, so that racing updates (a
+		// registration and the prober, say) are published in the order they happened.
+		synchronized (changes) {
+			RoomToEndpoints rte = roomDirectory.get(roomId);
+			DirectoryChange changed = new DirectoryChange(DirectoryChange.ENDPOINTS_CHANGED, roomId);
+			changed.setEndpoints(rte.getEndpoints());
+			changes.publish(changed);
+		}
+	}
+
+	/**
+	 * Every room, as the change feed sends them to a subscriber that is starting afresh.
+	 */
+	private List<DirectoryChange> currentRooms() {
+		List<DirectoryChange> rooms = new ArrayList<DirectoryChange>(roomDirectory.size());
+		for (String roomId : roomDirectory.getRoomIds()) {
+			RoomToEndpoints rte = roomDirectory.get(roomId);
+			if (rte == null) {
+				continue;
+			}
+			DirectoryChange room = new DirectoryChange(DirectoryChange.ROOM_REGISTERED, roomId);
+			room.setEndpoints(rte.getEndpoints());
+			room.setExits(ps.getConnectingRooms(roomId));
+			rooms.add(room);
+		}
+		return rooms;
+	}
+
+	/**
+	 * The feed of changes to the directory, see {@link ChangeFeedEndpoint}.
+	 */
+	public ChangeFeed getChangeFeed() {
+		return changes;
+	}
+
+	/**
+	 * Record how busy a registered room says it is.
+	 *
+	 * @return false if the room has not registered.
+	 */
+	public boolean reportOccupancy(String roomId, int occupancy) {
+		if (!roomDirectory.contains(roomId)) {
+			return false;
+		}
+		roomLoads.report(roomId, occupancy);
+		return true;
+	}
+
+	/**
+	 * The version of the directory, this moves on whenever a registration
+	 * (or anything else) changes what the concierge would answer.
+	 */
+	public long getVersion() {
+		return roomDirectory.getVersion();
 	}
 
 	public RoomToEndpoints getRoom(String roomId) {
 		return roomDirectory.get(roomId);
 	}
+
+	/**
+	 * Be told whenever a room's endpoints change, or a room is removed.
+	 */
+	public void addDirectoryListener(RoomDirectory.Listener listener) {
+		roomDirectory.addListener(listener);
+	}
 }
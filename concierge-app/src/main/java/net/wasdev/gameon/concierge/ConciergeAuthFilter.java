@@ -16,20 +16,18 @@
 package net.wasdev.gameon.concierge;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.TimeUnit;
+import java.security.GeneralSecurityException;
+import java.time.Clock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
 
 import javax.annotation.Resource;
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 import javax.inject.Inject;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -40,77 +38,61 @@ import javax.servlet.annotation.WebFilter;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import net.wasdev.gameon.concierge.Metrics.Counter;
+import net.wasdev.gameon.concierge.Metrics.Histogram;
+
+/**
+ * Checks the signature on each request, made with a shared secret or, for
+ * requests made on behalf of a player, with that player's API key.
+ * <p>
+ * When a player's key has to be fetched from the player service, the request
+ * is suspended rather than holding its thread, and dispatched back through
+ * this filter once the key arrives. If the container can't suspend the
+ * request we wait for the key instead.
+ * </p>
+ * <p>
+ * The query string is read once, noting where each parameter we need is, and
+ * each check works from that. Why a request was refused is only written out
+ * when it is, so requests that pass cost little more than the checks.
+ * </p>
+ */
 @WebFilter(
 		filterName = "registrationAuthFilter",
-		urlPatterns = {"/*"}
+		urlPatterns = {"/*"},
+		dispatcherTypes = {DispatcherType.REQUEST, DispatcherType.ASYNC},
+		asyncSupported = true
 		  )
 public class ConciergeAuthFilter implements Filter{
-	private static final String CHAR_SET = "UTF-8";
-	private static final String HMAC_ALGORITHM = "HmacSHA256";
 	private static long timeoutMS = 5000;		//timeout for requests, default to 5 seconds
+	/** how long a request waits for a player's key before giving up */
+	static final long KEY_LOOKUP_TIMEOUT_MS = 10000;
+	
+	/** request attribute holding the key lookup a suspended request is resumed with */
+	static final String RESOLVED_KEY = ConciergeAuthFilter.class.getName() + ".resolvedKey";
+	/** request attribute marking a request that has passed validation */
+	static final String AUTHENTICATED = ConciergeAuthFilter.class.getName() + ".authenticated";
 	
-    /** CDI injection of client for Player CRUD operations */
+    /** the API keys of players, loaded from the player service as needed */
     @Inject
-    PlayerClient playerClient;
+    ApiKeyCache apiKeys;
 	
 	@Resource(lookup="registrationSecret")
 	String registrationSecret;
 	@Resource(lookup="querySecret")
 	String querySecret;
 	
-
-	Map<String,TimestampedKey> apiKeyForId = Collections.synchronizedMap( new HashMap<String,TimestampedKey>() );
+	/** checks request signatures, keeping a keyed Mac for each secret */
+	private final HmacVerifier verifier = new HmacVerifier();
 	
-	/**
-	 * Timestamped API Key
-	 * Equality / Hashcode is determined by apikey string alone.
-	 * Sort order is provided by key timestamp.
-	 */
-	private final static class TimestampedKey implements Comparable<TimestampedKey> {
-		private final String apiKey;
-		private final Long time;
-		public TimestampedKey(String a){
-			this.apiKey=a; this.time=System.currentTimeMillis();
-		}
-		public TimestampedKey(String a,Long t){
-			this.apiKey=a; this.time=t;
-		}
-		@Override
-		public int compareTo(TimestampedKey o) {
-			return o.time.compareTo(time);
-		}
-		@Override
-		public int hashCode() {
-			final int prime = 31;
-			int result = 1;
-			result = prime * result + ((apiKey == null) ? 0 : apiKey.hashCode());
-			return result;
-		}
-		@Override
-		public boolean equals(Object obj) {
-			if (this == obj)
-				return true;
-			if (obj == null)
-				return false;
-			if (getClass() != obj.getClass())
-				return false;
-			TimestampedKey other = (TimestampedKey) obj;
-			if (apiKey == null) {
-				if (other.apiKey != null)
-					return false;
-			} else if (!apiKey.equals(other.apiKey))
-				return false;
-			return true;
-		}
-	}
-	
-	private static final Set<TimestampedKey> usedKeys = 
-			Collections.synchronizedSet(new LinkedHashSet<TimestampedKey>());	//keys already received, prevent replay attacks
+
+	//keys already received, prevent replay attacks
+	private static final ReplayDetector usedKeys = new ReplayDetector(Clock.systemUTC(), timeoutMS);
 	
 	//the authentication steps that are performed on an incoming request
 	private enum AuthenticationState {
 		hasQueryString,			//starting state
 		hasAPIKeyParam,
+		hasPlayerKey,
 		isAPIKeyValid,
 		hasKeyExpired,
 		checkReplay,
@@ -118,144 +100,181 @@ public class ConciergeAuthFilter implements Filter{
 		ACCESS_DENIED			//end state
 	}
 	
+	//how long each check takes, and how many requests each one refuses.
+	private static final Histogram[] stageTimes = new Histogram[AuthenticationState.PASSED.ordinal()];
+	private static final Counter[] denials = new Counter[AuthenticationState.PASSED.ordinal()];
+	static {
+		Metrics metrics = Metrics.getDefault();
+		for(int i = 0; i < stageTimes.length; i++){
+			String stage = AuthenticationState.values()[i].name();
+			stageTimes[i] = metrics.histogram("concierge_auth_stage_seconds", "Time taken by each request authentication check", "stage", stage);
+			denials[i] = metrics.counter("concierge_auth_denied_total", "Requests refused, by the check they failed", "stage", stage);
+		}
+		metrics.gauge("concierge_auth_replay_keys", "Request signatures remembered to refuse replays", new Metrics.Sample() {
+			@Override
+			public double get() {
+				return usedKeys.size();
+			}
+		});
+	}
+	
 	//ensure consistent parameter names
 	public enum Params {
 		apikey,
 		serviceID,
-		stamp;
+		stamp,
+		id;
 		
 		public String toString() {
 			return "&" + this.name() + "=";
 		}		
 	}
 	
+	private static final Params[] PARAMS = Params.values();
+	
 	@Override
 	public void init(FilterConfig filterConfig) throws ServletException {
 	}
 	
 	//a collection of details built up during validation.
 	private static class ValidationContext {
+		QueryParameters<Params> params;
+		boolean registration;
+		String playerId;
+		//why the player's key couldn't be had, if it was looked up and wasn't.
+		Throwable keyFailure;
 		public String apiKey;
 		long time;
-		int apiKeyOffset;
-		PrintWriter failLog;
+		//the length of the part of the query string that is signed.
+		int signedLength;
 	}
 	
 	/**
 	 * Check if the time stamp is considered expired.
 	 */
-	private static boolean hasExpired(Long value){
+	private static boolean hasExpired(long value){
 		return (System.currentTimeMillis() - value) > timeoutMS;
 	}
 	
 	/**
-	 * Check if the request has a query string.
+	 * Check if the request has a query string, and note where its parameters are.
 	 */
 	private boolean validateQueryStringIsPresent(ServletRequest request, ValidationContext ctx){
 		//check that there is a query string which will contain the service ID and api key
 		String queryString = ((HttpServletRequest) request).getQueryString();
-		ctx.failLog.println("AUTH: hasQuery? "+(queryString != null));
-		return (queryString != null);
+		if(queryString == null){
+			return false;
+		}
+		ctx.params = new QueryParameters<Params>(queryString, PARAMS);
+		return true;
 	}
 	
 	/**
-	 * Check if the request has an apiKey parameter
+	 * Check if the request has an apiKey parameter, after what it signs.
 	 */
 	private boolean validateApiKeyParamIsPresent(ServletRequest request, ValidationContext ctx){
-		//check there is an apikey parameter
-		String queryString = ((HttpServletRequest) request).getQueryString();
-		int pos = queryString.lastIndexOf(Params.apikey.toString());
-		ctx.apiKeyOffset = pos;
-		ctx.failLog.println("AUTH: hasApiKey? "+(pos != -1));
-		return (pos != -1); 
+		//the signature covers everything before the last apikey parameter (and the & in front of it).
+		int pos = ctx.params.lastIndexOf(Params.apikey);
+		ctx.signedLength = pos - 1;
+		return pos > 0; 
 	}
 	
 	/**
-	 * Obtain the id from the request, or null if there wasn't one.
+	 * Obtain the apiKey for the given id, using a local cache to avoid hitting couchdb too much.
+	 * If the request was suspended while the key was fetched, this is the key it was resumed with.
 	 */
-	private String getIdForRequest(ServletRequest request, ValidationContext ctx){
-		String id = request.getParameter("id");
-		return id;
+	private CompletableFuture<String> getAPIKeyForId(String id, ServletRequest request){
+		@SuppressWarnings("unchecked")
+		CompletableFuture<String> resolved = (CompletableFuture<String>) request.getAttribute(RESOLVED_KEY);
+		if(resolved!=null){
+			request.removeAttribute(RESOLVED_KEY);
+			return resolved;
+		}
+		return apiKeys.getAsync(id);
 	}
 	
 	/**
-	 * Obtain the apiKey for the given id, using a local cache to avoid hitting couchdb too much.
+	 * The key from a lookup that has finished (or that we have to wait for).
 	 */
-	private String getAPIKeyForId(String id, ValidationContext ctx){
+	private String keyFrom(CompletableFuture<String> lookup, ValidationContext ctx){
 		String key = null;
-		//check cache for this id.
-		TimestampedKey t = apiKeyForId.get(id);
-		ctx.failLog.println("AUTH: cache hit? "+(t != null));
-		if(t!=null){
-			//cache hit, but is the key still valid?
-			long current = System.currentTimeMillis();
-			current -= t.time;			
-			//if the key is older than this time period.. we'll consider it dead.
-			boolean valid = current < TimeUnit.DAYS.toMillis(1);	
-			ctx.failLog.println("AUTH: cache still valid? "+(valid));
-			if(valid){							
-				//key is good.. we'll use it.
-				key = t.apiKey;
-			}else{
-				//key has expired.. forget it.
-				apiKeyForId.remove(id);
-				t=null;
-			}
-		}
-		if(t == null){
-			//key was not in cache, or was expired..
-			//go obtain the apiKey via player Rest endpoint.
-			try{
-				key = playerClient.getApiKey(id);
-			}catch(Exception e){
-				ctx.failLog.println("AUTH: unable to obtain key from player service?"+(key!=null));
-				key=null;
-			}			
-			ctx.failLog.println("AUTH: obtained key from player service?"+(key!=null));
-			//got a key ? add it to the cache.
-			if(key!=null){
-				t = new TimestampedKey(key);
-				apiKeyForId.put(id, t);
-			}
+		try{
+			key = lookup.get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			ctx.keyFailure = e;
+		}catch(ExecutionException e){
+			ctx.keyFailure = e.getCause();
 		}
 		return key;
 	}
 	
+	/**
+	 * Free the request's thread until its player's key arrives, then send it
+	 * through the filter again to finish validating it.
+	 */
+	private void suspendUntilKeyArrives(ServletRequest request, final CompletableFuture<String> lookup){
+		final AsyncContext ac = request.startAsync();
+		ac.setTimeout(KEY_LOOKUP_TIMEOUT_MS);
+		ac.addListener(new AsyncListener() {
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException {
+				((HttpServletResponse) event.getSuppliedResponse()).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+						"AUTH: timed out obtaining key from player service");
+				ac.complete();
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) {
+			}
+
+			@Override
+			public void onError(AsyncEvent event) {
+			}
+
+			@Override
+			public void onComplete(AsyncEvent event) {
+			}
+		});
+		lookup.whenComplete(new BiConsumer<String, Throwable>() {
+			@Override
+			public void accept(String key, Throwable failure) {
+				try{
+					ac.getRequest().setAttribute(RESOLVED_KEY, lookup);
+					ac.dispatch();
+				}catch(IllegalStateException e){
+					// the request timed out, and has been answered already.
+				}
+			}
+		});
+	}
+	
 	/**
 	 *	Validate the apikey on the request matches the expected value for this user id.
 	 */
-	private boolean validateApiKeyContent(ServletRequest request, String id, String secret, ValidationContext ctx) throws IOException{
-		String queryString = ((HttpServletRequest) request).getQueryString();
-		String sharedSecret = secret;
-		
-		//if there's an id present in the request, then we need to look up the apiKey for that id.
-		ctx.failLog.println("AUTH: id param? "+(id != null));
-		if(id!=null){						
-			sharedSecret = getAPIKeyForId(id, ctx);
-		}		
-		
+	private boolean validateApiKeyContent(ServletRequest request, String sharedSecret, ValidationContext ctx) throws IOException{
 		if(sharedSecret==null){
 			return false;
 		}
 		
 		//validate API key against all parameters (except the API key itself)
+		String queryString = ((HttpServletRequest) request).getQueryString();
 		
-		//remove API key from end of query string
-		queryString = queryString.substring(0, ctx.apiKeyOffset);	
-		
-		//calculate hmac using API key.
-		String hmac = request.getParameter(Params.apikey.name());
-		String apikey = digest(queryString,sharedSecret);
-		
-		if(!apikey.equals(hmac))
-		  System.out.println("Hmac mismatch:\n Recieved:   "+hmac+"\n"+
-		                     " Calculated: "+apikey);
+		//check the hmac using API key.
+		String hmac = ctx.params.get(Params.apikey);
+		boolean valid;
+		try {
+			valid = verifier.verify(sharedSecret, queryString, ctx.signedLength, hmac);
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
 		
-		//store the apiKey for the replay check
-		ctx.apiKey = apikey;
+		if(!valid && hmac!=null)
+		  Log.warn("auth.hmacMismatch", "registration", ctx.registration, "player", ctx.playerId, "received", hmac);
 		
-		ctx.failLog.println("AUTH: api key validated?"+(apikey.equals(hmac)));
-		return apikey.equals(hmac); 
+		//store the apiKey for the replay check, it is only used once the hmac has matched.
+		ctx.apiKey = hmac;
+		return valid; 
 	}
 	
 	/**
@@ -263,77 +282,120 @@ public class ConciergeAuthFilter implements Filter{
 	 */
 	private boolean validateIfKeyIsStillValid(ServletRequest request, ValidationContext ctx){
 		//check that key has not timed out
-		long time = Long.parseLong(request.getParameter(Params.stamp.name()));
-		ctx.failLog.println("AUTH: api key expired?"+hasExpired(time));
+		long time = ctx.params.getLong(Params.stamp);
 		ctx.time = time;
-		return !hasExpired(time);
+		return time != -1 && !hasExpired(time);
 	}
 	
 	/**
 	 * Check if we have seen this key before.
 	 */
 	private boolean validateIfKeyIsNotReplay(ServletRequest request, ValidationContext ctx){
-		//simple replay check - only allows the one time use of API keys, storing time allows expired keys to be purged
-		boolean notAlreadyPresent = usedKeys.add(new TimestampedKey(ctx.apiKey, ctx.time));
-		//the set of keys is sorted with oldest (smallest) timestamp first so we can iterate from the oldest key, 
-		//and remove all expired ones.
-		synchronized(usedKeys){
-			Iterator<TimestampedKey> i = usedKeys.iterator();
-			while(i.hasNext()){
-				TimestampedKey k = i.next();
-				if(hasExpired(k.time)){
-					i.remove();
-				}else{
+		//only allows the one time use of API keys, keys are forgotten once their stamp has expired.
+		return usedKeys.firstUse(ctx.apiKey, ctx.time);
+	}
+	
+	/**
+	 * Explain why a request was refused, going through the checks it passed up to the one it failed.
+	 */
+	private static String describeDenial(AuthenticationState failed, ValidationContext ctx){
+		StringBuilder log = new StringBuilder();
+		log.append(ctx.registration ? "AUTH: room registration request\n" : "AUTH: concierge query request\n");
+		for(AuthenticationState state : AuthenticationState.values()){
+			boolean passed = state != failed;
+			switch(state){
+				case hasQueryString :
+					log.append("AUTH: hasQuery? ").append(passed).append('\n');
+					break;
+				case hasAPIKeyParam :
+					log.append("AUTH: hasApiKey? ").append(passed).append('\n');
+					break;
+				case hasPlayerKey :
+					log.append("AUTH: id param? ").append(ctx.playerId != null).append('\n');
+					if(ctx.playerId != null){
+						if(ctx.keyFailure != null){
+							log.append("AUTH: unable to obtain key from player service? ").append(ctx.keyFailure).append('\n');
+						}
+						log.append("AUTH: obtained key? ").append(passed).append('\n');
+					}
+					break;
+				case isAPIKeyValid :
+					log.append("AUTH: api key validated? ").append(passed).append('\n');
+					break;
+				case hasKeyExpired :
+					log.append("AUTH: api key expired? ").append(!passed).append('\n');
+					break;
+				case checkReplay :
+					log.append("AUTH: api key isReplay? ").append(!passed).append('\n');
+					break;
+				default :
 					break;
-				}
+			}
+			if(!passed){
+				break;
 			}
 		}
-		ctx.failLog.println("AUTH: api key isReplay?"+notAlreadyPresent);
-		return notAlreadyPresent;	
+		return log.toString();
 	}
 
 	@Override
 	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
 			throws IOException, ServletException {
 		
+		//a request that was resumed after it passed needs no more checks.
+		if(request.getDispatcherType()==DispatcherType.ASYNC && request.getAttribute(AUTHENTICATED)!=null){
+			chain.doFilter(request, response);
+			return;
+		}
+		
 		//we're a single filter, but we protect different paths with different keys.		
 		HttpServletRequest http = (HttpServletRequest) request;		
 		String requestUri = http.getRequestURI();
-		String path = requestUri.substring(http.getContextPath().length());
 		
-		//create a log of the steps we perform during validation to assist with auth failures.
-		StringWriter sw = new StringWriter();
-		PrintWriter authLog = new PrintWriter(sw);
-		
-		//decide which secret to secure the request with, if registration
-		//we use the registration secret, othewise, use query secret.
-		String sharedSecret;
-		if("/registerRoom".equals(path)){
-			sharedSecret = registrationSecret;
-			authLog.println("AUTH: room registration request");
-		}else{
-			sharedSecret = querySecret;
-			authLog.println("AUTH: concierge query request");
+		//metrics are scraped by something that can't sign requests.
+		if(isMetricsPath(requestUri, http.getContextPath().length())){
+			chain.doFilter(request, response);
+			return;
 		}
 		
 		ValidationContext ctx = new ValidationContext();
-		ctx.failLog = authLog;
 		
-		String playerId = null;
+		//decide which secret to secure the request with, if registration
+		//we use the registration secret, othewise, use query secret.
+		ctx.registration = isRegistrationPath(requestUri, http.getContextPath().length());
+		String sharedSecret = ctx.registration ? registrationSecret : querySecret;
 	
 		AuthenticationState state = AuthenticationState.hasQueryString;		//default
+		AuthenticationState checking = state;
 		while(!state.equals(AuthenticationState.PASSED)) {
+			if(state != AuthenticationState.ACCESS_DENIED){
+				checking = state;
+			}
+			long stageStart = System.nanoTime();
 			switch(state) {
 				case hasQueryString :
 					state = validateQueryStringIsPresent(request,ctx) ? AuthenticationState.hasAPIKeyParam : AuthenticationState.ACCESS_DENIED;
 					break;
 				case hasAPIKeyParam :	
-					state = validateApiKeyParamIsPresent(request,ctx)? AuthenticationState.isAPIKeyValid : AuthenticationState.ACCESS_DENIED;
+					state = validateApiKeyParamIsPresent(request,ctx)? AuthenticationState.hasPlayerKey : AuthenticationState.ACCESS_DENIED;
 					break;
-				case isAPIKeyValid :	
+				case hasPlayerKey :
 					//remember the id for the request, to pass to the service if validation succeeds.
-					playerId = getIdForRequest(request, ctx);
-					state = validateApiKeyContent(request,playerId,sharedSecret,ctx) ?  AuthenticationState.hasKeyExpired : AuthenticationState.ACCESS_DENIED;
+					ctx.playerId = ctx.params.get(Params.id);
+					//if there's an id present in the request, then we need to look up the apiKey for that id.
+					if(ctx.playerId!=null){
+						CompletableFuture<String> lookup = getAPIKeyForId(ctx.playerId, request);
+						if(!lookup.isDone() && request.isAsyncSupported()){
+							//don't hold the thread while the player service answers, we'll be back.
+							suspendUntilKeyArrives(request, lookup);
+							return;
+						}
+						sharedSecret = keyFrom(lookup, ctx);
+					}
+					state = sharedSecret != null ? AuthenticationState.isAPIKeyValid : AuthenticationState.ACCESS_DENIED;
+					break;
+				case isAPIKeyValid :	
+					state = validateApiKeyContent(request,sharedSecret,ctx) ?  AuthenticationState.hasKeyExpired : AuthenticationState.ACCESS_DENIED;
 					break;
 				case hasKeyExpired :	
 					state = validateIfKeyIsStillValid(request,ctx) ?  AuthenticationState.checkReplay : AuthenticationState.ACCESS_DENIED;
@@ -343,35 +405,42 @@ public class ConciergeAuthFilter implements Filter{
 					break;
 				case ACCESS_DENIED :
 				default :
-					((HttpServletResponse)response).sendError(HttpServletResponse.SC_FORBIDDEN, sw.toString());
+					denials[checking.ordinal()].increment();
+					((HttpServletResponse)response).sendError(HttpServletResponse.SC_FORBIDDEN, describeDenial(checking, ctx));
 					return;
 			}
+			stageTimes[checking.ordinal()].recordSince(stageStart);
 		}
-		authLog.close();
 		
 		//request has passed all validation checks, so allow it to proceed
 		//set the validated player id into the request as an attribute.
-        request.setAttribute("player.id", playerId);
-		request.setAttribute(Params.serviceID.name(), request.getParameter(Params.serviceID.name()));
+        request.setAttribute("player.id", ctx.playerId);
+		request.setAttribute(AUTHENTICATED, Boolean.TRUE);
+		if(ctx.params.has(Params.serviceID)){
+			request.setAttribute(Params.serviceID.name(), ctx.params.get(Params.serviceID));
+		}
 		
 		//invoke the service
 		chain.doFilter(request, response);		
 	}
 	
-	/*
-	 * Construct a HMAC for this request.
-	 * It is then base 64 and URL encoded ready for transmission as a query parameter.
+	/**
+	 * Registration, and the updates rooms send about themselves afterwards,
+	 * are protected by the registration secret.
 	 */
-	private String digest(String message, String sharedSecret) throws IOException {
-		try {
-			byte[] data = message.getBytes(CHAR_SET);
-			Mac mac = Mac.getInstance(HMAC_ALGORITHM);
-			SecretKeySpec key = new SecretKeySpec(sharedSecret.getBytes(CHAR_SET), HMAC_ALGORITHM);
-			mac.init(key);
-			return javax.xml.bind.DatatypeConverter.printBase64Binary(mac.doFinal(data));
-		} catch (Exception e) {
-			throw new IOException(e);
-		}
+	private static boolean isRegistrationPath(String uri, int pathStart){
+		int length = uri.length() - pathStart;
+		return (length == "/registerRoom".length() && uri.startsWith("/registerRoom", pathStart))
+				|| (length == "/registerRooms".length() && uri.startsWith("/registerRooms", pathStart))
+				|| uri.startsWith("/registerRoom/", pathStart);
+	}
+	
+	/**
+	 * The metrics, scraped by Prometheus, are served without a signature.
+	 */
+	private static boolean isMetricsPath(String uri, int pathStart){
+		return uri.length() - pathStart == MetricsEndpoint.PATH.length() + 1
+				&& uri.charAt(pathStart) == '/' && uri.startsWith(MetricsEndpoint.PATH, pathStart + 1);
 	}
 	
 	@Override
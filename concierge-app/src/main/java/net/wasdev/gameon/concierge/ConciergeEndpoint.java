@@ -15,69 +15,106 @@
  *******************************************************************************/
 package net.wasdev.gameon.concierge;
 
+import java.io.IOException;
+import java.util.List;
+
 import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 
+import net.wasdev.gameon.concierge.ResponseCache.CachedResponse;
+import net.wasdev.gameon.room.common.OccupancyReport;
 import net.wasdev.gameon.room.common.Room;
-import net.wasdev.gameon.room.common.RoomToEndpoints;
-import net.wasdev.gameon.room.common.RoomToEndpointsWrapper;
 
 @Path("/")
 public class ConciergeEndpoint {
 
     @Context
     HttpServletRequest httpRequest;
+
+    @Context
+    Request request;
 	
 	@Inject
 	Concierge c;
 
+	@Inject
+	ResponseCache cache;
+
 	@GET
 	@Path("startingRoom")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response getStartingRoom() {
-		RoomToEndpoints startingRoom = c.getStartingRoom();
+	public Response getStartingRoom() throws IOException {
+		CachedResponse startingRoom = cache.getStartingRoom();
 
 		if ( startingRoom == null )
 			return Response.status(404).build();
 
-		RoomToEndpointsWrapper ew = new RoomToEndpointsWrapper();
-		ew.setRel(startingRoom);
-		return Response.ok(ew).build();
+		return respond(startingRoom);
 	}
 
 	@GET
 	@Path("rooms/{roomId}/{exitName}")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response exitRoom(@PathParam("roomId") String roomId, @PathParam("exitName") String exitName) {
-		RoomToEndpoints ec = c.exitRoom(roomId, exitName);
+	public Response exitRoom(@PathParam("roomId") String roomId, @PathParam("exitName") String exitName) throws IOException {
+		CachedResponse ec = cache.exitRoom(roomId, exitName);
 
-		if ( ec.getEndpoints().isEmpty() )
+		if ( ec == null )
 			return Response.status(404).build();
 
-		RoomToEndpointsWrapper ew = new RoomToEndpointsWrapper();
-		ew.setRel(ec);
-		return Response.ok(ew).build();
+		return respond(ec);
 	}
 
 	@GET
 	@Path("rooms/{roomId}")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response getARoom(@PathParam("roomId") String roomId) {
-		RoomToEndpointsWrapper ew = new RoomToEndpointsWrapper();
-		ew.setRel(c.getRoom(roomId));
-		return Response.ok(ew).build();
+	public Response getARoom(@PathParam("roomId") String roomId) throws IOException {
+		return respond(cache.getRoom(roomId));
 	}
 
+	/**
+	 * A room, and the rooms behind all of its exits, in one request. With
+	 * depth=2 the exits of those rooms are resolved too.
+	 */
+	@GET
+	@Path("neighbourhood/{roomId}")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response getNeighbourhood(@PathParam("roomId") String roomId, @DefaultValue("1") @QueryParam("depth") int depth) throws IOException {
+		if ( depth < 1 || depth > Concierge.MAX_NEIGHBOURHOOD_DEPTH )
+			return Response.status(400).build();
 
+		CachedResponse neighbourhood = cache.getNeighbourhood(roomId, depth);
+
+		if ( neighbourhood == null )
+			return Response.status(404).build();
+
+		return respond(neighbourhood);
+	}
+
+	/**
+	 * Send a cached body, or just 304 if the client already has it.
+	 */
+	private Response respond(CachedResponse cached) {
+		EntityTag etag = new EntityTag(cached.getEtag());
+		ResponseBuilder notModified = request.evaluatePreconditions(etag);
+		if ( notModified != null )
+			return notModified.tag(etag).build();
+
+		return Response.ok(cached.getBody(), MediaType.APPLICATION_JSON_TYPE).tag(etag).build();
+	}
 
 	@POST
 	@Path("registerRoom")
@@ -92,5 +129,51 @@ public class ConciergeEndpoint {
 		return Response.ok(c.registerRoom(room,authId)).build();
 	}
 
+	/**
+	 * Register a whole batch of rooms with one request, the response lists
+	 * the outcome for each room in the order they were sent.
+	 */
+	@POST
+	@Path("registerRooms")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response registerRooms(List<Room> rooms) {
+		if ( rooms == null )
+			return Response.status(400).build();
+
+        // set by the auth filter.
+        String authId = (String) httpRequest.getAttribute("player.id");
+        if(authId==null){
+        	authId = "GameOn!";
+        }
+		return Response.ok(c.registerRooms(rooms,authId)).build();
+	}
+
+	@POST
+	@Path("registerRoom/{roomId}/occupancy")
+	@Consumes(MediaType.APPLICATION_JSON)
+	public Response reportOccupancy(@PathParam("roomId") String roomId, OccupancyReport report) {
+		if ( report == null )
+			return Response.status(400).build();
+
+		if ( !c.reportOccupancy(roomId, report.getOccupancy()) )
+			return Response.status(404).build();
+
+		return Response.noContent().build();
+	}
+
+	/**
+	 * Renew a room's lease, or just the lease for one of its endpoints.
+	 * A 404 means the lease has already expired, and the room must register again.
+	 */
+	@POST
+	@Path("registerRoom/{roomId}/heartbeat")
+	public Response heartbeat(@PathParam("roomId") String roomId, @QueryParam("endPoint") String endpoint) {
+		if ( !c.heartbeat(roomId, endpoint) )
+			return Response.status(404).build();
+
+		return Response.noContent().build();
+	}
+
 
 }
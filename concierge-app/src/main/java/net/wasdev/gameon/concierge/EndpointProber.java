@@ -0,0 +1,327 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.wasdev.gameon.room.common.RoomToEndpoints;
+
+/**
+ * Periodically checks that the endpoints rooms have registered can still be
+ * reached, so that we stop handing out dead ones.
+ * <p>
+ * Each round connects to every registered endpoint, using at most
+ * {@code concurrency} probes at once. Endpoints are then ranked: reachable
+ * endpoints first, fastest to connect to first, then endpoints we have not
+ * checked yet, then endpoints that failed their last check. An endpoint that
+ * fails {@link #DROP_AFTER_FAILURES} checks in a row is removed from its room,
+ * as long as the room has another endpoint that is working.
+ * </p>
+ */
+public class EndpointProber {
+
+	public static final int DEFAULT_CONCURRENCY = 4;
+	public static final long DEFAULT_INTERVAL_MS = TimeUnit.SECONDS.toMillis(30);
+	public static final int DEFAULT_CONNECT_TIMEOUT_MS = 2000;
+	public static final int DROP_AFTER_FAILURES = 5;
+
+	/** score for endpoints we have not checked, worse than any working endpoint */
+	private static final long UNCHECKED = 1L << 62;
+
+	/**
+	 * How an endpoint is checked.
+	 */
+	public interface Probe {
+		/**
+		 * Try to connect to an endpoint.
+		 *
+		 * @return how long the connection took in nanoseconds, or -1 if it could not be made.
+		 */
+		long connect(String endpoint);
+	}
+
+	/**
+	 * Told about endpoints that keep failing, to remove them from their room.
+	 */
+	public interface Removal {
+		void remove(String roomId, String endpoint);
+	}
+
+	/**
+	 * Checks an endpoint by opening, and closing, a TCP connection to the host
+	 * and port in its URL.
+	 */
+	public static class TcpProbe implements Probe {
+		private final int timeoutMS;
+
+		public TcpProbe(int timeoutMS) {
+			this.timeoutMS = timeoutMS;
+		}
+
+		@Override
+		public long connect(String endpoint) {
+			InetSocketAddress address;
+			try {
+				URI uri = URI.create(endpoint);
+				if (uri.getHost() == null) {
+					return -1;
+				}
+				address = new InetSocketAddress(uri.getHost(), port(uri));
+			} catch (IllegalArgumentException e) {
+				return -1;
+			}
+			if (address.isUnresolved()) {
+				return -1;
+			}
+			long start = System.nanoTime();
+			try (Socket socket = new Socket()) {
+				socket.connect(address, timeoutMS);
+				return System.nanoTime() - start;
+			} catch (IOException e) {
+				return -1;
+			}
+		}
+
+		private static int port(URI uri) {
+			if (uri.getPort() != -1) {
+				return uri.getPort();
+			}
+			String scheme = uri.getScheme();
+			return "wss".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme) ? 443 : 80;
+		}
+	}
+
+	/** What the last check of an endpoint found */
+	private static final class Health {
+		/** connect time from the last successful check */
+		private final long latency;
+		/** checks failed in a row */
+		private final int failures;
+
+		Health(long latency, int failures) {
+			this.latency = latency;
+			this.failures = failures;
+		}
+
+		boolean isUp() {
+			return failures == 0;
+		}
+	}
+
+	private final RoomDirectory directory;
+	private final Probe probe;
+	private final int concurrency;
+	private final Removal removal;
+	private final ConcurrentMap<String, Health> health = new ConcurrentHashMap<String, Health>();
+	private final RoomDirectory.Ranking ranking = new RoomDirectory.Ranking() {
+		@Override
+		public long score(String endpoint) {
+			Health h = health.get(endpoint);
+			if (h == null) {
+				return UNCHECKED;
+			}
+			return h.isUp() ? h.latency : UNCHECKED + h.failures;
+		}
+	};
+
+	private ExecutorService workers;
+	private ScheduledExecutorService timer;
+
+	public EndpointProber(RoomDirectory directory) {
+		this(directory, new TcpProbe(DEFAULT_CONNECT_TIMEOUT_MS), DEFAULT_CONCURRENCY);
+	}
+
+	public EndpointProber(RoomDirectory directory, Probe probe, int concurrency) {
+		this(directory, probe, concurrency, null);
+	}
+
+	/**
+	 * @param removal removes the endpoints that keep failing, or null to
+	 *            remove them from the directory directly.
+	 */
+	public EndpointProber(final RoomDirectory directory, Probe probe, int concurrency, Removal removal) {
+		this.directory = directory;
+		this.probe = probe;
+		this.concurrency = concurrency;
+		this.removal = removal != null ? removal : new Removal() {
+			@Override
+			public void remove(String roomId, String endpoint) {
+				directory.removeEndpoint(roomId, endpoint);
+			}
+		};
+		this.workers = Executors.newFixedThreadPool(concurrency, new ProberThreadFactory("concierge-prober"));
+	}
+
+	/**
+	 * The order endpoints should be handed out in, best first.
+	 */
+	public RoomDirectory.Ranking getRanking() {
+		return ranking;
+	}
+
+	/**
+	 * Check every endpoint every {@code intervalMS}, until stopped.
+	 */
+	public synchronized void start(long intervalMS) {
+		if (timer != null) {
+			return;
+		}
+		timer = Executors.newSingleThreadScheduledExecutor(new ProberThreadFactory("concierge-prober-timer"));
+		timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					probeAll();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (RuntimeException e) {
+					// keep probing next time round.
+					Log.error("probe.failed", "error", e.toString());
+				}
+			}
+		}, intervalMS, intervalMS, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if (timer != null) {
+			timer.shutdownNow();
+			timer = null;
+		}
+		workers.shutdownNow();
+	}
+
+	/**
+	 * Check every endpoint in the directory once, and wait for the checks to finish.
+	 */
+	public void probeAll() throws InterruptedException {
+		List<String> roomIds = new ArrayList<String>(directory.getRoomIds());
+		Set<String> endpoints = new HashSet<String>();
+		final Semaphore permits = new Semaphore(concurrency);
+		try {
+			for (String roomId : roomIds) {
+				RoomToEndpoints rte = directory.get(roomId);
+				if (rte == null) {
+					continue;
+				}
+				for (final String endpoint : rte.getEndpoints()) {
+					if (!endpoints.add(endpoint)) {
+						continue;
+					}
+					permits.acquire();
+					try {
+						workers.execute(new Runnable() {
+							@Override
+							public void run() {
+								try {
+									record(endpoint, probe.connect(endpoint));
+								} finally {
+									permits.release();
+								}
+							}
+						});
+					} catch (RejectedExecutionException e) {
+						// we've been stopped.
+						permits.release();
+						return;
+					}
+				}
+			}
+		} finally {
+			// wait for the last probes of this round to finish.
+			permits.acquire(concurrency);
+			permits.release(concurrency);
+		}
+
+		// forget endpoints that are no longer registered.
+		health.keySet().retainAll(endpoints);
+
+		for (String roomId : roomIds) {
+			dropDeadEndpoints(roomId);
+			directory.rerank(roomId);
+		}
+	}
+
+	private void record(String endpoint, long latency) {
+		Health previous = health.get(endpoint);
+		if (latency >= 0) {
+			health.put(endpoint, new Health(latency, 0));
+		} else {
+			health.put(endpoint, new Health(-1, previous == null ? 1 : previous.failures + 1));
+		}
+	}
+
+	/**
+	 * Remove endpoints that keep failing, provided the room has one that works.
+	 */
+	private void dropDeadEndpoints(String roomId) {
+		RoomToEndpoints rte = directory.get(roomId);
+		if (rte == null) {
+			return;
+		}
+		boolean hasLiveEndpoint = false;
+		for (String endpoint : rte.getEndpoints()) {
+			Health h = health.get(endpoint);
+			if (h != null && h.isUp()) {
+				hasLiveEndpoint = true;
+				break;
+			}
+		}
+		if (!hasLiveEndpoint) {
+			return;
+		}
+		for (String endpoint : rte.getEndpoints()) {
+			Health h = health.get(endpoint);
+			if (h != null && h.failures >= DROP_AFTER_FAILURES) {
+				Log.warn("probe.dropped", "room", roomId, "endPoint", endpoint);
+				removal.remove(roomId, endpoint);
+				health.remove(endpoint);
+			}
+		}
+	}
+
+	private static final class ProberThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+		private final String name;
+
+		ProberThreadFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
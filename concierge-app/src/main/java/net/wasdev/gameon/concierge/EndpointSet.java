@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The endpoints a room has registered, without duplicates.
+ * <p>
+ * Endpoints are kept in the order they were (re)registered. Registering an
+ * endpoint that is already present just makes it the most recent again, and
+ * once a room has more than {@code capacity} endpoints the one that was
+ * registered longest ago is dropped. A room that re-registers on every
+ * restart therefore never grows past a fixed size.
+ * </p>
+ * <p>
+ * Instances are immutable, every change returns a new set.
+ * </p>
+ */
+public final class EndpointSet {
+
+	/** Default number of endpoints kept per room */
+	public static final int DEFAULT_CAPACITY = 8;
+
+	private static final EndpointSet EMPTY = new EndpointSet(new String[0]);
+
+	/** oldest registration first */
+	private final String[] endpoints;
+
+	private EndpointSet(String[] endpoints) {
+		this.endpoints = endpoints;
+	}
+
+	public static EndpointSet empty() {
+		return EMPTY;
+	}
+
+	/**
+	 * Register an endpoint, dropping the stalest endpoints if that takes us over capacity.
+	 *
+	 * @return the updated set, or this set if nothing changed.
+	 */
+	public EndpointSet add(String endpoint, int capacity) {
+		if (endpoint == null) {
+			return this;
+		}
+		int existing = indexOf(endpoint);
+		if (existing >= 0 && existing == endpoints.length - 1) {
+			// already the most recent registration
+			return this;
+		}
+		int kept = endpoints.length - (existing >= 0 ? 1 : 0);
+		int skip = Math.max(0, kept + 1 - capacity);
+		String[] updated = new String[kept + 1 - skip];
+		int j = 0;
+		for (int i = 0; i < endpoints.length; i++) {
+			if (i == existing) {
+				continue;
+			}
+			if (skip > 0) {
+				skip--;
+				continue;
+			}
+			updated[j++] = endpoints[i];
+		}
+		updated[j] = endpoint;
+		return new EndpointSet(updated);
+	}
+
+	/**
+	 * Forget an endpoint.
+	 *
+	 * @return the updated set, or this set if the endpoint was not present.
+	 */
+	public EndpointSet remove(String endpoint) {
+		int existing = indexOf(endpoint);
+		if (existing < 0) {
+			return this;
+		}
+		String[] updated = new String[endpoints.length - 1];
+		System.arraycopy(endpoints, 0, updated, 0, existing);
+		System.arraycopy(endpoints, existing + 1, updated, existing, endpoints.length - existing - 1);
+		return new EndpointSet(updated);
+	}
+
+	public boolean contains(String endpoint) {
+		return indexOf(endpoint) >= 0;
+	}
+
+	public int size() {
+		return endpoints.length;
+	}
+
+	/**
+	 * An unmodifiable list of the endpoints, most recently registered first.
+	 */
+	public List<String> asList() {
+		List<String> list = new ArrayList<String>(endpoints.length);
+		for (int i = endpoints.length - 1; i >= 0; i--) {
+			list.add(endpoints[i]);
+		}
+		return Collections.unmodifiableList(list);
+	}
+
+	private int indexOf(String endpoint) {
+		for (int i = 0; i < endpoints.length; i++) {
+			if (endpoints[i].equals(endpoint)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Exit names as rooms and players spell them, reduced to one canonical form.
+ * <p>
+ * The compass directions (and up and down) are recognised in full, or by
+ * their first letter, in lower, upper or title case: {@code N}, {@code n},
+ * {@code North}, {@code north} and {@code NORTH} are all {@code north}.
+ * Any other name is just lower cased. Looking up one of the common spellings
+ * is a single hash lookup that allocates nothing.
+ * </p>
+ */
+public final class ExitNames {
+
+	private static final String[] DIRECTIONS = { "north", "south", "east", "west", "up", "down" };
+
+	private static final Map<String, String> CANONICAL = new HashMap<String, String>();
+	static {
+		for (String direction : DIRECTIONS) {
+			String titleCase = Character.toUpperCase(direction.charAt(0)) + direction.substring(1);
+			String letter = direction.substring(0, 1);
+			CANONICAL.put(direction, direction);
+			CANONICAL.put(titleCase, direction);
+			CANONICAL.put(direction.toUpperCase(Locale.ROOT), direction);
+			CANONICAL.put(letter, direction);
+			CANONICAL.put(letter.toUpperCase(Locale.ROOT), direction);
+		}
+	}
+
+	private ExitNames() {
+	}
+
+	/**
+	 * @return the canonical form of an exit name, or null for a null name.
+	 */
+	public static String canonical(String exitName) {
+		if (exitName == null) {
+			return null;
+		}
+		String canonical = CANONICAL.get(exitName);
+		if (canonical != null) {
+			return canonical;
+		}
+		// returns the same string when it is already lower case.
+		return exitName.toLowerCase(Locale.ROOT);
+	}
+}
@@ -0,0 +1,207 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Checks HMAC-SHA256 signatures without setting up a {@link Mac} each time.
+ * <p>
+ * A {@link Mac} is keyed once per secret, and each thread keeps clones of
+ * the ones it has used recently, so checking a signature is just the hash
+ * itself. The received signature is decoded into a per thread buffer and
+ * compared with the computed one in constant time, so the check neither
+ * allocates (for ASCII messages, which query strings are) nor leaks how much
+ * of a signature was right.
+ * </p>
+ */
+public class HmacVerifier {
+
+	static final String HMAC_ALGORITHM = "HmacSHA256";
+	/** Length of an HMAC-SHA256 */
+	static final int MAC_LENGTH = 32;
+	/** Keyed Macs kept to clone from, beyond this they are all dropped and built again */
+	static final int MAX_KEYS = 1024;
+	/** Keyed Macs each thread keeps for reuse */
+	private static final int THREAD_CACHE_SLOTS = 8;
+
+	private static final byte[] BASE64_VALUES = new byte[128];
+	static {
+		Arrays.fill(BASE64_VALUES, (byte) -1);
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		for (int i = 0; i < alphabet.length(); i++) {
+			BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+		}
+	}
+
+	/** secret -> a Mac keyed with it, cloned by each thread that needs it */
+	private final ConcurrentMap<String, Mac> keyed = new ConcurrentHashMap<String, Mac>();
+
+	/** What each thread reuses from one check to the next */
+	private static final class Scratch {
+		private final String[] secrets = new String[THREAD_CACHE_SLOTS];
+		private final Mac[] macs = new Mac[THREAD_CACHE_SLOTS];
+		private final byte[] received = new byte[MAC_LENGTH];
+		private final byte[] computed = new byte[MAC_LENGTH];
+		private byte[] message = new byte[512];
+	}
+
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	/**
+	 * Check that {@code signature} is the Base64 HMAC-SHA256 of {@code message} keyed with {@code secret}.
+	 */
+	public boolean verify(String secret, String message, String signature) throws GeneralSecurityException {
+		return message != null && verify(secret, message, message.length(), signature);
+	}
+
+	/**
+	 * Check that {@code signature} is the signature of the first {@code length}
+	 * characters of {@code message}, without copying them out.
+	 */
+	public boolean verify(String secret, String message, int length, String signature) throws GeneralSecurityException {
+		if (secret == null || message == null || signature == null) {
+			return false;
+		}
+		Scratch s = scratch.get();
+		if (!decode(signature, s.received)) {
+			return false;
+		}
+		Mac mac = macFor(secret, s);
+		update(mac, message, length, s);
+		mac.doFinal(s.computed, 0);
+		return MessageDigest.isEqual(s.computed, s.received);
+	}
+
+	/**
+	 * The Base64 HMAC-SHA256 of {@code message} keyed with {@code secret}.
+	 */
+	public String sign(String secret, String message) throws GeneralSecurityException {
+		Scratch s = scratch.get();
+		Mac mac = macFor(secret, s);
+		update(mac, message, message.length(), s);
+		return Base64.getEncoder().encodeToString(mac.doFinal());
+	}
+
+	/**
+	 * Find this thread's Mac for a secret, cloning one if it doesn't have it.
+	 */
+	private Mac macFor(String secret, Scratch s) throws GeneralSecurityException {
+		int slot = (secret.hashCode() & Integer.MAX_VALUE) % THREAD_CACHE_SLOTS;
+		if (secret.equals(s.secrets[slot])) {
+			return s.macs[slot];
+		}
+		Mac prototype = keyed.get(secret);
+		if (prototype == null) {
+			prototype = Mac.getInstance(HMAC_ALGORITHM);
+			prototype.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM));
+			if (keyed.size() >= MAX_KEYS) {
+				keyed.clear();
+			}
+			Mac raced = keyed.putIfAbsent(secret, prototype);
+			if (raced != null) {
+				prototype = raced;
+			}
+		}
+		Mac mac;
+		try {
+			// the prototype is never used directly, so cloning it is safe from any thread.
+			mac = (Mac) prototype.clone();
+		} catch (CloneNotSupportedException e) {
+			mac = Mac.getInstance(HMAC_ALGORITHM);
+			mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM));
+		}
+		s.secrets[slot] = secret;
+		s.macs[slot] = mac;
+		return mac;
+	}
+
+	/**
+	 * Feed the UTF-8 encoding of a message to the Mac, copying ASCII
+	 * through the thread's buffer rather than encoding into a new array.
+	 */
+	private static void update(Mac mac, String message, int length, Scratch s) {
+		if (s.message.length < length) {
+			s.message = new byte[Math.max(length, s.message.length * 2)];
+		}
+		byte[] buffer = s.message;
+		for (int i = 0; i < length; i++) {
+			char ch = message.charAt(i);
+			if (ch >= 0x80) {
+				mac.update(message.substring(0, length).getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+			buffer[i] = (byte) ch;
+		}
+		mac.update(buffer, 0, length);
+	}
+
+	/**
+	 * Decode a Base64 HMAC-SHA256, which must be exactly 44 characters
+	 * including one padding character.
+	 *
+	 * @return false if it isn't a validly encoded 32 byte value.
+	 */
+	static boolean decode(String signature, byte[] into) {
+		if (signature.length() != 44 || signature.charAt(43) != '=') {
+			return false;
+		}
+		int out = 0;
+		int invalid = 0;
+		// ten full groups of four characters, then a final group of three plus padding.
+		for (int i = 0; i < 40; i += 4) {
+			int a = value(signature.charAt(i));
+			int b = value(signature.charAt(i + 1));
+			int c = value(signature.charAt(i + 2));
+			int d = value(signature.charAt(i + 3));
+			invalid |= a | b | c | d;
+			int bits = (a << 18) | (b << 12) | (c << 6) | d;
+			into[out++] = (byte) (bits >> 16);
+			into[out++] = (byte) (bits >> 8);
+			into[out++] = (byte) bits;
+		}
+		int a = value(signature.charAt(40));
+		int b = value(signature.charAt(41));
+		int c = value(signature.charAt(42));
+		invalid |= a | b | c;
+		int bits = (a << 12) | (b << 6) | c;
+		into[out++] = (byte) (bits >> 10);
+		into[out] = (byte) (bits >> 2);
+		// the bits the padding stands for must be zero.
+		return invalid >= 0 && (bits & 0x3) == 0;
+	}
+
+	/**
+	 * The value of a Base64 character, or -1 if it isn't one.
+	 */
+	private static int value(char ch) {
+		return ch < 128 ? BASE64_VALUES[ch] : -1;
+	}
+}
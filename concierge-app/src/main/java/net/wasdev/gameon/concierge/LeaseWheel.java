@@ -0,0 +1,302 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import java.time.Clock;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Leases on room registrations, expired by a hashed timing wheel.
+ * <p>
+ * Each lease sits in the wheel slot for the tick it is due to expire in,
+ * and each tick only looks at the one slot that has come round, so the
+ * cost of a tick depends on how many leases are due then, not on how many
+ * rooms there are. Renewing a lease just moves its deadline on without
+ * touching the wheel: when its slot comes round and it isn't due after all,
+ * it is moved to the slot for its new deadline.
+ * </p>
+ * <p>
+ * A lease is held by a room for one of its endpoints, or for the room
+ * itself if it registered without one.
+ * </p>
+ */
+public class LeaseWheel {
+
+	/** Default time between ticks */
+	public static final long DEFAULT_TICK_MS = TimeUnit.SECONDS.toMillis(1);
+	/** Default number of slots, leases up to this many ticks long never go round twice */
+	public static final int DEFAULT_SLOTS = 512;
+
+	/**
+	 * Told about leases that have expired.
+	 */
+	public interface Expiry {
+		/**
+		 * @param endpoint the endpoint the lease was for, or null if it was for the room.
+		 */
+		void expired(String roomId, String endpoint);
+	}
+
+	/** A lease, renewed by moving its deadline on */
+	private static final class Lease {
+		private final String roomId;
+		private final String endpoint;
+		private final long ttlMS;
+		private volatile long deadline;
+		/** set once the lease has been replaced or released, guarded by the wheel */
+		private boolean released;
+
+		Lease(String roomId, String endpoint, long ttlMS, long deadline) {
+			this.roomId = roomId;
+			this.endpoint = endpoint;
+			this.ttlMS = ttlMS;
+			this.deadline = deadline;
+		}
+	}
+
+	private final Clock clock;
+	private final long tickMS;
+	private final int mask;
+	/** room id -> endpoint (or "" for the room itself) -> lease */
+	private final ConcurrentMap<String, ConcurrentMap<String, Lease>> leases = new ConcurrentHashMap<String, ConcurrentMap<String, Lease>>();
+
+	/** guarded by this */
+	private final ArrayDeque<Lease>[] slots;
+	/** the next tick to process, guarded by this */
+	private long nextTick;
+
+	private ScheduledExecutorService timer;
+
+	public LeaseWheel(Clock clock) {
+		this(clock, DEFAULT_TICK_MS, DEFAULT_SLOTS);
+	}
+
+	/**
+	 * @param slots the number of slots in the wheel, a power of two.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public LeaseWheel(Clock clock, long tickMS, int slots) {
+		if (Integer.bitCount(slots) != 1) {
+			throw new IllegalArgumentException("The number of slots must be a power of two: " + slots);
+		}
+		this.clock = clock;
+		this.tickMS = tickMS;
+		this.mask = slots - 1;
+		this.slots = new ArrayDeque[slots];
+		for (int i = 0; i < slots; i++) {
+			this.slots[i] = new ArrayDeque<Lease>();
+		}
+		this.nextTick = clock.millis() / tickMS;
+	}
+
+	/**
+	 * Grant a lease of {@code ttlMS} from now, replacing any lease already held.
+	 */
+	public void grant(String roomId, String endpoint, long ttlMS) {
+		Lease lease = new Lease(roomId, endpoint, ttlMS, clock.millis() + ttlMS);
+		synchronized (this) {
+			ConcurrentMap<String, Lease> roomLeases = leases.get(roomId);
+			if (roomLeases == null) {
+				roomLeases = new ConcurrentHashMap<String, Lease>();
+				leases.put(roomId, roomLeases);
+			}
+			Lease replaced = roomLeases.put(key(endpoint), lease);
+			if (replaced != null) {
+				replaced.released = true;
+			}
+			schedule(lease, nextTick);
+		}
+	}
+
+	/**
+	 * Renew a lease for another TTL from now.
+	 *
+	 * @param endpoint the endpoint to renew the lease for, or null to renew every lease the room holds.
+	 * @return false if there was nothing to renew, the room must register again.
+	 */
+	public boolean renew(String roomId, String endpoint) {
+		ConcurrentMap<String, Lease> roomLeases = roomId == null ? null : leases.get(roomId);
+		if (roomLeases == null) {
+			return false;
+		}
+		long now = clock.millis();
+		if (endpoint != null) {
+			Lease lease = roomLeases.get(endpoint);
+			if (lease == null) {
+				return false;
+			}
+			lease.deadline = now + lease.ttlMS;
+			return true;
+		}
+		boolean renewed = false;
+		for (Lease lease : roomLeases.values()) {
+			lease.deadline = now + lease.ttlMS;
+			renewed = true;
+		}
+		return renewed;
+	}
+
+	/**
+	 * Drop a lease, it will never expire.
+	 */
+	public void release(String roomId, String endpoint) {
+		synchronized (this) {
+			ConcurrentMap<String, Lease> roomLeases = leases.get(roomId);
+			if (roomLeases == null) {
+				return;
+			}
+			Lease released = roomLeases.remove(key(endpoint));
+			if (released != null) {
+				released.released = true;
+			}
+			if (roomLeases.isEmpty()) {
+				leases.remove(roomId, roomLeases);
+			}
+		}
+	}
+
+	/**
+	 * Drop every lease a room holds.
+	 */
+	public void releaseRoom(String roomId) {
+		synchronized (this) {
+			ConcurrentMap<String, Lease> roomLeases = leases.remove(roomId);
+			if (roomLeases == null) {
+				return;
+			}
+			for (Lease lease : roomLeases.values()) {
+				lease.released = true;
+			}
+		}
+	}
+
+	public boolean isHeld(String roomId, String endpoint) {
+		ConcurrentMap<String, Lease> roomLeases = leases.get(roomId);
+		return roomLeases != null && roomLeases.containsKey(key(endpoint));
+	}
+
+	/**
+	 * Whether a room holds any leases, rooms that don't never expire.
+	 */
+	public boolean isLeased(String roomId) {
+		ConcurrentMap<String, Lease> roomLeases = leases.get(roomId);
+		return roomLeases != null && !roomLeases.isEmpty();
+	}
+
+	/**
+	 * Process every tick up to now, expiring the leases that are due.
+	 *
+	 * @return the leases that expired, as room id and endpoint pairs.
+	 */
+	public List<String[]> advance() {
+		long now = clock.millis();
+		long nowTick = now / tickMS;
+		List<String[]> expired = null;
+		synchronized (this) {
+			if (nowTick < nextTick) {
+				return Collections.emptyList();
+			}
+			// after a long pause, going round the wheel once is enough.
+			long last = Math.min(nowTick, nextTick + mask);
+			for (long tick = nextTick; tick <= last; tick++) {
+				ArrayDeque<Lease> slot = slots[(int) (tick & mask)];
+				for (int n = slot.size(); n > 0; n--) {
+					Lease lease = slot.poll();
+					if (lease.released) {
+						continue;
+					}
+					if (lease.deadline > now) {
+						// renewed since it was scheduled.
+						schedule(lease, nowTick + 1);
+						continue;
+					}
+					lease.released = true;
+					ConcurrentMap<String, Lease> roomLeases = leases.get(lease.roomId);
+					if (roomLeases != null) {
+						roomLeases.remove(key(lease.endpoint), lease);
+						if (roomLeases.isEmpty()) {
+							leases.remove(lease.roomId, roomLeases);
+						}
+					}
+					if (expired == null) {
+						expired = new ArrayList<String[]>();
+					}
+					expired.add(new String[] { lease.roomId, lease.endpoint });
+				}
+			}
+			nextTick = nowTick + 1;
+		}
+		return expired == null ? Collections.<String[]>emptyList() : expired;
+	}
+
+	/**
+	 * Tick every {@code tickMS} until stopped, telling {@code expiry} about the leases that expire.
+	 */
+	public synchronized void start(final Expiry expiry) {
+		if (timer != null) {
+			return;
+		}
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "concierge-leases");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (String[] lease : advance()) {
+						expiry.expired(lease[0], lease[1]);
+					}
+				} catch (RuntimeException e) {
+					// carry on next tick.
+					Log.error("lease.expiry.failed", "error", e.toString());
+				}
+			}
+		}, tickMS, tickMS, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if (timer != null) {
+			timer.shutdownNow();
+			timer = null;
+		}
+	}
+
+	/**
+	 * Put a lease in the slot for the tick its deadline falls in, the caller must hold the wheel lock.
+	 */
+	private void schedule(Lease lease, long earliestTick) {
+		long tick = Math.max((lease.deadline + tickMS - 1) / tickMS, earliestTick);
+		slots[(int) (tick & mask)].add(lease);
+	}
+
+	private static String key(String endpoint) {
+		return endpoint == null ? "" : endpoint;
+	}
+}
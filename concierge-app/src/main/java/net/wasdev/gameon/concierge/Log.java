@@ -0,0 +1,400 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import java.io.PrintStream;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logging that never makes the caller wait for stdout.
+ * <p>
+ * An event is a type, which names what happened (like {@code registration}),
+ * and some key/value fields. Callers only put the event in a bounded ring,
+ * a single writer thread formats them as {@code key=value} lines and writes
+ * them out. If the ring is full the event is dropped and counted, and each
+ * type may only log so many events a second, so a burst of one kind of
+ * failure is summarised by a {@code suppressed=N} field on the next one that
+ * gets through rather than flooding the log. When there is nothing to write
+ * the writer waits for the next event, and {@link #stop()} ends it.
+ * </p>
+ * <p>
+ * Values are formatted on the writer thread, so they must not be changed
+ * once logged: pass strings and numbers rather than the objects they describe.
+ * </p>
+ */
+public class Log {
+
+	public enum Level { info, warn, error }
+
+	/** Events waiting to be written, a power of two */
+	static final int DEFAULT_CAPACITY = 8192;
+	/** Events each type may log in a second */
+	static final int DEFAULT_PER_TYPE_PER_SECOND = 100;
+	static final long WINDOW_MS = 1000;
+	/** Types rate limited before we start again, they are constants in the code so this is only a guard */
+	static final int MAX_TYPES = 1024;
+
+	private static final Log DEFAULT = new Log(Clock.systemUTC(), DEFAULT_CAPACITY, DEFAULT_PER_TYPE_PER_SECOND, System.out).start();
+
+	public static void info(String type, Object... fields) {
+		DEFAULT.log(Level.info, type, fields);
+	}
+
+	public static void warn(String type, Object... fields) {
+		DEFAULT.log(Level.warn, type, fields);
+	}
+
+	public static void error(String type, Object... fields) {
+		DEFAULT.log(Level.error, type, fields);
+	}
+
+	/**
+	 * The log the static methods write to.
+	 */
+	public static Log getDefault() {
+		return DEFAULT;
+	}
+
+	private static final class Event {
+		final long time;
+		final Level level;
+		final String type;
+		final Object[] fields;
+		final long suppressed;
+
+		Event(long time, Level level, String type, Object[] fields, long suppressed) {
+			this.time = time;
+			this.level = level;
+			this.type = type;
+			this.fields = fields;
+			this.suppressed = suppressed;
+		}
+	}
+
+	/** The events one type has logged in the current second */
+	private static final class Window {
+		/** guarded by this */
+		private long start;
+		/** guarded by this */
+		private int count;
+		/** events suppressed since the last one was let through, guarded by this */
+		private long suppressed;
+
+		/**
+		 * @return -1 if the event should be suppressed, otherwise how many were suppressed before it.
+		 */
+		synchronized long admit(long now, int limit) {
+			if (now - start >= WINDOW_MS || now < start) {
+				start = now;
+				count = 0;
+			}
+			if (count >= limit) {
+				suppressed++;
+				return -1;
+			}
+			count++;
+			long before = suppressed;
+			suppressed = 0;
+			return before;
+		}
+	}
+
+	private final Clock clock;
+	private final int perTypePerSecond;
+	private final PrintStream out;
+
+	/*
+	 * The ring: a slot may be written when its sequence equals the position
+	 * being claimed, and read once it is one past it. Producers claim
+	 * positions by moving the tail on, only the writer moves the head.
+	 */
+	private final int mask;
+	private final AtomicReferenceArray<Event> slots;
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+	/** guarded by this */
+	private long head;
+
+	private final ConcurrentMap<String, Window> windows = new ConcurrentHashMap<String, Window>();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder suppressed = new LongAdder();
+	/** dropped events already mentioned in the log, guarded by this */
+	private long droppedReported;
+	/** formatting buffer, guarded by this */
+	private final StringBuilder line = new StringBuilder(256);
+
+	/** the thread writing events out, null once stopped */
+	private volatile Thread writer;
+	/** set while the writer is waiting for an event, so that callers know to wake it */
+	private volatile boolean sleeping;
+
+	public Log(Clock clock, int capacity, int perTypePerSecond, PrintStream out) {
+		if (Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+		}
+		this.clock = clock;
+		this.perTypePerSecond = perTypePerSecond;
+		this.out = out;
+		this.mask = capacity - 1;
+		this.slots = new AtomicReferenceArray<Event>(capacity);
+		this.sequences = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Start the thread that writes events out, without it they wait for {@link #drain()}.
+	 * Starting a log that is already started does nothing.
+	 */
+	public synchronized Log start() {
+		if (writer == null) {
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					write();
+				}
+			}, "concierge-log");
+			t.setDaemon(true);
+			writer = t;
+			t.start();
+		}
+		return this;
+	}
+
+	/**
+	 * Queue an event, fields are alternating keys and values.
+	 *
+	 * @return false if it was suppressed or dropped.
+	 */
+	public boolean log(Level level, String type, Object... fields) {
+		long now = clock.millis();
+		Window window = windows.get(type);
+		if (window == null) {
+			if (windows.size() >= MAX_TYPES) {
+				windows.clear();
+			}
+			window = new Window();
+			Window raced = windows.putIfAbsent(type, window);
+			if (raced != null) {
+				window = raced;
+			}
+		}
+		long before = window.admit(now, perTypePerSecond);
+		if (before < 0) {
+			suppressed.increment();
+			return false;
+		}
+		if (!offer(new Event(now, level, type, fields, before))) {
+			dropped.increment();
+			return false;
+		}
+		if (sleeping) {
+			Thread t = writer;
+			if (t != null) {
+				LockSupport.unpark(t);
+			}
+		}
+		return true;
+	}
+
+	private boolean offer(Event event) {
+		while (true) {
+			long position = tail.get();
+			int slot = (int) position & mask;
+			long diff = sequences.get(slot) - position;
+			if (diff < 0) {
+				// the writer hasn't got to the event a lap ago yet.
+				return false;
+			}
+			if (diff == 0 && tail.compareAndSet(position, position + 1)) {
+				slots.lazySet(slot, event);
+				sequences.set(slot, position + 1);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Write out every event that has been queued.
+	 *
+	 * @return how many were written.
+	 */
+	synchronized int drain() {
+		int written = 0;
+		while (true) {
+			int slot = (int) head & mask;
+			if (sequences.get(slot) != head + 1) {
+				break;
+			}
+			Event event = slots.get(slot);
+			slots.lazySet(slot, null);
+			sequences.set(slot, head + mask + 1);
+			head++;
+			format(event);
+			written++;
+		}
+		long lost = dropped.sum();
+		if (lost != droppedReported) {
+			line.setLength(0);
+			line.append(Instant.ofEpochMilli(clock.millis())).append(" level=").append(Level.warn)
+					.append(" type=log.dropped count=").append(lost - droppedReported).append('\n');
+			out.append(line);
+			droppedReported = lost;
+		}
+		return written;
+	}
+
+	private synchronized boolean isEmpty() {
+		return sequences.get((int) head & mask) != head + 1;
+	}
+
+	/**
+	 * Write out what has been queued and flush the output.
+	 */
+	public void flush() {
+		drain();
+		out.flush();
+	}
+
+	/**
+	 * Stop the writer thread, once it has written out what has been queued.
+	 * Events logged after this wait for {@link #start()} or {@link #flush()}.
+	 */
+	public void stop() {
+		Thread t;
+		synchronized (this) {
+			t = writer;
+			writer = null;
+		}
+		if (t != null) {
+			LockSupport.unpark(t);
+			try {
+				t.join(TimeUnit.SECONDS.toMillis(5));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		flush();
+	}
+
+	private void write() {
+		Thread self = Thread.currentThread();
+		boolean unflushed = false;
+		while (writer == self) {
+			try {
+				if (drain() > 0) {
+					unflushed = true;
+				} else if (unflushed) {
+					out.flush();
+					unflushed = false;
+				} else {
+					// callers wake us once this is set, check again for an event
+					// queued just before it was, then wait for the next one.
+					sleeping = true;
+					if (isEmpty() && writer == self) {
+						LockSupport.park(this);
+					}
+					sleeping = false;
+				}
+			} catch (RuntimeException e) {
+				// a value's toString failed, carry on with the next event.
+				e.printStackTrace(out);
+			}
+		}
+	}
+
+	private void format(Event event) {
+		StringBuilder b = line;
+		b.setLength(0);
+		b.append(Instant.ofEpochMilli(event.time))
+				.append(" level=").append(event.level)
+				.append(" type=").append(event.type);
+		Object[] fields = event.fields;
+		for (int i = 0; i + 1 < fields.length; i += 2) {
+			b.append(' ').append(fields[i]).append('=');
+			appendValue(b, fields[i + 1]);
+		}
+		if (event.suppressed > 0) {
+			b.append(" suppressed=").append(event.suppressed);
+		}
+		b.append('\n');
+		out.append(b);
+	}
+
+	/**
+	 * Append a value, quoting it if it would otherwise be hard to split from the next field.
+	 */
+	static void appendValue(StringBuilder b, Object value) {
+		String s = String.valueOf(value);
+		boolean quote = s.isEmpty();
+		for (int i = 0; i < s.length() && !quote; i++) {
+			char ch = s.charAt(i);
+			quote = ch <= ' ' || ch == '"' || ch == '=';
+		}
+		if (!quote) {
+			b.append(s);
+			return;
+		}
+		b.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char ch = s.charAt(i);
+			switch (ch) {
+				case '"':
+					b.append("\\\"");
+					break;
+				case '\\':
+					b.append("\\\\");
+					break;
+				case '\n':
+					b.append("\\n");
+					break;
+				case '\r':
+					b.append("\\r");
+					break;
+				case '\t':
+					b.append("\\t");
+					break;
+				default:
+					b.append(ch);
+			}
+		}
+		b.append('"');
+	}
+
+	/**
+	 * Events dropped because the writer couldn't keep up.
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Events suppressed because their type logged too many in a second.
+	 */
+	public long getSuppressed() {
+		return suppressed.sum();
+	}
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import java.time.Clock;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how often we ask another service about the same id, with a token
+ * bucket for each id.
+ * <p>
+ * Each id may be looked up {@code burst} times in a row, after which it gets
+ * one more lookup every {@code refillMS}. Only ids that have been looked up
+ * recently have a bucket: a bucket that has filled up again is no different
+ * from a new one, so those are dropped when there are too many.
+ * </p>
+ */
+public class LookupLimiter {
+
+	public static final int DEFAULT_BURST = 5;
+	public static final long DEFAULT_REFILL_MS = TimeUnit.MINUTES.toMillis(1);
+	/** Buckets kept before full ones are dropped */
+	static final int MAX_BUCKETS = 10000;
+
+	/** The lookups left for one id */
+	private static final class Bucket {
+		/** guarded by this */
+		private int tokens;
+		/** when the last token was added, guarded by this */
+		private long refilledAt;
+
+		Bucket(int tokens, long refilledAt) {
+			this.tokens = tokens;
+			this.refilledAt = refilledAt;
+		}
+	}
+
+	private final Clock clock;
+	private final int burst;
+	private final long refillMS;
+	private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+	public LookupLimiter(Clock clock) {
+		this(clock, DEFAULT_BURST, DEFAULT_REFILL_MS);
+	}
+
+	public LookupLimiter(Clock clock, int burst, long refillMS) {
+		this.clock = clock;
+		this.burst = burst;
+		this.refillMS = refillMS;
+	}
+
+	/**
+	 * Take a lookup for an id, if it has any left.
+	 *
+	 * @return false if the id has been looked up too often.
+	 */
+	public boolean tryAcquire(String id) {
+		long now = clock.millis();
+		Bucket bucket = buckets.get(id);
+		if (bucket == null) {
+			if (buckets.size() >= MAX_BUCKETS) {
+				dropFullBuckets(now);
+			}
+			Bucket created = new Bucket(burst, now);
+			bucket = buckets.putIfAbsent(id, created);
+			if (bucket == null) {
+				bucket = created;
+			}
+		}
+		synchronized (bucket) {
+			refill(bucket, now);
+			if (bucket.tokens == 0) {
+				return false;
+			}
+			bucket.tokens--;
+			return true;
+		}
+	}
+
+	int size() {
+		return buckets.size();
+	}
+
+	private void refill(Bucket bucket, long now) {
+		long earned = (now - bucket.refilledAt) / refillMS;
+		if (earned <= 0) {
+			return;
+		}
+		if (earned >= burst - bucket.tokens) {
+			bucket.tokens = burst;
+			bucket.refilledAt = now;
+		} else {
+			bucket.tokens += (int) earned;
+			bucket.refilledAt += earned * refillMS;
+		}
+	}
+
+	private void dropFullBuckets(long now) {
+		for (Iterator<Bucket> i = buckets.values().iterator(); i.hasNext();) {
+			Bucket bucket = i.next();
+			synchronized (bucket) {
+				refill(bucket, now);
+				if (bucket.tokens == burst) {
+					i.remove();
+				}
+			}
+		}
+		if (buckets.size() >= MAX_BUCKETS) {
+			// every id is being limited, which means too many ids; start again rather than grow.
+			buckets.clear();
+		}
+	}
+}
@@ -15,34 +15,121 @@
  *******************************************************************************/
 package net.wasdev.gameon.concierge;
 
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import net.wasdev.gameon.room.common.Exit;
 import net.wasdev.gameon.room.common.Room;
 
+/**
+ * Connects rooms using the exits each room declares when it registers.
+ * <p>
+ * When a room is placed its exits are copied into an immutable index, keyed
+ * by the canonical exit name (see {@link ExitNames}), so later changes to
+ * the registering {@link Room} have no effect, and resolving an exit is two
+ * hash lookups. Room names are shared between every index that mentions them.
+ * </p>
+ */
 public class ManualWiringPlacement implements PlacementStrategy {
 	
-	Map<String, List<Exit>> exitMap = new HashMap<String, List<Exit>>(); 
+	/** The exits from one room */
+	private static final class RoomExits {
+		/** canonical exit name -> room name */
+		private final Map<String, String> byName;
+		/** exit name as the room declared it -> room name, in declaration order */
+		private final Map<String, String> declared;
+
+		RoomExits(Map<String, String> byName, Map<String, String> declared) {
+			this.byName = compact(byName);
+			this.declared = compact(declared);
+		}
+
+		/**
+		 * A room is held for as long as it is registered, and there can be a
+		 * great many of them, so rooms with one exit (or none) don't carry a
+		 * whole hash table for it.
+		 */
+		private static Map<String, String> compact(Map<String, String> exits) {
+			switch (exits.size()) {
+			case 0:
+				return Collections.emptyMap();
+			case 1:
+				Map.Entry<String, String> only = exits.entrySet().iterator().next();
+				return Collections.singletonMap(only.getKey(), only.getValue());
+			default:
+				return Collections.unmodifiableMap(exits);
+			}
+		}
+	}
+
+	/** room name -> the exits from that room */
+	private final ConcurrentMap<String, RoomExits> exitIndex = new ConcurrentHashMap<String, RoomExits>();
+	
+	/** one copy of each room name we know about */
+	private final ConcurrentMap<String, String> roomNames = new ConcurrentHashMap<String, String>();
 	
 	@Override
 	public String getConnectingRooms(String currentRoom, String exitName) {
-		String roomName = null;
-		List<Exit> currentRoomExits = exitMap.get(currentRoom);
-		if (currentRoomExits != null) {
-			for (Exit exit : currentRoomExits) {
-				if (exit.getName().equals(exitName)) {
-					roomName = exit.getRoom();
-				}
-			}
+		if (currentRoom == null || exitName == null) {
+			return null;
+		}
+		RoomExits exits = exitIndex.get(currentRoom);
+		if (exits == null) {
+			return null;
+		}
+		return exits.byName.get(ExitNames.canonical(exitName));
+	}
+
+	@Override
+	public Map<String, String> getConnectingRooms(String currentRoomId) {
+		RoomExits exits = currentRoomId == null ? null : exitIndex.get(currentRoomId);
+		if (exits == null) {
+			return Collections.emptyMap();
 		}
-		return roomName;
+		return exits.declared;
 	}
 
 	@Override
 	public void placeRoom(Room room) {
-		exitMap.put(room.getRoomName(), room.getExits());
+		Map<String, String> byName = new HashMap<String, String>();
+		Map<String, String> declared = new LinkedHashMap<String, String>();
+		for (Exit exit : room.getExits()) {
+			if (exit == null || exit.getName() == null || exit.getRoom() == null) {
+				continue;
+			}
+			// if an exit is declared twice, the last one wins.
+			String canonical = ExitNames.canonical(exit.getName());
+			String previous = byName.put(canonical, share(exit.getRoom()));
+			if (previous != null) {
+				removeSpellingsOf(declared, canonical);
+			}
+			declared.put(exit.getName(), byName.get(canonical));
+		}
+		exitIndex.put(share(room.getRoomName()), new RoomExits(byName, declared));
+	}
+
+	@Override
+	public void removeRoom(String roomId) {
+		// exits other rooms declare to it stay, they lead to it again if it comes back.
+		exitIndex.remove(roomId);
+	}
+
+	private static void removeSpellingsOf(Map<String, String> declared, String canonical) {
+		for (Iterator<String> names = declared.keySet().iterator(); names.hasNext();) {
+			if (ExitNames.canonical(names.next()).equals(canonical)) {
+				names.remove();
+			}
+		}
+	}
+
+	private String share(String roomName) {
+		String shared = roomNames.putIfAbsent(roomName, roomName);
+		return shared == null ? roomName : shared;
 	}
 
 }
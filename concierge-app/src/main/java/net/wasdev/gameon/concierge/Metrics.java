@@ -0,0 +1,294 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import java.math.BigDecimal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms, written out in the Prometheus text format.
+ * <p>
+ * Recording only adds to {@link LongAdder}s, so it takes no locks and threads
+ * recording the same thing don't fight over one counter. Components look up
+ * what they record to once and keep it, registering and writing out take a
+ * lock but only happen at startup and when the metrics are scraped.
+ * Numbers a component already keeps, like cache hits, are registered as a
+ * {@link Sample} and read when the metrics are written.
+ * </p>
+ */
+public class Metrics {
+
+	/** Histogram bucket bounds, in seconds */
+	static final double[] LATENCY_BUCKETS = {
+			0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+	/** The bucket bounds as they are written out, with a last one for the bucket without a bound */
+	private static final String[] LE = new String[LATENCY_BUCKETS.length + 1];
+	static {
+		for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+			LE[i] = new BigDecimal(Double.toString(LATENCY_BUCKETS[i])).stripTrailingZeros().toPlainString();
+		}
+		LE[LATENCY_BUCKETS.length] = "+Inf";
+	}
+
+	private static final Metrics DEFAULT = new Metrics();
+
+	/**
+	 * The metrics served at /metrics.
+	 */
+	public static Metrics getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * A number kept elsewhere, read when the metrics are written.
+	 */
+	public interface Sample {
+		double get();
+	}
+
+	/**
+	 * Counts something happening.
+	 */
+	public static final class Counter {
+		private final LongAdder count = new LongAdder();
+
+		public void increment() {
+			count.increment();
+		}
+
+		public long get() {
+			return count.sum();
+		}
+	}
+
+	/**
+	 * Counts how long something took into buckets, along with the total time.
+	 */
+	public static final class Histogram {
+		/** upper bound of each bucket in nanoseconds, the last bucket has none */
+		private final long[] bounds = new long[LATENCY_BUCKETS.length];
+		private final LongAdder[] counts = new LongAdder[LATENCY_BUCKETS.length + 1];
+		private final LongAdder nanos = new LongAdder();
+
+		Histogram() {
+			for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+				bounds[i] = (long) (LATENCY_BUCKETS[i] * TimeUnit.SECONDS.toNanos(1));
+			}
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = new LongAdder();
+			}
+		}
+
+		/**
+		 * Record something that took {@code elapsed} nanoseconds.
+		 */
+		public void record(long elapsed) {
+			int i = 0;
+			while (i < bounds.length && elapsed > bounds[i]) {
+				i++;
+			}
+			counts[i].increment();
+			nanos.add(elapsed);
+		}
+
+		/**
+		 * Record something that started at {@code startNanos}, from {@link System#nanoTime()}.
+		 */
+		public void recordSince(long startNanos) {
+			record(System.nanoTime() - startNanos);
+		}
+
+		public long getCount() {
+			long count = 0;
+			for (LongAdder c : counts) {
+				count += c.sum();
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Sample a count kept in a {@link LongAdder}.
+	 */
+	public static Sample sampleOf(final LongAdder adder) {
+		return new Sample() {
+			@Override
+			public double get() {
+				return adder.sum();
+			}
+		};
+	}
+
+	private enum Type { counter, gauge, histogram }
+
+	/** Everything registered under one name, one child for each set of labels */
+	private static final class Family {
+		final String name;
+		final String help;
+		final Type type;
+		/** formatted labels -> Counter, Histogram or Sample */
+		final Map<String, Object> children = new TreeMap<String, Object>();
+
+		Family(String name, String help, Type type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	/** guarded by this */
+	private final Map<String, Family> families = new LinkedHashMap<String, Family>();
+
+	/**
+	 * The counter with this name and labels, labels being alternating names and values.
+	 */
+	public synchronized Counter counter(String name, String help, String... labels) {
+		Map<String, Object> children = family(name, help, Type.counter).children;
+		String key = labels(labels);
+		Object counter = children.get(key);
+		if (!(counter instanceof Counter)) {
+			counter = new Counter();
+			children.put(key, counter);
+		}
+		return (Counter) counter;
+	}
+
+	/**
+	 * The latency histogram with this name and labels, the name should end with _seconds.
+	 */
+	public synchronized Histogram histogram(String name, String help, String... labels) {
+		Map<String, Object> children = family(name, help, Type.histogram).children;
+		String key = labels(labels);
+		Object histogram = children.get(key);
+		if (histogram == null) {
+			histogram = new Histogram();
+			children.put(key, histogram);
+		}
+		return (Histogram) histogram;
+	}
+
+	/**
+	 * Report a count kept elsewhere, replacing any registered before under this name and labels.
+	 */
+	public synchronized void counter(String name, String help, Sample sample, String... labels) {
+		family(name, help, Type.counter).children.put(labels(labels), sample);
+	}
+
+	/**
+	 * Report a value that goes up and down, replacing any registered before under this name and labels.
+	 */
+	public synchronized void gauge(String name, String help, Sample sample, String... labels) {
+		family(name, help, Type.gauge).children.put(labels(labels), sample);
+	}
+
+	private Family family(String name, String help, Type type) {
+		Family family = families.get(name);
+		if (family == null) {
+			family = new Family(name, help, type);
+			families.put(name, family);
+		} else if (family.type != type) {
+			throw new IllegalArgumentException(name + " is already a " + family.type);
+		}
+		return family;
+	}
+
+	/**
+	 * Format labels as they are written out, without the braces.
+	 */
+	private static String labels(String[] labels) {
+		if (labels.length % 2 != 0) {
+			throw new IllegalArgumentException("labels must be name/value pairs");
+		}
+		StringBuilder b = new StringBuilder();
+		for (int i = 0; i < labels.length; i += 2) {
+			if (i > 0) {
+				b.append(',');
+			}
+			b.append(labels[i]).append("=\"");
+			String value = labels[i + 1];
+			for (int j = 0; j < value.length(); j++) {
+				char ch = value.charAt(j);
+				if (ch == '\\' || ch == '"') {
+					b.append('\\').append(ch);
+				} else if (ch == '\n') {
+					b.append("\\n");
+				} else {
+					b.append(ch);
+				}
+			}
+			b.append('"');
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Write everything out in the Prometheus text format (version 0.0.4).
+	 */
+	public synchronized void writeTo(StringBuilder out) {
+		for (Family family : families.values()) {
+			out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+			out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+			for (Map.Entry<String, Object> child : family.children.entrySet()) {
+				String labels = child.getKey();
+				Object value = child.getValue();
+				if (value instanceof Histogram) {
+					writeHistogram(out, family.name, labels, (Histogram) value);
+				} else if (value instanceof Counter) {
+					sample(out, family.name, labels, null, ((Counter) value).get());
+				} else {
+					sample(out, family.name, labels, null, ((Sample) value).get());
+				}
+			}
+		}
+	}
+
+	private static void writeHistogram(StringBuilder out, String name, String labels, Histogram histogram) {
+		String bucket = name + "_bucket";
+		long cumulative = 0;
+		for (int i = 0; i < histogram.counts.length; i++) {
+			cumulative += histogram.counts[i].sum();
+			sample(out, bucket, labels, LE[i], cumulative);
+		}
+		sample(out, name + "_sum", labels, null, histogram.nanos.sum() / (double) TimeUnit.SECONDS.toNanos(1));
+		sample(out, name + "_count", labels, null, cumulative);
+	}
+
+	private static void sample(StringBuilder out, String name, String labels, String le, double value) {
+		out.append(name);
+		if (!labels.isEmpty() || le != null) {
+			out.append('{').append(labels);
+			if (le != null) {
+				out.append(labels.isEmpty() ? "" : ",").append("le=\"").append(le).append('"');
+			}
+			out.append('}');
+		}
+		out.append(' ').append(format(value)).append('\n');
+	}
+
+	/**
+	 * Whole numbers without a fraction, everything else as Java writes doubles.
+	 */
+	static String format(double value) {
+		if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+			return Long.toString((long) value);
+		}
+		return Double.toString(value);
+	}
+}
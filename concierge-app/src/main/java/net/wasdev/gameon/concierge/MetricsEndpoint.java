@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * The concierge's metrics, for Prometheus to scrape. Scrapers can't sign
+ * their requests, so the auth filter lets this path through.
+ */
+@Path(MetricsEndpoint.PATH)
+public class MetricsEndpoint {
+
+	static final String PATH = "metrics";
+	static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	@GET
+	@Produces(MediaType.TEXT_PLAIN)
+	public Response getMetrics() {
+		StringBuilder out = new StringBuilder(16384);
+		Metrics.getDefault().writeTo(out);
+		return Response.ok(out.toString(), CONTENT_TYPE).build();
+	}
+}
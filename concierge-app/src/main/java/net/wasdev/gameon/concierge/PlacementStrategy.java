@@ -15,10 +15,24 @@
  *******************************************************************************/
 package net.wasdev.gameon.concierge;
 
+import java.util.Map;
+
 import net.wasdev.gameon.room.common.Room;
 
 public interface PlacementStrategy {
 	void placeRoom(Room room);
 
+	/**
+	 * Forget a room and its exits.
+	 */
+	void removeRoom(String roomId);
+
 	String getConnectingRooms(String currentRoomId, String exitName);
+
+	/**
+	 * Every exit from a room, and the room it leads to.
+	 *
+	 * @return exit name -> room id, empty if the room has no exits or is unknown.
+	 */
+	Map<String, String> getConnectingRooms(String currentRoomId);
 }
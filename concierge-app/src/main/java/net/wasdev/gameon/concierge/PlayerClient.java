@@ -17,15 +17,29 @@ package net.wasdev.gameon.concierge;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.Key;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
-import java.util.Calendar;
+import java.time.Clock;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import javax.enterprise.context.ApplicationScoped;
 import javax.net.ssl.SSLContext;
@@ -33,21 +47,34 @@ import javax.ws.rs.ProcessingException;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.client.ResponseProcessingException;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
+import org.apache.http.StatusLine;
 import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
-import org.apache.http.impl.client.BasicResponseHandler;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 
 import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
 
+import net.wasdev.gameon.concierge.Metrics.Histogram;
+
 /**
  * A wrapped/encapsulation of outbound REST requests to the player service.
  * <p>
@@ -60,11 +87,100 @@ import io.jsonwebtoken.SignatureAlgorithm;
  * This bean will be created when the application starts, and can be injected
  * into other CDI-managed beans for as long as the application is valid.
  * </p>
+ * <p>
+ * Requests to the player service share one pool of keep-alive connections,
+ * so a lookup only pays for a TCP and TLS handshake when every pooled
+ * connection is busy or has been closed for being idle.
+ * </p>
+ * <p>
+ * The signing key is loaded when the client is created, and the JWT made for
+ * each player is reused until it is {@link #JWT_RENEW_MS} from expiring, so
+ * repeat lookups don't pay for an RSA signature.
+ * </p>
+ * <p>
+ * {@link #getApiKeyAsync(String)} makes the lookup on a pool of our own
+ * threads, one per pooled connection, so callers that can't wait, like
+ * request threads, don't have to. Those lookups go through a
+ * {@link CircuitBreaker}, and at most {@link #MAX_IN_FLIGHT_LOOKUPS} are
+ * running or queued at once, so when the player service is struggling they
+ * fail straight away, with an {@link UnavailableException}, rather than
+ * queueing up behind each other.
+ * </p>
  *
  * @see ApplicationScoped
  */
+@ApplicationScoped
 public class PlayerClient {
 
+    /** Connections kept to the player service, in total and per host */
+    static final int MAX_CONNECTIONS = 20;
+    static final int CONNECT_TIMEOUT_MS = 2000;
+    static final int READ_TIMEOUT_MS = 5000;
+    /** How long to wait for a pooled connection when they are all in use */
+    static final int POOL_TIMEOUT_MS = 2000;
+    /** Pooled connections unused for this long are closed */
+    static final long IDLE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+    /** How long the JWTs we make are valid for */
+    static final long JWT_VALIDITY_MS = TimeUnit.HOURS.toMillis(24);
+    /** A cached JWT is replaced once it's this close to expiring */
+    static final long JWT_RENEW_MS = TimeUnit.HOURS.toMillis(1);
+    /** Async lookups running or waiting for a thread, beyond this they fail straight away */
+    static final int MAX_IN_FLIGHT_LOOKUPS = 100;
+    /** JWTs kept, beyond this they are all dropped and made again */
+    static final int MAX_CACHED_JWTS = 10000;
+
+    /**
+     * The player service couldn't answer: it is failing, or too slow, or too
+     * busy, so the lookup wasn't made or didn't finish. An answer from the
+     * player service saying no is reported as an {@link HttpResponseException}.
+     */
+    public static class UnavailableException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public UnavailableException(String message) {
+            super(message);
+        }
+
+        public UnavailableException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /** Makes the parsers that read player documents, it is thread safe */
+    private static final JsonFactory JSON = new JsonFactory();
+
+    /**
+     * Reads the apiKey from a player document as it arrives, see {@link #readApiKey(InputStream)}.
+     * Failed requests are reported as {@link HttpResponseException}s.
+     */
+    private static final ResponseHandler<String> API_KEY_HANDLER = new ResponseHandler<String>() {
+        @Override
+        public String handleResponse(HttpResponse response) throws IOException {
+            StatusLine status = response.getStatusLine();
+            HttpEntity entity = response.getEntity();
+            if (status.getStatusCode() >= 300) {
+                throw new HttpResponseException(status.getStatusCode(), status.getReasonPhrase());
+            }
+            if (entity == null) {
+                return null;
+            }
+            try (InputStream body = entity.getContent()) {
+                return readApiKey(body);
+            }
+        }
+    };
+
+    /** A JWT we made for a player, and when it stops being reused */
+    private static final class CachedJwt {
+        private final String jwt;
+        private final long renewAt;
+
+        CachedJwt(String jwt, long renewAt) {
+            this.jwt = jwt;
+            this.renewAt = renewAt;
+        }
+    }
+
     /**
      * The player URL injected from JNDI via CDI.
      * 
@@ -83,8 +199,24 @@ public class PlayerClient {
     String keyStoreAlias;
     
     /** The Key to Sign JWT's with (once it's loaded) */
-    private static Key signingKey = null;
+    volatile Key signingKey = null;
 
+    /** player id -> the JWT we last made for them */
+    private final ConcurrentMap<String, CachedJwt> jwts = new ConcurrentHashMap<String, CachedJwt>();
+    Clock clock = Clock.systemUTC();
+
+    /** The connections to the player service, shared by every request */
+    private PoolingHttpClientConnectionManager connections;
+    private CloseableHttpClient client;
+    /** runs the async lookups */
+    private ThreadPoolExecutor lookups;
+    /** async lookups running or queued */
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT_LOOKUPS);
+    private final LongAdder bulkheadRejections = new LongAdder();
+    CircuitBreaker breaker = new CircuitBreaker("player service", Clock.systemUTC());
+    /** how long the player service takes to answer */
+    private final Histogram lookupTimes = Metrics.getDefault().histogram("concierge_player_lookup_seconds",
+            "Time taken to get a player's key from the player service");
     
     /**
      * The {@code @PostConstruct} annotation indicates that this method should
@@ -96,6 +228,133 @@ public class PlayerClient {
      */
     @PostConstruct
     public void initClient(){
+        if (keyStore != null) {
+            try {
+                getKeyStoreInfo();
+            } catch (IOException e) {
+                // we'll try again when we first need it.
+                Log.error("player.signingKey.failed", "error", e.getMessage());
+            }
+        }
+
+        SSLConnectionSocketFactory ssl;
+        if("development".equals(System.getenv("CONCIERGE_PLAYER_MODE"))){
+            Log.info("player.connection", "mode", "development", "ssl", "default", "hostnameValidation", false);
+            try{
+                //use the default ssl context, we have a trust store configured for player cert.
+                //disable hostname validation, because we'll need to access the cert via a different hostname.
+                ssl = new SSLConnectionSocketFactory(SSLContext.getDefault(), NoopHostnameVerifier.INSTANCE);
+            }catch(NoSuchAlgorithmException e){
+                throw new IllegalStateException(e);
+            }
+        }else{
+            ssl = SSLConnectionSocketFactory.getSocketFactory();
+        }
+        Registry<ConnectionSocketFactory> schemes = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", ssl)
+                .build();
+
+        connections = new PoolingHttpClientConnectionManager(schemes);
+        connections.setMaxTotal(MAX_CONNECTIONS);
+        // there is only the one player service.
+        connections.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+        // check connections that have sat in the pool for a while are still open before using them.
+        connections.setValidateAfterInactivity(CONNECT_TIMEOUT_MS);
+
+        RequestConfig timeouts = RequestConfig.custom()
+                .setConnectTimeout(CONNECT_TIMEOUT_MS)
+                .setSocketTimeout(READ_TIMEOUT_MS)
+                .setConnectionRequestTimeout(POOL_TIMEOUT_MS)
+                .build();
+
+        client = HttpClients.custom()
+                .setConnectionManager(connections)
+                .setDefaultRequestConfig(timeouts)
+                .evictExpiredConnections()
+                .evictIdleConnections(IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .build();
+
+        // no more threads than connections, they would only wait for one.
+        lookups = new ThreadPoolExecutor(MAX_CONNECTIONS, MAX_CONNECTIONS, IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_IN_FLIGHT_LOOKUPS), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "concierge-player-lookup-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        lookups.allowCoreThreadTimeOut(true);
+        registerMetrics(Metrics.getDefault());
+    }
+
+    /**
+     * Report the connection pool, the bulkhead and the breaker with the rest of the concierge's metrics.
+     */
+    void registerMetrics(Metrics metrics){
+        metrics.gauge("concierge_player_connections", "Connections to the player service, by whether they are in use", new Metrics.Sample() {
+            @Override
+            public double get() {
+                return getPoolStats().getLeased();
+            }
+        }, "state", "leased");
+        metrics.gauge("concierge_player_connections", "Connections to the player service, by whether they are in use", new Metrics.Sample() {
+            @Override
+            public double get() {
+                return getPoolStats().getAvailable();
+            }
+        }, "state", "available");
+        metrics.gauge("concierge_player_connection_waiters", "Requests waiting for a connection to the player service", new Metrics.Sample() {
+            @Override
+            public double get() {
+                return getPoolStats().getPending();
+            }
+        });
+        metrics.gauge("concierge_player_lookups_in_flight", "Player lookups running or waiting for a thread", new Metrics.Sample() {
+            @Override
+            public double get() {
+                return getInFlightLookups();
+            }
+        });
+        metrics.counter("concierge_player_lookups_rejected_total", "Player lookups refused because too many were in flight",
+                Metrics.sampleOf(bulkheadRejections));
+        breaker.registerMetrics(metrics);
+    }
+
+    @PreDestroy
+    public void closeClient(){
+        lookups.shutdownNow();
+        try{
+            client.close();
+        }catch(IOException e){
+            Log.warn("player.close.failed", "error", e.getMessage());
+        }
+    }
+
+    /**
+     * How the pool of connections to the player service is being used:
+     * connections leased and available, and requests waiting for one.
+     */
+    public PoolStats getPoolStats(){
+        return connections.getTotalStats();
+    }
+
+    /** The breaker guarding lookups, for its state and how often it has refused them */
+    public CircuitBreaker getCircuitBreaker(){
+        return breaker;
+    }
+
+    /** Async lookups running or waiting for a thread */
+    public int getInFlightLookups(){
+        return MAX_IN_FLIGHT_LOOKUPS - inFlight.availablePermits();
+    }
+
+    /** Async lookups refused because too many were already in flight */
+    public long getBulkheadRejections(){
+        return bulkheadRejections.sum();
     }
     
     /**
@@ -105,9 +364,10 @@ public class PlayerClient {
      *             if there are any issues with the keystore processing.
      */
     private synchronized void getKeyStoreInfo() throws IOException {
-        try {
+        if (signingKey != null)
+            return;
+        try (FileInputStream is = new FileInputStream(keyStore)) {
             // load up the keystore..
-            FileInputStream is = new FileInputStream(keyStore);
             KeyStore signingKeystore = KeyStore.getInstance(KeyStore.getDefaultType());
             signingKeystore.load(is, keyStorePW.toCharArray());
 
@@ -130,13 +390,27 @@ public class PlayerClient {
      * Obtain a JWT for the player id that can be used to invoke player REST services.
      * 
      * We can create this, because the concierge has access to the private certificate 
-     * required to sign such a JWT. 
+     * required to sign such a JWT. The last one made for each player is reused
+     * until it is close to expiring.
      * 
      * @param playerId The id to build the JWT for
      * @return The JWT as a string.
      * @throws IOException
      */
-    private String getClientJwtForId(String playerId) throws IOException{
+    String getClientJwtForId(String playerId) throws IOException{
+        long now = clock.millis();
+        CachedJwt cached = jwts.get(playerId);
+        if (cached != null && now < cached.renewAt)
+            return cached.jwt;
+
+        String newJwt = signJwt(playerId, now);
+        if (jwts.size() >= MAX_CACHED_JWTS)
+            jwts.clear();
+        jwts.put(playerId, new CachedJwt(newJwt, now + JWT_VALIDITY_MS - JWT_RENEW_MS));
+        return newJwt;
+    }
+
+    private String signJwt(String playerId, long now) throws IOException{
         // grab the key if needed
         if (signingKey == null)
             getKeyStoreInfo();
@@ -152,14 +426,10 @@ public class PlayerClient {
         // we set creation time to 24hrs ago, to avoid timezone issues in the
         // browser
         // verification of the jwt.
-        Calendar calendar1 = Calendar.getInstance();
-        calendar1.add(Calendar.HOUR, -24);
-        onwardsClaims.setIssuedAt(calendar1.getTime());
+        onwardsClaims.setIssuedAt(new Date(now - TimeUnit.HOURS.toMillis(24)));
 
         // client JWT has 24 hrs validity from now.
-        Calendar calendar2 = Calendar.getInstance();
-        calendar2.add(Calendar.HOUR, 24);
-        onwardsClaims.setExpiration(calendar2.getTime());
+        onwardsClaims.setExpiration(new Date(now + JWT_VALIDITY_MS));
 
         // finally build the new jwt, using the claims we just built, signing it
         // with our signing key, and adding a key hint as kid to the encryption 
@@ -182,62 +452,124 @@ public class PlayerClient {
      * @return The apiKey for the player
      */
     public String getApiKey(String playerId) throws IOException {
-    	String jwt = getClientJwtForId(playerId);
-    	
-    	HttpClient client = null;
-    	if("development".equals(System.getenv("CONCIERGE_PLAYER_MODE"))){
-    		System.out.println("Using development mode player connection. (DefaultSSL,NoHostNameValidation)");
-    		try{
-	    		HttpClientBuilder b = HttpClientBuilder.create();
-	    		
-	    		//use the default ssl context, we have a trust store configured for player cert.
-	    		SSLContext sslContext = SSLContext.getDefault();
-	    		
-	    		//use a very trusting truststore.. (not needed..)
-	    		//SSLContext sslContext = new SSLContextBuilder().loadTrustMaterial(null, new TrustSelfSignedStrategy()).build();
-	    		    	
-	    		b.setSSLContext( sslContext);
-	    		
-	    		//disable hostname validation, because we'll need to access the cert via a different hostname.
-	    		b.setSSLHostnameVerifier(NoopHostnameVerifier.INSTANCE);
-	    		
-	    		client = b.build();
-    		}catch(Exception e){
-    			throw new IOException(e);
-    		}
-    	}else{
-    		client = HttpClientBuilder.create().build();
-    	}
+        return getApiKey(playerId, getClientJwtForId(playerId));
+    }
+
+    /**
+     * Obtain apiKey for player id, without waiting for it.
+     *
+     * @param playerId
+     *            The player id
+     * @return The apiKey for the player, when the player service has answered.
+     *         It fails with an IOException if the lookup did.
+     */
+    public CompletableFuture<String> getApiKeyAsync(final String playerId) {
+        final CompletableFuture<String> result = new CompletableFuture<String>();
+        if (!inFlight.tryAcquire()) {
+            bulkheadRejections.increment();
+            result.completeExceptionally(new UnavailableException("too many player lookups in flight"));
+            return result;
+        }
+        if (!breaker.tryAcquire()) {
+            inFlight.release();
+            result.completeExceptionally(new UnavailableException("player service circuit is open"));
+            return result;
+        }
+        try {
+            lookups.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    String key = null;
+                    IOException failure = null;
+                    try {
+                        key = getApiKey(playerId);
+                        breaker.succeeded(System.nanoTime() - start);
+                    } catch (HttpResponseException e) {
+                        if (e.getStatusCode() < 500) {
+                            // the player service answered, just not with a key.
+                            breaker.succeeded(System.nanoTime() - start);
+                            failure = e;
+                        } else {
+                            breaker.failed();
+                            failure = new UnavailableException("player service failed", e);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        breaker.failed();
+                        failure = new UnavailableException("player service failed", e);
+                    } finally {
+                        inFlight.release();
+                    }
+                    if (failure == null) {
+                        result.complete(key);
+                    } else {
+                        result.completeExceptionally(failure);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // we're shutting down.
+            inFlight.release();
+            result.completeExceptionally(new UnavailableException("player lookups have stopped", e));
+        }
+        return result;
+    }
+
+    /**
+     * Ask the player service for the apiKey of a player, authenticating with the given JWT.
+     */
+    String getApiKey(String playerId, String jwt) throws IOException {
     	HttpGet hg = new HttpGet(playerLocation+"/"+playerId+"?jwt="+jwt);
     	
-    	System.out.println("Building web target "+hg.getURI().toString());
+    	// the URI carries the JWT, so only the player is logged.
+    	Log.info("player.lookup", "player", playerId);
      
+        long start = System.nanoTime();
         try {
-            // Make GET request using the specified target, get result as a
-            // string containing JSON
-        	HttpResponse r = client.execute(hg);
-        	String result = new BasicResponseHandler().handleResponse(r);
-                     
-            // Parse the JSON response, and retrieve the apiKey field value.
-            ObjectMapper om = new ObjectMapper();
-            JsonNode jn = om.readValue(result,JsonNode.class);
-            
-            return jn.get("apiKey").textValue();
+            // Make GET request using the specified target, and pick the apiKey
+            // field out of the JSON as it arrives. Whatever is left of the
+            // response is discarded after, so the connection goes back to the pool.
+        	return client.execute(hg, API_KEY_HANDLER);
         } catch (HttpResponseException hre) {
-        	System.out.println("Error communicating with player service: "+hre.getStatusCode()+" "+hre.getMessage());
+        	Log.warn("player.lookup.failed", "player", playerId, "status", hre.getStatusCode(), "error", hre.getMessage());
             throw hre;
         } catch (ResponseProcessingException rpe) {
-        	System.out.println("Error processing response "+rpe.getResponse().toString());
+        	Log.warn("player.lookup.failed", "player", playerId, "error", rpe.getResponse().toString());
             throw new IOException(rpe);
         } catch (ProcessingException | WebApplicationException ex) {
         	//bad stuff.
-        	System.out.println("Hmm.. "+ex.getMessage());
+        	Log.warn("player.lookup.failed", "player", playerId, "error", ex.getMessage());
         	throw new IOException(ex);
         } catch(IOException io){
-        	System.out.println("Utoh.. "+io.getMessage());
+        	Log.warn("player.lookup.failed", "player", playerId, "error", io.getMessage());
         	throw new IOException(io);
+        } finally {
+        	lookupTimes.recordSince(start);
         }
 
     }
 
+    /**
+     * Read the top level apiKey field from a player document, parsing no
+     * more of it than we have to, and without keeping any of the rest.
+     *
+     * @return the key, or null if the document doesn't have one.
+     */
+    static String readApiKey(InputStream document) throws IOException {
+        try (JsonParser parser = JSON.createParser(document)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("player document is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("apiKey".equals(field)) {
+                    return value == JsonToken.VALUE_STRING ? parser.getText() : null;
+                }
+                parser.skipChildren();
+            }
+            return null;
+        }
+    }
+
 }
@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+
+/**
+ * The parameters we want from a query string, found in one pass over it.
+ * <p>
+ * Only where each parameter is in the query string is recorded; a value is
+ * only copied out, and decoded, when it is asked for, and numbers are read in
+ * place. As with {@code ServletRequest.getParameter}, a parameter given more
+ * than once has its first value.
+ * </p>
+ *
+ * @param <E> the parameters we want, named by the constants' names.
+ */
+public class QueryParameters<E extends Enum<E>> {
+
+	private final String query;
+	private final E[] names;
+	/** where each parameter's first value starts and ends, -1 if it isn't there */
+	private final int[] valueStarts;
+	private final int[] valueEnds;
+	/** where each parameter's last appearance starts */
+	private final int[] lastStarts;
+
+	/**
+	 * @param names every constant of the parameter enum, in ordinal order.
+	 */
+	public QueryParameters(String query, E[] names) {
+		this.query = query;
+		this.names = names;
+		this.valueStarts = new int[names.length];
+		this.valueEnds = new int[names.length];
+		this.lastStarts = new int[names.length];
+		for (int i = 0; i < names.length; i++) {
+			valueStarts[i] = -1;
+			lastStarts[i] = -1;
+		}
+		if (query != null) {
+			parse();
+		}
+	}
+
+	private void parse() {
+		int length = query.length();
+		int start = 0;
+		while (start <= length) {
+			int end = query.indexOf('&', start);
+			if (end == -1) {
+				end = length;
+			}
+			int equals = query.indexOf('=', start);
+			if (equals != -1 && equals < end) {
+				for (int i = 0; i < names.length; i++) {
+					String name = names[i].name();
+					if (name.length() == equals - start && query.regionMatches(start, name, 0, name.length())) {
+						lastStarts[i] = start;
+						if (valueStarts[i] == -1) {
+							valueStarts[i] = equals + 1;
+							valueEnds[i] = end;
+						}
+						break;
+					}
+				}
+			}
+			start = end + 1;
+		}
+	}
+
+	public boolean has(E name) {
+		return valueStarts[name.ordinal()] != -1;
+	}
+
+	/**
+	 * The decoded value of a parameter.
+	 *
+	 * @return the value, or null if the parameter isn't there or can't be decoded.
+	 */
+	public String get(E name) {
+		int start = valueStarts[name.ordinal()];
+		if (start == -1) {
+			return null;
+		}
+		String value = query.substring(start, valueEnds[name.ordinal()]);
+		if (value.indexOf('%') == -1 && value.indexOf('+') == -1) {
+			return value;
+		}
+		try {
+			return URLDecoder.decode(value, "UTF-8");
+		} catch (UnsupportedEncodingException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The value of a parameter that should be a non negative number.
+	 *
+	 * @return the number, or -1 if the parameter isn't there or isn't a number.
+	 */
+	public long getLong(E name) {
+		int start = valueStarts[name.ordinal()];
+		int end = valueEnds[name.ordinal()];
+		if (start == -1 || start == end || end - start > 18) {
+			return -1;
+		}
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			char ch = query.charAt(i);
+			if (ch < '0' || ch > '9') {
+				return -1;
+			}
+			value = value * 10 + (ch - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * Where the last appearance of a parameter starts, so that what comes
+	 * before it can be used without copying it.
+	 *
+	 * @return the offset of its name, or -1 if it isn't there.
+	 */
+	public int lastIndexOf(E name) {
+		return lastStarts[name.ordinal()];
+	}
+}
@@ -0,0 +1,600 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import net.wasdev.gameon.room.common.Exit;
+import net.wasdev.gameon.room.common.Room;
+
+/**
+ * Keeps registrations on disk, so that a restarted concierge knows about
+ * every room straight away instead of waiting for them all to re-register.
+ * <p>
+ * Every registration is appended to a memory mapped log. Once a log holds
+ * {@code snapshotEvery} records (or as many as the last snapshot, if that is
+ * more, so the cost of compacting stays in proportion) a new log is started,
+ * and in the background the previous snapshot and the logs since are
+ * compacted into a new snapshot that holds just one registration per room
+ * endpoint. On startup the newest snapshot is replayed, then the logs written
+ * after it. Rooms whose leases expired are left out of snapshots altogether,
+ * so with 2D placement rooms can move up into the gaps they leave when
+ * restarting from a snapshot.
+ * </p>
+ * <p>
+ * Each record is written as its length, a CRC32 of its content, and the
+ * content (a registration or an expired lease). The length is written last, so a record
+ * that was only partly written when we went down reads as the end of the log,
+ * and replay simply stops there.
+ * </p>
+ * <p>
+ * The content is a compact binary encoding of the record, see
+ * {@link #encode(Record)}, which is several times quicker to replay than
+ * JSON. Journals written before that held JSON records, which are still
+ * replayed, and are rewritten in the binary encoding by the next compaction.
+ * </p>
+ * <p>
+ * Records are in the page cache as soon as they are appended, so they survive
+ * the process dying straight away. They are only forced to disk about once a
+ * second though, so if the whole machine goes down the last second or so of
+ * registrations can be lost. Those rooms will register again anyway.
+ * </p>
+ */
+public class RegistrationJournal implements Closeable {
+
+	public static final int DEFAULT_SNAPSHOT_EVERY = 10000;
+	/** How often appended records are forced to disk */
+	public static final long SYNC_INTERVAL_MS = 1000;
+
+	private static final int INITIAL_LOG_SIZE = 1 << 20;
+	private static final int RECORD_HEADER = 8;
+	private static final Pattern FILE_NAME = Pattern.compile("(log|snapshot)-(\\d+)\\.dat");
+	/** how older, JSON, records are read */
+	private static final ObjectReader RECORD_READER = new ObjectMapper().reader(Record.class);
+	/** the first byte of a binary record, JSON records always start with '{' */
+	private static final byte BINARY_FORMAT = 1;
+
+	/**
+	 * A journal record.
+	 */
+	public static class Record {
+		public static final String REGISTER = "register";
+		/** a lease expired, room holds just the room name and the endpoint (if any) */
+		public static final String EXPIRE = "expire";
+
+		public String type;
+		public String owner;
+		public Room room;
+
+		public Record() {
+			//no-args constructor for JSON serialisation
+		}
+
+		Record(String type, String owner, Room room) {
+			this.type = type;
+			this.owner = owner;
+			this.room = room;
+		}
+	}
+
+	/**
+	 * Receives records as they are replayed.
+	 */
+	public interface Replay {
+		void replay(Record record);
+	}
+
+	private final File directory;
+	private final int snapshotEvery;
+	private final ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "concierge-journal");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/** the log being appended to, guarded by this */
+	private long generation;
+	private FileChannel channel;
+	private MappedByteBuffer log;
+	private int recordsInLog;
+	/** the number of records in the newest snapshot */
+	private volatile int snapshotRecords;
+
+	public RegistrationJournal(File directory) {
+		this(directory, DEFAULT_SNAPSHOT_EVERY);
+	}
+
+	public RegistrationJournal(File directory, int snapshotEvery) {
+		this.directory = directory;
+		this.snapshotEvery = snapshotEvery;
+	}
+
+	/**
+	 * Replay the newest snapshot and the logs written after it, then open the
+	 * newest log for appending. Must be called once, before anything is appended.
+	 *
+	 * @return the number of records replayed.
+	 */
+	public synchronized int open(Replay replay) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create journal directory " + directory);
+		}
+		TreeMap<Long, File> snapshots = new TreeMap<Long, File>();
+		TreeMap<Long, File> logs = new TreeMap<Long, File>();
+		list(snapshots, logs);
+
+		int replayed = 0;
+		long first = 0;
+		if (!snapshots.isEmpty()) {
+			first = snapshots.lastKey();
+			snapshotRecords = read(snapshots.lastEntry().getValue(), replay).count;
+			replayed += snapshotRecords;
+		}
+		generation = first;
+		int validEnd = 0;
+		for (Map.Entry<Long, File> entry : logs.tailMap(first, true).entrySet()) {
+			ReadResult result = read(entry.getValue(), replay);
+			replayed += result.count;
+			generation = entry.getKey();
+			validEnd = result.end;
+			recordsInLog = result.count;
+		}
+		openLog(generation, validEnd);
+		background.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				sync();
+			}
+		}, SYNC_INTERVAL_MS, SYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+		return replayed;
+	}
+
+	/**
+	 * Append a registration to the log.
+	 */
+	public synchronized void append(Room room, String owner) throws IOException {
+		write(new Record(Record.REGISTER, owner, room));
+	}
+
+	/**
+	 * Append an expired lease to the log.
+	 *
+	 * @param endpoint the endpoint the lease was for, or null if it was for the room.
+	 */
+	public synchronized void appendExpiry(String roomId, String endpoint) throws IOException {
+		Room room = new Room(roomId);
+		if (endpoint != null) {
+			room.setAttribute("endPoint", endpoint);
+		}
+		write(new Record(Record.EXPIRE, null, room));
+	}
+
+	private void write(Record record) throws IOException {
+		byte[] content = encode(record);
+		if (log.remaining() < RECORD_HEADER + content.length) {
+			grow(RECORD_HEADER + content.length);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(content, 0, content.length);
+		int start = log.position();
+		log.position(start + 4);
+		log.putInt((int) crc.getValue());
+		log.put(content);
+		// the length goes in last, it is what makes the record visible to replay.
+		log.putInt(start, content.length);
+
+		if (++recordsInLog >= Math.max(snapshotEvery, snapshotRecords)) {
+			rotate();
+		}
+	}
+
+	/**
+	 * Force everything appended so far to disk.
+	 */
+	public synchronized void sync() {
+		if (log != null) {
+			log.force();
+		}
+	}
+
+	/**
+	 * Start a new log, and compact everything before it into a snapshot in the background.
+	 */
+	public synchronized void rotate() throws IOException {
+		sync();
+		channel.close();
+		final long snapshotGeneration = generation + 1;
+		openLog(snapshotGeneration, 0);
+		recordsInLog = 0;
+		background.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					compact(snapshotGeneration);
+				} catch (IOException e) {
+					Log.error("journal.compact.failed", "error", e.toString());
+				}
+			}
+		});
+	}
+
+	@Override
+	public void close() throws IOException {
+		background.shutdown();
+		try {
+			background.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			if (channel != null) {
+				sync();
+				channel.close();
+				channel = null;
+				log = null;
+			}
+		}
+	}
+
+	/**
+	 * Write snapshot-{generation}, holding one registration per endpoint of
+	 * every room in the previous snapshot and the logs before {@code generation},
+	 * then remove the files it replaces.
+	 */
+	void compact(long generation) throws IOException {
+		TreeMap<Long, File> snapshots = new TreeMap<Long, File>();
+		TreeMap<Long, File> logs = new TreeMap<Long, File>();
+		list(snapshots, logs);
+		Map.Entry<Long, File> previous = snapshots.floorEntry(generation - 1);
+		long from = previous == null ? 0 : previous.getKey();
+
+		final Compaction compaction = new Compaction();
+		if (previous != null) {
+			read(previous.getValue(), compaction);
+		}
+		for (File file : logs.subMap(from, true, generation, false).values()) {
+			read(file, compaction);
+		}
+
+		List<byte[]> records = compaction.encode();
+		File tmp = new File(directory, fileName("snapshot", generation) + ".tmp");
+		try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+			out.setLength(0);
+			ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+			for (byte[] content : records) {
+				if (buffer.remaining() < RECORD_HEADER + content.length) {
+					buffer.flip();
+					out.getChannel().write(buffer);
+					buffer = ByteBuffer.allocate(Math.max(buffer.capacity(), RECORD_HEADER + content.length));
+				}
+				CRC32 crc = new CRC32();
+				crc.update(content, 0, content.length);
+				buffer.putInt(content.length);
+				buffer.putInt((int) crc.getValue());
+				buffer.put(content);
+			}
+			buffer.flip();
+			out.getChannel().write(buffer);
+			out.getChannel().force(true);
+		}
+		Files.move(tmp.toPath(), new File(directory, fileName("snapshot", generation)).toPath(), StandardCopyOption.ATOMIC_MOVE);
+		snapshotRecords = records.size();
+
+		// the new snapshot replaces everything before it.
+		for (File file : snapshots.headMap(generation, false).values()) {
+			Files.deleteIfExists(file.toPath());
+		}
+		for (File file : logs.headMap(generation, false).values()) {
+			Files.deleteIfExists(file.toPath());
+		}
+	}
+
+	/**
+	 * Folds records down to the latest registration of each endpoint of each
+	 * room, in the order the rooms first registered.
+	 */
+	private static final class Compaction implements Replay {
+
+		private static final class RoomState {
+			private Room latest;
+			private String owner;
+			private boolean starter;
+			private EndpointSet endpoints = EndpointSet.empty();
+		}
+
+		private final Map<String, RoomState> rooms = new LinkedHashMap<String, RoomState>();
+
+		@Override
+		public void replay(Record record) {
+			if (record.room == null || record.room.getRoomName() == null) {
+				return;
+			}
+			String roomId = record.room.getRoomName();
+			String endpoint = record.room.getAttribute("endPoint");
+			RoomState state = rooms.get(roomId);
+			if (Record.EXPIRE.equals(record.type)) {
+				if (state != null) {
+					state.endpoints = state.endpoints.remove(endpoint);
+					if (state.endpoints.size() == 0) {
+						rooms.remove(roomId);
+					}
+				}
+				return;
+			}
+			if (!Record.REGISTER.equals(record.type)) {
+				return;
+			}
+			if (state == null) {
+				state = new RoomState();
+				rooms.put(roomId, state);
+			}
+			state.latest = record.room;
+			state.owner = record.owner;
+			String startLocation = record.room.getAttribute("startLocation");
+			state.starter |= startLocation == null || Boolean.valueOf(startLocation);
+			state.endpoints = state.endpoints.add(endpoint, EndpointSet.DEFAULT_CAPACITY);
+		}
+
+		/**
+		 * The records to replay to get back to the same state, already encoded.
+		 */
+		List<byte[]> encode() throws IOException {
+			List<byte[]> records = new ArrayList<byte[]>();
+			for (RoomState state : rooms.values()) {
+				Room room = state.latest;
+				room.getAttributes().remove("occupancy");
+				room.setAttribute("startLocation", String.valueOf(state.starter));
+				List<String> endpoints = state.endpoints.asList();
+				if (endpoints.isEmpty()) {
+					room.getAttributes().remove("endPoint");
+					records.add(RegistrationJournal.encode(new Record(Record.REGISTER, state.owner, room)));
+				}
+				// oldest first, so replay leaves them in the same order.
+				for (int i = endpoints.size() - 1; i >= 0; i--) {
+					room.setAttribute("endPoint", endpoints.get(i));
+					records.add(RegistrationJournal.encode(new Record(Record.REGISTER, state.owner, room)));
+				}
+			}
+			return records;
+		}
+	}
+
+	private static final class ReadResult {
+		private int count;
+		private int end;
+	}
+
+	/**
+	 * Replay the valid records at the start of a file, stopping at the first
+	 * one that is missing, incomplete or corrupt.
+	 */
+	private static ReadResult read(File file, Replay replay) throws IOException {
+		ReadResult result = new ReadResult();
+		try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			ByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+			CRC32 crc = new CRC32();
+			while (buffer.remaining() >= RECORD_HEADER) {
+				int start = buffer.position();
+				int length = buffer.getInt();
+				int expected = buffer.getInt();
+				if (length <= 0 || length > buffer.remaining()) {
+					break;
+				}
+				byte[] content = new byte[length];
+				buffer.get(content);
+				crc.reset();
+				crc.update(content, 0, length);
+				if ((int) crc.getValue() != expected) {
+					Log.warn("journal.damaged", "file", file.getName(), "offset", start);
+					break;
+				}
+				Record record;
+				try {
+					record = decode(content);
+				} catch (IOException e) {
+					Log.warn("journal.damaged", "file", file.getName(), "offset", start, "error", e.toString());
+					break;
+				}
+				replay.replay(record);
+				result.count++;
+				result.end = buffer.position();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Encode a record as: the format byte, the type, the owner, the room
+	 * name, its id, its attributes and its exits. Strings are written as
+	 * their UTF-8 length (-1 for null) then their bytes, collections as
+	 * their size then their elements.
+	 */
+	static byte[] encode(Record record) throws IOException {
+		Room room = record.room;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(BINARY_FORMAT);
+		writeString(out, record.type);
+		writeString(out, record.owner);
+		writeString(out, room.getRoomName());
+		UUID id = room.getAssignedID();
+		out.writeBoolean(id != null);
+		if (id != null) {
+			out.writeLong(id.getMostSignificantBits());
+			out.writeLong(id.getLeastSignificantBits());
+		}
+		out.writeInt(room.getAttributes().size());
+		for (Map.Entry<String, String> attribute : room.getAttributes().entrySet()) {
+			writeString(out, attribute.getKey());
+			writeString(out, attribute.getValue());
+		}
+		// null exits are ignored everywhere else, so they aren't kept.
+		List<Exit> exits = new ArrayList<Exit>(room.getExits().size());
+		for (Exit exit : room.getExits()) {
+			if (exit != null) {
+				exits.add(exit);
+			}
+		}
+		out.writeInt(exits.size());
+		for (Exit exit : exits) {
+			writeString(out, exit.getName());
+			writeString(out, exit.getRoom());
+			writeString(out, exit.getDescription());
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decode a record written by {@link #encode(Record)}, or as JSON by an
+	 * older concierge.
+	 */
+	static Record decode(byte[] content) throws IOException {
+		if (content.length == 0 || content[0] != BINARY_FORMAT) {
+			return RECORD_READER.readValue(content);
+		}
+		try {
+			ByteBuffer in = ByteBuffer.wrap(content, 1, content.length - 1);
+			String type = readString(in);
+			String owner = readString(in);
+			Room room = new Room(readString(in));
+			room.setAssignedID(in.get() != 0 ? new UUID(in.getLong(), in.getLong()) : null);
+			for (int i = in.getInt(); i > 0; i--) {
+				room.setAttribute(readString(in), readString(in));
+			}
+			for (int i = in.getInt(); i > 0; i--) {
+				room.addExit(new Exit(readString(in), readString(in), readString(in)));
+			}
+			if (in.hasRemaining()) {
+				throw new IOException(in.remaining() + " unexpected bytes at the end of the record");
+			}
+			return new Record(type, owner, room);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+			throw new IOException("Malformed record", e);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(utf8.length);
+		out.write(utf8);
+	}
+
+	private static String readString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0) {
+			return null;
+		}
+		String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+		in.position(in.position() + length);
+		return value;
+	}
+
+	/**
+	 * Map a log for appending, positioned after its last valid record, with
+	 * anything beyond that cleared so it can't be mistaken for records later.
+	 */
+	private void openLog(long generation, int position) throws IOException {
+		this.generation = generation;
+		File file = new File(directory, fileName("log", generation));
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long size = Math.max(channel.size(), INITIAL_LOG_SIZE);
+		log = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		log.position(position);
+		clearFrom(position);
+	}
+
+	/**
+	 * Remap the log with room for at least {@code needed} more bytes.
+	 */
+	private void grow(int needed) throws IOException {
+		int position = log.position();
+		long size = Math.max((long) log.capacity() * 2, (long) position + needed);
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Registration journal " + fileName("log", generation) + " is full");
+		}
+		log.force();
+		log = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		log.position(position);
+	}
+
+	private void clearFrom(int position) {
+		for (int i = position; i < log.capacity(); i++) {
+			if (log.get(i) != 0) {
+				log.put(i, (byte) 0);
+			}
+		}
+	}
+
+	private void list(Map<Long, File> snapshots, Map<Long, File> logs) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			Matcher m = FILE_NAME.matcher(file.getName());
+			if (!m.matches()) {
+				continue;
+			}
+			long gen = Long.parseLong(m.group(2));
+			if ("log".equals(m.group(1))) {
+				logs.put(gen, file);
+			} else {
+				snapshots.put(gen, file);
+			}
+		}
+	}
+
+	private static String fileName(String kind, long generation) {
+		return String.format("%s-%016d.dat", kind, generation);
+	}
+}
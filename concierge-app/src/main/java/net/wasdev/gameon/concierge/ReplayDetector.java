@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import java.time.Clock;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Remembers which signed requests have already been seen, so that each one
+ * can only be used once.
+ * <p>
+ * Requests are only accepted within {@code windowMS} of their timestamp, so
+ * they only need to be remembered for that long. They are kept in a ring of
+ * buckets, one per {@code bucketMS} of timestamp, each a concurrent set. When
+ * a bucket's turn comes round again everything in it has expired, and the
+ * whole bucket is replaced in one go. Threads only contend when they land in
+ * the same bucket and the same part of its set, and what is remembered is
+ * bounded by the requests received in the window.
+ * </p>
+ * <p>
+ * Timestamps more than {@code windowMS} in the future are refused too, as
+ * they would have to be remembered for longer than the ring covers.
+ * </p>
+ */
+public class ReplayDetector {
+
+	/** Default span of timestamps each bucket covers */
+	public static final long DEFAULT_BUCKET_MS = 1000;
+
+	/** The requests seen with timestamps in one bucket's span */
+	private static final class Bucket {
+		private final long epoch;
+		private final Set<String> seen = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		Bucket(long epoch) {
+			this.epoch = epoch;
+		}
+	}
+
+	private final Clock clock;
+	private final long windowMS;
+	private final long bucketMS;
+	private final AtomicReferenceArray<Bucket> buckets;
+
+	public ReplayDetector(Clock clock, long windowMS) {
+		this(clock, windowMS, DEFAULT_BUCKET_MS);
+	}
+
+	public ReplayDetector(Clock clock, long windowMS, long bucketMS) {
+		this.clock = clock;
+		this.windowMS = windowMS;
+		this.bucketMS = bucketMS;
+		// enough buckets for a window either side of now, and the partial buckets at either end.
+		int size = (int) (2 * ((windowMS + bucketMS - 1) / bucketMS)) + 2;
+		this.buckets = new AtomicReferenceArray<Bucket>(size);
+	}
+
+	/**
+	 * Record that a request has been seen.
+	 *
+	 * @param key identifies the request, its signature say.
+	 * @param stamp the timestamp the request was signed with.
+	 * @return true if this is the first time it has been seen, and it is within the window.
+	 */
+	public boolean firstUse(String key, long stamp) {
+		long now = clock.millis();
+		if (stamp < now - windowMS || stamp > now + windowMS) {
+			return false;
+		}
+		long epoch = Math.floorDiv(stamp, bucketMS);
+		int index = (int) Math.floorMod(epoch, (long) buckets.length());
+		while (true) {
+			Bucket bucket = buckets.get(index);
+			if (bucket != null && bucket.epoch == epoch) {
+				return bucket.seen.add(key);
+			}
+			if (bucket != null && bucket.epoch > epoch) {
+				// the slot has already moved on to later timestamps, so this one has expired.
+				return false;
+			}
+			// everything in the old bucket has expired, drop the lot.
+			buckets.compareAndSet(index, bucket, new Bucket(epoch));
+		}
+	}
+
+	/**
+	 * How many requests are remembered, expired or not.
+	 */
+	public int size() {
+		int size = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			Bucket bucket = buckets.get(i);
+			if (bucket != null) {
+				size += bucket.seen.size();
+			}
+		}
+		return size;
+	}
+}
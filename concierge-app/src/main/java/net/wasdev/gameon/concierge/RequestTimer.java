@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.ext.Provider;
+
+import net.wasdev.gameon.concierge.Metrics.Histogram;
+
+/**
+ * Times each request from when it has been matched to a resource method
+ * until its response is ready, in a histogram for each method.
+ */
+@Provider
+public class RequestTimer implements ContainerRequestFilter, ContainerResponseFilter {
+
+	static final String REQUEST_SECONDS = "concierge_request_seconds";
+	private static final String STARTED = RequestTimer.class.getName() + ".started";
+
+	/** resource method -> its histogram, so requests don't take the registry's lock */
+	private static final ConcurrentMap<Method, Histogram> operations = new ConcurrentHashMap<Method, Histogram>();
+
+	@Context
+	ResourceInfo resourceInfo;
+
+	@Override
+	public void filter(ContainerRequestContext request) throws IOException {
+		request.setProperty(STARTED, System.nanoTime());
+	}
+
+	@Override
+	public void filter(ContainerRequestContext request, ContainerResponseContext response) throws IOException {
+		Object started = request.getProperty(STARTED);
+		Method method = resourceInfo.getResourceMethod();
+		if (started == null || method == null) {
+			// no method matched, there was nothing to time.
+			return;
+		}
+		histogramFor(method).recordSince((Long) started);
+	}
+
+	static Histogram histogramFor(Method method) {
+		Histogram histogram = operations.get(method);
+		if (histogram == null) {
+			histogram = Metrics.getDefault().histogram(REQUEST_SECONDS, "Time taken to answer requests, by resource method",
+					"operation", method.getName());
+			operations.putIfAbsent(method, histogram);
+		}
+		return histogram;
+	}
+}
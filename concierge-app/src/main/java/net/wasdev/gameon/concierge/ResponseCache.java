@@ -0,0 +1,247 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import net.wasdev.gameon.room.common.Neighbourhood;
+import net.wasdev.gameon.room.common.RoomToEndpoints;
+import net.wasdev.gameon.room.common.RoomToEndpointsWrapper;
+
+/**
+ * The JSON bodies for the concierge GET requests, encoded once and then
+ * reused until the rooms they describe change.
+ * <p>
+ * Every cached body remembers the {@link RoomDirectory} snapshot it was
+ * built from. The directory publishes a new snapshot for a room whenever
+ * that room changes, so a body is only rebuilt when its own room has
+ * changed, not when any other room registers or is reranked. Neighbourhood
+ * bodies remember every snapshot (and exit) they were built from. Bodies for
+ * a room are dropped when the room is removed. Each body carries a strong
+ * ETag, derived from its bytes, so clients can revalidate with
+ * {@code If-None-Match}.
+ * </p>
+ */
+@ApplicationScoped
+public class ResponseCache {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/** An encoded response body */
+	public static final class CachedResponse {
+		/** what the body was built from, compared by identity to the directory's current snapshots */
+		private final Object source;
+		private final byte[] body;
+		private final String etag;
+
+		CachedResponse(Object source, byte[] body) {
+			this.source = source;
+			this.body = body;
+			this.etag = etagFor(body);
+		}
+
+		/**
+		 * The encoded JSON. Shared between requests, so must not be modified.
+		 */
+		public byte[] getBody() {
+			return body;
+		}
+
+		/**
+		 * The entity tag value for the body, without the surrounding quotes.
+		 */
+		public String getEtag() {
+			return etag;
+		}
+	}
+
+	@Inject
+	Concierge c;
+
+	/** room id -> the body for /rooms/{roomId} */
+	final ConcurrentMap<String, CachedResponse> rooms = new ConcurrentHashMap<String, CachedResponse>();
+	/** room id -> exit name -> the body for /rooms/{roomId}/{exitName} */
+	final ConcurrentMap<String, ConcurrentMap<String, CachedResponse>> exits = new ConcurrentHashMap<String, ConcurrentMap<String, CachedResponse>>();
+	/** room id -> the bodies for /neighbourhood/{roomId}, indexed by depth - 1 */
+	final ConcurrentMap<String, CachedResponse[]> neighbourhoods = new ConcurrentHashMap<String, CachedResponse[]>();
+
+	public ResponseCache() {
+	}
+
+	public ResponseCache(Concierge concierge) {
+		this.c = concierge;
+		init();
+	}
+
+	@PostConstruct
+	public void init() {
+		c.addDirectoryListener(new RoomDirectory.Listener() {
+			@Override
+			public void endpointsChanged(String roomId, RoomToEndpoints previous, RoomToEndpoints current) {
+				if (current == null) {
+					evict(roomId);
+				}
+			}
+		});
+	}
+
+	/**
+	 * The body for a room, including rooms we don't know, for which rel is null.
+	 */
+	public CachedResponse getRoom(String roomId) throws IOException {
+		RoomToEndpoints rte = c.getRoom(roomId);
+		CachedResponse cached = rooms.get(roomId);
+		if (cached != null && cached.source == rte) {
+			return cached;
+		}
+		CachedResponse built = new CachedResponse(rte, encode(rte));
+		if (rte != null) {
+			rooms.put(roomId, built);
+		} else if (cached != null) {
+			rooms.remove(roomId, cached);
+		}
+		return built;
+	}
+
+	/**
+	 * The body for the room behind an exit, or null if the exit doesn't lead
+	 * to a room with endpoints.
+	 */
+	public CachedResponse exitRoom(String roomId, String exitName) throws IOException {
+		RoomToEndpoints rte = c.exitRoom(roomId, exitName);
+		ConcurrentMap<String, CachedResponse> roomExits = exits.get(roomId);
+		CachedResponse cached = roomExits == null ? null : roomExits.get(exitName);
+		if (rte == null || rte.getEndpoints().isEmpty()) {
+			if (cached != null) {
+				roomExits.remove(exitName, cached);
+			}
+			return null;
+		}
+		// the snapshot names its room, so this also notices the exit being rewired.
+		if (cached != null && cached.source == rte) {
+			return cached;
+		}
+		// only exits that lead somewhere are cached, so made up exit names can't fill the cache.
+		CachedResponse built = new CachedResponse(rte, encode(rte));
+		if (roomExits == null) {
+			ConcurrentMap<String, CachedResponse> created = new ConcurrentHashMap<String, CachedResponse>();
+			roomExits = exits.putIfAbsent(roomId, created);
+			if (roomExits == null) {
+				roomExits = created;
+			}
+		}
+		roomExits.put(exitName, built);
+		return built;
+	}
+
+	/**
+	 * The body for the next starting room, or null if there are none. Starting
+	 * rooms share their bodies with /rooms/{roomId}.
+	 */
+	public CachedResponse getStartingRoom() throws IOException {
+		RoomToEndpoints startingRoom = c.getStartingRoom();
+		if (startingRoom == null) {
+			return null;
+		}
+		return getRoom(startingRoom.getRoomId());
+	}
+
+	/**
+	 * The body for a room's neighbourhood, or null if the room is unknown.
+	 * The neighbourhood is resolved every time (a few map lookups) to see
+	 * whether any room in it has changed, it is only encoded again if one has.
+	 */
+	public CachedResponse getNeighbourhood(String roomId, int depth) throws IOException {
+		Neighbourhood neighbourhood = c.getNeighbourhood(roomId, depth);
+		if (neighbourhood == null) {
+			neighbourhoods.remove(roomId);
+			return null;
+		}
+		List<Object> sources = new ArrayList<Object>();
+		sourcesOf(neighbourhood, sources);
+		CachedResponse[] cached = neighbourhoods.get(roomId);
+		if (cached != null && cached[depth - 1] != null && cached[depth - 1].source.equals(sources)) {
+			return cached[depth - 1];
+		}
+		CachedResponse built = new CachedResponse(sources, MAPPER.writeValueAsBytes(neighbourhood));
+		// copy on write, the arrays are tiny and read far more often than written.
+		CachedResponse[] updated = new CachedResponse[Concierge.MAX_NEIGHBOURHOOD_DEPTH];
+		if (cached != null) {
+			System.arraycopy(cached, 0, updated, 0, updated.length);
+		}
+		updated[depth - 1] = built;
+		neighbourhoods.put(roomId, updated);
+		return built;
+	}
+
+	/**
+	 * Forget every body for a room that has been removed.
+	 */
+	void evict(String roomId) {
+		rooms.remove(roomId);
+		exits.remove(roomId);
+		neighbourhoods.remove(roomId);
+	}
+
+	/**
+	 * Flatten a neighbourhood into the snapshots and exit names it was built
+	 * from. Snapshots don't override equals, so two lists are only equal if
+	 * the same exits lead to the same snapshots.
+	 */
+	private static void sourcesOf(Neighbourhood neighbourhood, List<Object> sources) {
+		sources.add(neighbourhood.getRel());
+		sources.add(neighbourhood.getExits().size());
+		for (Map.Entry<String, Neighbourhood> exit : neighbourhood.getExits().entrySet()) {
+			sources.add(exit.getKey());
+			sourcesOf(exit.getValue(), sources);
+		}
+	}
+
+	private static byte[] encode(RoomToEndpoints rte) throws IOException {
+		RoomToEndpointsWrapper ew = new RoomToEndpointsWrapper();
+		ew.setRel(rte);
+		return MAPPER.writeValueAsBytes(ew);
+	}
+
+	private static String etagFor(byte[] body) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+			// 128 bits is plenty to tell versions of a body apart.
+			char[] etag = new char[32];
+			for (int i = 0; i < 16; i++) {
+				etag[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+				etag[i * 2 + 1] = HEX[digest[i] & 0xf];
+			}
+			return new String(etag);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,279 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.wasdev.gameon.room.common.RoomToEndpoints;
+
+/**
+ * The set of known rooms, and the endpoints they can be reached on.
+ * <p>
+ * Reads never block: every value held in the directory is an immutable
+ * {@link RoomToEndpoints} snapshot, and a change to a room publishes a
+ * brand new snapshot in a single atomic replace. Callers may hand out
+ * the snapshots they get back without copying them.
+ * </p>
+ * <p>
+ * Each room keeps at most {@code endpointCapacity} distinct endpoints, see
+ * {@link EndpointSet}. Snapshots list the endpoints most recently registered
+ * first, unless an endpoint ranking has been set, in which case they are
+ * listed best first.
+ * </p>
+ * <p>
+ * The directory also carries a version, which goes up every time anything
+ * in it changes. Anything derived from the directory can remember the
+ * version it was built from, and know it is stale when the version moves on.
+ * </p>
+ */
+public class RoomDirectory {
+
+	/**
+	 * Scores endpoints so that they can be listed best first.
+	 */
+	public interface Ranking {
+		/**
+		 * @return the score for the endpoint, lower is better.
+		 */
+		long score(String endpoint);
+	}
+
+	/**
+	 * Told whenever the endpoints of a room, or their order, change.
+	 */
+	public interface Listener {
+		/**
+		 * @param previous what the room looked like before, or null if it is new.
+		 * @param current what the room looks like now, or null if it has been removed.
+		 */
+		void endpointsChanged(String roomId, RoomToEndpoints previous, RoomToEndpoints current);
+	}
+
+	/** What we hold for each room, the endpoints, and the snapshot we give out for them */
+	private static final class Entry {
+		private final EndpointSet endpoints;
+		private final RoomToEndpoints snapshot;
+
+		Entry(String roomId, EndpointSet endpoints, Ranking ranking) {
+			this.endpoints = endpoints;
+			this.snapshot = new RoomToEndpoints();
+			this.snapshot.setRoomId(roomId);
+			this.snapshot.setEndpoints(rank(endpoints.asList(), ranking));
+		}
+	}
+
+	private final ConcurrentMap<String, Entry> rooms = new ConcurrentHashMap<String, Entry>();
+	private final int endpointCapacity;
+	private volatile Ranking ranking;
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private final AtomicLong version = new AtomicLong();
+
+	public RoomDirectory() {
+		this(EndpointSet.DEFAULT_CAPACITY);
+	}
+
+	public RoomDirectory(int endpointCapacity) {
+		this.endpointCapacity = endpointCapacity;
+	}
+
+	/**
+	 * Obtain the current snapshot for a room, or null if the room is unknown.
+	 */
+	public RoomToEndpoints get(String roomId) {
+		if (roomId == null) {
+			return null;
+		}
+		Entry entry = rooms.get(roomId);
+		return entry == null ? null : entry.snapshot;
+	}
+
+	public boolean contains(String roomId) {
+		return roomId != null && rooms.containsKey(roomId);
+	}
+
+	/**
+	 * Record an endpoint for a room, creating the room if needed. Endpoints
+	 * the room has already registered are not added twice.
+	 *
+	 * @return the snapshot that was published for the room.
+	 */
+	public RoomToEndpoints addEndpoint(final String roomId, final String endpoint) {
+		Entry current;
+		Entry updated;
+		do {
+			current = rooms.get(roomId);
+			EndpointSet endpoints = current == null ? EndpointSet.empty() : current.endpoints;
+			EndpointSet added = endpoints.add(endpoint, endpointCapacity);
+			if (current != null && added == endpoints) {
+				// nothing changed, keep the snapshot we already have.
+				return current.snapshot;
+			}
+			updated = new Entry(roomId, added, ranking);
+		} while (!publish(roomId, current, updated));
+		return updated.snapshot;
+	}
+
+	/**
+	 * Forget a room, and all of its endpoints.
+	 *
+	 * @return true if the room was known.
+	 */
+	public boolean remove(String roomId) {
+		Entry removed = roomId == null ? null : rooms.remove(roomId);
+		if (removed == null) {
+			return false;
+		}
+		version.incrementAndGet();
+		for (Listener l : listeners) {
+			l.endpointsChanged(roomId, removed.snapshot, null);
+		}
+		return true;
+	}
+
+	/**
+	 * Forget an endpoint for a room. The room itself is kept, even if this
+	 * was its last endpoint.
+	 *
+	 * @return true if the endpoint was removed.
+	 */
+	public boolean removeEndpoint(String roomId, String endpoint) {
+		Entry current;
+		Entry updated;
+		do {
+			current = rooms.get(roomId);
+			if (current == null || !current.endpoints.contains(endpoint)) {
+				return false;
+			}
+			updated = new Entry(roomId, current.endpoints.remove(endpoint), ranking);
+		} while (!publish(roomId, current, updated));
+		return true;
+	}
+
+	/**
+	 * Set how endpoints should be ordered within a room, best first. Existing
+	 * rooms pick up the new order the next time they are reranked.
+	 */
+	public void setRanking(Ranking ranking) {
+		this.ranking = ranking;
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Re-apply the endpoint ranking to a room, because the measurements it is
+	 * based on have changed. A new snapshot is only published if the order changed.
+	 */
+	public void rerank(String roomId) {
+		Entry current;
+		Entry updated;
+		do {
+			current = rooms.get(roomId);
+			if (current == null) {
+				return;
+			}
+			updated = new Entry(roomId, current.endpoints, ranking);
+			if (updated.snapshot.getEndpoints().equals(current.snapshot.getEndpoints())) {
+				return;
+			}
+		} while (!publish(roomId, current, updated));
+	}
+
+	/**
+	 * A live view of the ids of every room in the directory.
+	 */
+	public Set<String> getRoomIds() {
+		return Collections.unmodifiableSet(rooms.keySet());
+	}
+
+	public int size() {
+		return rooms.size();
+	}
+
+	/**
+	 * The current version of the directory. Read it before reading the
+	 * directory, so that anything built from what is read is never labelled
+	 * with a newer version than it reflects.
+	 */
+	public long getVersion() {
+		return version.get();
+	}
+
+	/**
+	 * Move the version on, because something that depends on the directory
+	 * (like where rooms have been placed) has changed.
+	 */
+	public long changed() {
+		return version.incrementAndGet();
+	}
+
+	/**
+	 * Swap in a new entry, only if nobody else got there first.
+	 */
+	private boolean publish(String roomId, Entry current, Entry updated) {
+		boolean published;
+		if (current == null) {
+			published = rooms.putIfAbsent(roomId, updated) == null;
+		} else {
+			published = rooms.replace(roomId, current, updated);
+		}
+		if (published) {
+			version.incrementAndGet();
+			for (Listener l : listeners) {
+				l.endpointsChanged(roomId, current == null ? null : current.snapshot, updated.snapshot);
+			}
+		}
+		return published;
+	}
+
+	private static List<String> rank(List<String> endpoints, Ranking ranking) {
+		if (ranking == null || endpoints.size() < 2) {
+			return endpoints;
+		}
+		// score each endpoint once, so the order can't shift under the sort,
+		// then insertion sort (there are only a handful) keeping equal scores
+		// most recent first.
+		int size = endpoints.size();
+		String[] ranked = new String[size];
+		long[] scores = new long[size];
+		for (int i = 0; i < size; i++) {
+			String endpoint = endpoints.get(i);
+			long score = ranking.score(endpoint);
+			int j = i;
+			while (j > 0 && scores[j - 1] > score) {
+				ranked[j] = ranked[j - 1];
+				scores[j] = scores[j - 1];
+				j--;
+			}
+			ranked[j] = endpoint;
+			scores[j] = score;
+		}
+		return Collections.unmodifiableList(Arrays.asList(ranked));
+	}
+
+	@Override
+	public String toString() {
+		return "RoomDirectory : " + rooms.size() + " rooms";
+	}
+}
@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import java.time.Clock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * Tracks how busy each room claims to be.
+ * <p>
+ * Rooms report their occupancy whenever they like. A report is trusted less
+ * the older it gets: its weight halves every {@code halfLifeMS}, so a room
+ * that stops reporting drifts back towards looking idle rather than staying
+ * hot (or cold) forever. Every player we send to a room bumps its load by
+ * one, so arrivals between reports are spread out too.
+ * </p>
+ */
+public class RoomLoadTracker {
+
+	/** Default time for a report to lose half its weight */
+	public static final long DEFAULT_HALF_LIFE_MS = TimeUnit.SECONDS.toMillis(30);
+
+	private final ConcurrentMap<String, Load> loads = new ConcurrentHashMap<String, Load>();
+	private final Clock clock;
+	private final long halfLifeMS;
+
+	/** A reported load, and when it was reported */
+	private static final class Load {
+		private final double value;
+		private final long time;
+
+		Load(double value, long time) {
+			this.value = value;
+			this.time = time;
+		}
+	}
+
+	public RoomLoadTracker(Clock clock) {
+		this(clock, DEFAULT_HALF_LIFE_MS);
+	}
+
+	public RoomLoadTracker(Clock clock, long halfLifeMS) {
+		this.clock = clock;
+		this.halfLifeMS = halfLifeMS;
+	}
+
+	/**
+	 * Record the occupancy a room has reported, replacing whatever we thought before.
+	 */
+	public void report(String roomId, int occupancy) {
+		loads.put(roomId, new Load(Math.max(0, occupancy), clock.millis()));
+	}
+
+	/**
+	 * Note that a player has just been sent to a room.
+	 */
+	public void placed(String roomId) {
+		final long now = clock.millis();
+		loads.compute(roomId, new BiFunction<String, Load, Load>() {
+			@Override
+			public Load apply(String id, Load current) {
+				return new Load(decayed(current, now) + 1, now);
+			}
+		});
+	}
+
+	/**
+	 * The current estimated load for a room. Rooms that have never reported are idle.
+	 */
+	public double getLoad(String roomId) {
+		return decayed(loads.get(roomId), clock.millis());
+	}
+
+	public void forget(String roomId) {
+		loads.remove(roomId);
+	}
+
+	private double decayed(Load load, long now) {
+		if (load == null) {
+			return 0;
+		}
+		long age = Math.max(0, now - load.time);
+		return load.value * Math.pow(0.5, (double) age / halfLifeMS);
+	}
+}
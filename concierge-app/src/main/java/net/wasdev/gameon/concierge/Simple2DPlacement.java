@@ -15,70 +15,115 @@
  *******************************************************************************/
 package net.wasdev.gameon.concierge;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import net.wasdev.gameon.room.common.Room;
 
+/**
+ * Places rooms on a grid, in the order they register.
+ * <p>
+ * Rooms fill rows of {@link #ROW_WIDTH} from west to east, starting at
+ * (0,0), and each new row is started north of the last one, so the map
+ * keeps growing for as long as rooms keep arriving. Only occupied cells are
+ * stored: a room's coordinate, and the room at a coordinate (packed into a
+ * single long), are each a single hash lookup, so resolving an exit costs
+ * the same however many rooms there are.
+ * </p>
+ * <p>
+ * When a room is removed its cell is handed to the next room that
+ * registers, so the map closes up again rather than keeping holes.
+ * </p>
+ */
 public class Simple2DPlacement implements PlacementStrategy {
 	
-	String[][] roomGrid = new String[10][10];
+	/** rooms placed in each row before moving on to the next one north */
+	static final int ROW_WIDTH = 10;
 	
+	private final ConcurrentMap<String, Long> roomToCoordinate = new ConcurrentHashMap<String, Long>();
+	private final ConcurrentMap<Long, String> coordinateToRoom = new ConcurrentHashMap<Long, String>();
 	
+	/** the next unused slot, counting along the rows, guarded by this */
+	private long nextSlot = 0;
+	/** slots given up by removed rooms, lowest first, guarded by this */
+	private final PriorityQueue<Long> freeSlots = new PriorityQueue<Long>();
+
+	private static final String[] DIRECTIONS = { "North", "South", "East", "West" };
 
 	@Override
 	public String getConnectingRooms(String currentRoomId, String exit) {
-		int row = -1;
-		int column = -1;
-		String returnedId = null;
-		for (int j =0; j<10; j++) {
-			for (int i =0 ; i< 10; i++) {
-				String currentId = roomGrid[i][j];
-				if (currentId != null && currentId.equals(currentRoomId)) {
-					row = i;
-					column = j;
-					break;
-				}
-			}
-			if (row > -1) break;
+		Long coordinate = currentRoomId == null ? null : roomToCoordinate.get(currentRoomId);
+		if (coordinate == null) {
+			return null;
 		}
-		
-		if (row > -1 && column > -1) {
-			if ("North".equals(exit)) {
-				column ++;
-			} else if ("South".equals(exit)) {
-				column --;
-			} else if ("East".equals(exit)) {
-				row ++;
-			} else if ("West".equals(exit)) {
-				row --;
-			}
-			
-			if (column > -1 && row > -1 && column < 10 && row < 10) {
-				returnedId = roomGrid[row][column];
-			}
+		int x = x(coordinate);
+		int y = y(coordinate);
+		if ("North".equals(exit)) {
+			y++;
+		} else if ("South".equals(exit)) {
+			y--;
+		} else if ("East".equals(exit)) {
+			x++;
+		} else if ("West".equals(exit)) {
+			x--;
+		} else {
+			return null;
 		}
-		return returnedId;
+		return coordinateToRoom.get(pack(x, y));
 	}
 
 	@Override
-	public void placeRoom(Room room) {
-		int firstI = -1;
-		int firstJ = -1;
-		for (int j =0; j<10; j++) {
-			for (int i =0 ; i< 10; i++) {
-				if (roomGrid[i][j] == null && firstI < 0 && firstJ < 0) {
-					firstI = i;
-					firstJ = j;
-					break;
-				} else if (room.getRoomName().equals(roomGrid[i][j])) {
-					return;
-				}
+	public Map<String, String> getConnectingRooms(String currentRoomId) {
+		if (currentRoomId == null || !roomToCoordinate.containsKey(currentRoomId)) {
+			return Collections.emptyMap();
+		}
+		Map<String, String> exits = new LinkedHashMap<String, String>();
+		for (String direction : DIRECTIONS) {
+			String roomId = getConnectingRooms(currentRoomId, direction);
+			if (roomId != null) {
+				exits.put(direction, roomId);
 			}
 		}
-		
-		if (firstI > -1 && firstJ > -1) {
-			roomGrid[firstI][firstJ] = room.getRoomName();
+		return exits;
+	}
+
+	@Override
+	public synchronized void placeRoom(Room room) {
+		if (roomToCoordinate.containsKey(room.getRoomName())) {
+			return;
 		}
-		
-		
+		Long free = freeSlots.poll();
+		long slot = free != null ? free : nextSlot++;
+		long coordinate = pack((int) (slot % ROW_WIDTH), (int) (slot / ROW_WIDTH));
+		// publish the cell before the room, so a room we can find always has neighbours we can find.
+		coordinateToRoom.put(coordinate, room.getRoomName());
+		roomToCoordinate.put(room.getRoomName(), coordinate);
+	}
+
+	@Override
+	public synchronized void removeRoom(String roomId) {
+		Long coordinate = roomId == null ? null : roomToCoordinate.remove(roomId);
+		if (coordinate == null) {
+			return;
+		}
+		coordinateToRoom.remove(coordinate, roomId);
+		freeSlots.add((long) y(coordinate) * ROW_WIDTH + x(coordinate));
+	}
+
+	static long pack(int x, int y) {
+		return ((long) x << 32) | (y & 0xffffffffL);
+	}
+
+	static int x(long coordinate) {
+		return (int) (coordinate >> 32);
+	}
+
+	static int y(long coordinate) {
+		return (int) coordinate;
 	}
 
 }
@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out starting rooms in turn.
+ * <p>
+ * The starting room ids are kept in an array snapshot that is only rebuilt
+ * when the set of starting rooms actually changes, so picking the next room
+ * is a single atomic increment and an array read, however many starting
+ * rooms there are.
+ * </p>
+ * <p>
+ * When rooms report how busy they are, the selector can also pick by load,
+ * see {@link Mode}.
+ * </p>
+ */
+public class StartingRoomSelector {
+
+	/** How the next starting room is chosen */
+	public enum Mode {
+		/** each starting room in turn, ignoring load */
+		roundRobin,
+		/** the least loaded starting room, found by looking at all of them */
+		leastLoaded,
+		/** the less loaded of two starting rooms picked at random */
+		powerOfTwo;
+
+		/**
+		 * Parse a mode, falling back to round robin for anything unrecognised.
+		 */
+		public static Mode fromString(String value) {
+			if (value != null) {
+				for (Mode mode : values()) {
+					if (mode.name().equalsIgnoreCase(value.trim())) {
+						return mode;
+					}
+				}
+			}
+			return roundRobin;
+		}
+	}
+
+	/** the starting rooms, changed only with the snapshot, under this */
+	private final Set<String> members = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final AtomicInteger cursor = new AtomicInteger();
+	private volatile String[] rooms = new String[0];
+
+	/**
+	 * Add a starting room.
+	 *
+	 * @return true if the room was not already a starting room.
+	 */
+	public synchronized boolean add(String roomId) {
+		if (!members.add(roomId)) {
+			return false;
+		}
+		String[] current = rooms;
+		String[] updated = Arrays.copyOf(current, current.length + 1);
+		updated[current.length] = roomId;
+		rooms = updated;
+		return true;
+	}
+
+	/**
+	 * Add several starting rooms, rebuilding the snapshot just once.
+	 *
+	 * @return the number of rooms that were not already starting rooms.
+	 */
+	public synchronized int addAll(Collection<String> roomIds) {
+		List<String> added = new ArrayList<String>(roomIds.size());
+		for (String roomId : roomIds) {
+			if (members.add(roomId)) {
+				added.add(roomId);
+			}
+		}
+		if (!added.isEmpty()) {
+			String[] current = rooms;
+			String[] updated = Arrays.copyOf(current, current.length + added.size());
+			for (int i = 0; i < added.size(); i++) {
+				updated[current.length + i] = added.get(i);
+			}
+			rooms = updated;
+		}
+		return added.size();
+	}
+
+	/**
+	 * Stop using a room as a starting room.
+	 *
+	 * @return true if it was a starting room.
+	 */
+	public synchronized boolean remove(String roomId) {
+		if (!members.remove(roomId)) {
+			return false;
+		}
+		String[] current = rooms;
+		String[] updated = new String[current.length - 1];
+		int j = 0;
+		for (String room : current) {
+			if (!room.equals(roomId)) {
+				updated[j++] = room;
+			}
+		}
+		rooms = updated;
+		return true;
+	}
+
+	/**
+	 * Obtain the id of the next starting room, or null if there are none.
+	 */
+	public String next() {
+		String[] snapshot = rooms;
+		if (snapshot.length == 0) {
+			return null;
+		}
+		// mask off the sign bit, so the cursor can wrap around safely.
+		int index = (cursor.getAndIncrement() & Integer.MAX_VALUE) % snapshot.length;
+		return snapshot[index];
+	}
+
+	/**
+	 * Obtain the id of the next starting room using the given mode, or null if there are none.
+	 */
+	public String next(Mode mode, RoomLoadTracker loads) {
+		switch (mode) {
+			case leastLoaded :
+				return leastLoaded(loads);
+			case powerOfTwo :
+				return powerOfTwo(loads);
+			case roundRobin :
+			default :
+				return next();
+		}
+	}
+
+	/**
+	 * Scan every starting room for the one with the lowest load. The scan
+	 * starts from the round robin cursor, so that rooms with equal load
+	 * still take turns.
+	 */
+	private String leastLoaded(RoomLoadTracker loads) {
+		String[] snapshot = rooms;
+		if (snapshot.length == 0) {
+			return null;
+		}
+		int start = (cursor.getAndIncrement() & Integer.MAX_VALUE) % snapshot.length;
+		String best = null;
+		double bestLoad = Double.MAX_VALUE;
+		for (int i = 0; i < snapshot.length; i++) {
+			String candidate = snapshot[(start + i) % snapshot.length];
+			double load = loads.getLoad(candidate);
+			if (load < bestLoad) {
+				best = candidate;
+				bestLoad = load;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Pick two different starting rooms at random, and use the less loaded one.
+	 */
+	private String powerOfTwo(RoomLoadTracker loads) {
+		String[] snapshot = rooms;
+		if (snapshot.length < 2) {
+			return snapshot.length == 0 ? null : snapshot[0];
+		}
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int first = random.nextInt(snapshot.length);
+		int second = random.nextInt(snapshot.length - 1);
+		if (second >= first) {
+			second++;
+		}
+		String a = snapshot[first];
+		String b = snapshot[second];
+		return loads.getLoad(b) < loads.getLoad(a) ? b : a;
+	}
+
+	public boolean contains(String roomId) {
+		return members.contains(roomId);
+	}
+
+	public int size() {
+		return rooms.length;
+	}
+}
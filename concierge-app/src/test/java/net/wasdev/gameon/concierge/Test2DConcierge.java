@@ -21,6 +21,7 @@ import static org.junit.Assert.assertNull;
 
 import org.junit.Test;
 
+import net.wasdev.gameon.room.common.Neighbourhood;
 import net.wasdev.gameon.room.common.RoomToEndpoints;
 import net.wasdev.gameon.room.common.RegistrationResponse;
 import net.wasdev.gameon.room.common.Room;
@@ -135,6 +136,60 @@ public class Test2DConcierge {
 		assertEquals("The east room should connect to the north room on its west connection", "ws://northroom", northRoomEndpointAgain.getEndpoints().get(0));
 	}
 	
+	@Test
+	public void roomsBeyondTheFirstHundredArePlaced() {
+		Concierge c = addEasyStartingRoom();
+		// fill the first ten rows, and then some.
+		for(int i = 2; i <= 100; i++) {
+			Room room = new Room ("Room " + i);
+			room.setAttribute("startLocation", "false");
+			c.registerRoom(room,"fish");
+		}
+		Room hundredAndFirst = new Room("Room 101");
+		hundredAndFirst.setAttribute("startLocation", "false");
+		hundredAndFirst.setAttribute("endPoint", "ws://room101");
+		c.registerRoom(hundredAndFirst,"fish");
+		
+		RoomToEndpoints north = c.exitRoom("Room 91", "North");
+		assertNotNull("Room 101 should be placed north of Room 91", north);
+		assertEquals("ws://room101", north.getEndpoints().get(0));
+		assertEquals("Room 91", c.exitRoom("Room 101", "South").getRoomId());
+	}
+	
+	@Test
+	public void exitsResolveInAVeryLargeMap() {
+		Simple2DPlacement placement = new Simple2DPlacement();
+		int rooms = 100000;
+		for(int i = 0; i < rooms; i++) {
+			placement.placeRoom(new Room("Room " + i));
+		}
+		int last = rooms - 1;
+		assertEquals("Room " + (last - Simple2DPlacement.ROW_WIDTH), placement.getConnectingRooms("Room " + last, "South"));
+		assertEquals("Room " + (last - 1), placement.getConnectingRooms("Room " + last, "West"));
+		assertNull(placement.getConnectingRooms("Room " + last, "North"));
+		assertNull(placement.getConnectingRooms("Room " + last, "East"));
+		assertNull(placement.getConnectingRooms("Room 0", "West"));
+		assertNull(placement.getConnectingRooms("Room 9", "East"));
+		
+		// placing a room again doesn't move it
+		placement.placeRoom(new Room("Room 0"));
+		assertEquals("Room 1", placement.getConnectingRooms("Room 0", "East"));
+	}
+	
+	@Test
+	public void neighbourhoodCoversEveryDirection() {
+		Concierge c = addEasyStartingRoom();
+		for(int i = 2; i <= 11; i++) {
+			Room room = new Room ("Room " + i);
+			room.setAttribute("endPoint", "ws://room" + i);
+			c.registerRoom(room,"fish");
+		}
+		// Room 2 is at (1,0), with Starting Room to the west, Room 3 east, and nothing yet to the north.
+		Neighbourhood neighbourhood = c.getNeighbourhood("Room 2", 1);
+		assertEquals(2, neighbourhood.getExits().size());
+		assertEquals("Starting Room", neighbourhood.getExits().get("West").getRel().getRoomId());
+		assertEquals("Room 3", neighbourhood.getExits().get("East").getRel().getRoomId());
+	}
 	
 	@Test
 	public void attemptToMoveThroughBlockedDoor() {
@@ -0,0 +1,312 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.client.HttpResponseException;
+import org.junit.Test;
+
+/**
+ * Check keys are cached, loaded once however many ask, reloaded before they expire, and bounded.
+ * Keys can be had without waiting for them to load.
+ */
+public class TestApiKeyCache {
+
+	private static final long TTL = 10000;
+	private static final long REFRESH_AHEAD = 1000;
+
+	private final MutableClock clock = new MutableClock(1000000);
+	private final AtomicInteger loads = new AtomicInteger();
+	private volatile CountDownLatch release;
+	private volatile boolean failing;
+	private volatile boolean refusing;
+
+	private final ApiKeyCache.Loader loader = new ApiKeyCache.Loader() {
+		@Override
+		public CompletableFuture<String> load(String id) {
+			CompletableFuture<String> key = new CompletableFuture<String>();
+			try {
+				key.complete(loadNow(id));
+			} catch (IOException e) {
+				key.completeExceptionally(e);
+			}
+			return key;
+		}
+
+		private String loadNow(String id) throws IOException {
+			int n = loads.incrementAndGet();
+			CountDownLatch latch = release;
+			if (latch != null) {
+				try {
+					latch.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+			if (failing) {
+				throw new IOException("player service is down");
+			}
+			if (refusing) {
+				throw new HttpResponseException(404, "no such player");
+			}
+			return "unknown".equals(id) ? null : id + "-key-" + n;
+		}
+	};
+
+	private ApiKeyCache cache = new ApiKeyCache(loader, clock, 100, TTL, REFRESH_AHEAD);
+
+	@Test
+	public void keysAreLoadedOnceAndCached() throws IOException {
+		assertEquals("a-key-1", cache.get("a"));
+		assertEquals("a-key-1", cache.get("a"));
+		assertEquals(1, loads.get());
+
+		ApiKeyCache.Stats stats = cache.getStats();
+		assertEquals(1, stats.getHits());
+		assertEquals(1, stats.getMisses());
+		assertEquals(1, stats.getLoads());
+		assertEquals(1, stats.getSize());
+	}
+
+	@Test
+	public void missingKeysAndFailuresAreRememberedBriefly() throws IOException {
+		assertNull(cache.get("unknown"));
+		assertNull(cache.get("unknown"));
+		assertEquals(1, loads.get());
+		clock.advance(ApiKeyCache.DEFAULT_NEGATIVE_TTL_MS);
+		assertNull(cache.get("unknown"));
+		assertEquals(2, loads.get());
+
+		failing = true;
+		for (int i = 0; i < 3; i++) {
+			try {
+				cache.get("b");
+				fail("the load failed");
+			} catch (IOException e) {
+				// expected
+			}
+		}
+		assertEquals("failures are not retried straight away", 3, loads.get());
+		failing = false;
+		clock.advance(ApiKeyCache.DEFAULT_NEGATIVE_TTL_MS);
+		assertEquals("b-key-4", cache.get("b"));
+
+		ApiKeyCache.Stats stats = cache.getStats();
+		assertEquals(1, stats.getLoadFailures());
+		assertEquals(3, stats.getNegativeHits());
+	}
+
+	@Test
+	public void lookupsOfAnIdAreRateLimited() throws IOException {
+		cache = new ApiKeyCache(loader, clock, 100, TTL, REFRESH_AHEAD, 0, 0, new LookupLimiter(clock, 3, 1000));
+		for (int i = 0; i < 3; i++) {
+			assertNull(cache.get("unknown"));
+		}
+		try {
+			cache.get("unknown");
+			fail("out of lookups");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(3, loads.get());
+		// other ids are not held back.
+		assertEquals("f-key-4", cache.get("f"));
+
+		clock.advance(1000);
+		assertNull(cache.get("unknown"));
+		assertEquals(5, loads.get());
+		assertEquals(1, cache.getStats().getLimited());
+	}
+
+	@Test
+	public void limiterForgetsIdsThatHaveRecovered() {
+		LookupLimiter limiter = new LookupLimiter(clock, 1, 1000);
+		for (int i = 0; i < LookupLimiter.MAX_BUCKETS; i++) {
+			assertTrue(limiter.tryAcquire("id" + i));
+		}
+		assertEquals(LookupLimiter.MAX_BUCKETS, limiter.size());
+		clock.advance(1000);
+		assertTrue(limiter.tryAcquire("new"));
+		assertEquals(1, limiter.size());
+		assertTrue(limiter.tryAcquire("id0"));
+	}
+
+	@Test
+	public void concurrentMissesShareOneLoad() throws Exception {
+		release = new CountDownLatch(1);
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for (int i = 0; i < 8; i++) {
+				results.add(pool.submit(new Callable<String>() {
+					@Override
+					public String call() throws IOException {
+						return cache.get("c");
+					}
+				}));
+			}
+			// let the callers pile up behind the first load.
+			while (loads.get() == 0) {
+				Thread.sleep(1);
+			}
+			Thread.sleep(50);
+			release.countDown();
+			for (Future<String> result : results) {
+				assertEquals("c-key-1", result.get(10, TimeUnit.SECONDS));
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		assertEquals(1, loads.get());
+	}
+
+	@Test
+	public void expiredKeysAreReloaded() throws IOException {
+		assertEquals("d-key-1", cache.get("d"));
+		clock.advance(TTL);
+		assertEquals("d-key-2", cache.get("d"));
+		assertEquals(2, cache.getStats().getMisses());
+	}
+
+	@Test
+	public void keysUsedNearExpiryAreRefreshedInTheBackground() throws Exception {
+		assertEquals("e-key-1", cache.get("e"));
+		clock.advance(TTL - REFRESH_AHEAD);
+		// the current key is still handed out while the new one loads.
+		assertEquals("e-key-1", cache.get("e"));
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!"e-key-2".equals(cache.get("e")) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		assertEquals("e-key-2", cache.get("e"));
+		assertEquals(2, loads.get());
+		assertEquals(1, cache.getStats().getRefreshes());
+
+		// the refreshed key lasts a full ttl from when it was loaded.
+		clock.advance(REFRESH_AHEAD);
+		assertEquals("e-key-2", cache.get("e"));
+	}
+
+	@Test
+	public void failedRefreshesAreTriedAgain() throws IOException {
+		assertEquals("f-key-1", cache.get("f"));
+		clock.advance(TTL - REFRESH_AHEAD);
+		failing = true;
+		assertEquals("f-key-1", cache.get("f"));
+		assertEquals(2, loads.get());
+
+		failing = false;
+		assertEquals("f-key-1", cache.get("f"));
+		assertEquals(3, loads.get());
+		assertEquals("f-key-3", cache.get("f"));
+		assertEquals(2, cache.getStats().getRefreshes());
+	}
+
+	@Test
+	public void leastRecentlyUsedKeysAreEvicted() throws IOException {
+		cache = new ApiKeyCache(loader, clock, 16, TTL, REFRESH_AHEAD);
+		cache.get("hot");
+		for (int i = 0; i < 100; i++) {
+			cache.get("id" + i);
+			cache.get("hot");
+		}
+		ApiKeyCache.Stats stats = cache.getStats();
+		assertTrue("size " + stats.getSize(), stats.getSize() <= 16);
+		assertTrue(stats.getEvictions() >= 84);
+		int before = loads.get();
+		cache.get("hot");
+		assertEquals("the key in use was kept", before, loads.get());
+	}
+
+	@Test
+	public void expiredKeysAreUsedWhenThePlayerServiceIsDown() throws IOException {
+		assertEquals("h-key-1", cache.get("h"));
+		clock.advance(TTL);
+		failing = true;
+		assertEquals("h-key-1", cache.get("h"));
+		assertEquals("h-key-1", cache.get("h"));
+		assertEquals(2, cache.getStats().getStaleHits());
+
+		failing = false;
+		assertEquals("h-key-4", cache.get("h"));
+
+		// but not once they are too old.
+		clock.advance(TTL + ApiKeyCache.DEFAULT_STALE_MS);
+		failing = true;
+		try {
+			cache.get("h");
+			fail("the load failed");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void keysThePlayerServiceRefusesAreDropped() throws IOException {
+		assertEquals("i-key-1", cache.get("i"));
+		clock.advance(TTL);
+		refusing = true;
+		try {
+			cache.get("i");
+			fail("the player has gone");
+		} catch (HttpResponseException e) {
+			assertEquals(404, e.getStatusCode());
+		}
+		assertEquals(0, cache.getStats().getStaleHits());
+		assertEquals(0, cache.getStats().getSize());
+	}
+
+	@Test
+	public void asyncCallersDoNotWaitForTheLoad() throws Exception {
+		final CompletableFuture<String> answer = new CompletableFuture<String>();
+		cache = new ApiKeyCache(new ApiKeyCache.Loader() {
+			@Override
+			public CompletableFuture<String> load(String id) {
+				loads.incrementAndGet();
+				return answer;
+			}
+		}, clock, 100, TTL, REFRESH_AHEAD);
+
+		CompletableFuture<String> first = cache.getAsync("g");
+		CompletableFuture<String> second = cache.getAsync("g");
+		assertFalse(first.isDone());
+		assertFalse(second.isDone());
+		assertEquals(1, loads.get());
+
+		answer.complete("g-key");
+		assertEquals("g-key", first.get());
+		assertEquals("g-key", second.get());
+		assertTrue("cached keys are ready straight away", cache.getAsync("g").isDone());
+		assertEquals(1, loads.get());
+	}
+}
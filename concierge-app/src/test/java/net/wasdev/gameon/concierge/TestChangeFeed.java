@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import net.wasdev.gameon.room.common.DirectoryChange;
+import net.wasdev.gameon.room.common.Exit;
+import net.wasdev.gameon.room.common.Room;
+
+/**
+ * Subscribe to the change feed, and check what is streamed when rooms register.
+ */
+public class TestChangeFeed {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	/** Collects what the feed sends */
+	private static final class Collector implements ChangeFeed.Subscriber {
+		private final List<DirectoryChange> received = new ArrayList<DirectoryChange>();
+
+		@Override
+		public void send(String change) {
+			try {
+				received.add(MAPPER.readValue(change, DirectoryChange.class));
+			} catch (IOException e) {
+				throw new AssertionError(e);
+			}
+		}
+
+		@Override
+		public boolean catchUp(List<String> changes) {
+			for (String change : changes) {
+				send(change);
+			}
+			return true;
+		}
+
+		List<String> types() {
+			List<String> types = new ArrayList<String>();
+			for (DirectoryChange change : received) {
+				types.add(change.getType() + " " + change.getRoomId());
+			}
+			return types;
+		}
+	}
+
+	@Test
+	public void registrationsAreStreamed() {
+		Concierge c = new Concierge(new Simple2DPlacement());
+		Collector collector = new Collector();
+		c.getChangeFeed().subscribe(collector, null, 0);
+		c.registerRoom(room("Room A", "ws://a"), "fish");
+		c.registerRoom(room("Room B", "ws://b"), "fish");
+
+		assertEquals(Arrays.asList("reset null", "roomRegistered Room A", "roomRegistered Room B", "exitsChanged Room A"),
+				collector.types());
+		DirectoryChange b = collector.received.get(2);
+		assertEquals(Collections.singletonList("ws://b"), b.getEndpoints());
+		assertEquals("Room A", b.getExits().get("West"));
+		assertEquals("Room B", collector.received.get(3).getExits().get("East"));
+		for (int i = 0; i < collector.received.size(); i++) {
+			assertEquals(i, collector.received.get(i).getVersion());
+			assertEquals(c.getChangeFeed().getEpoch(), collector.received.get(i).getEpoch());
+		}
+	}
+
+	@Test
+	public void changesToARoomAreStreamed() {
+		Concierge c = new Concierge(new ManualWiringPlacement());
+		Room room = room("Room A", "ws://a/1");
+		room.addExit(new Exit("North", "Room B", "A door"));
+		c.registerRoom(room, "fish");
+
+		Collector collector = new Collector();
+		c.getChangeFeed().subscribe(collector, c.getChangeFeed().getEpoch(), c.getChangeFeed().getVersion());
+		// nothing changes, nothing is sent.
+		c.registerRoom(room, "fish");
+		assertEquals(0, collector.received.size());
+
+		Room moved = room("Room A", "ws://a/2");
+		moved.addExit(new Exit("North", "Room C", "A door"));
+		c.registerRoom(moved, "fish");
+		assertEquals(Arrays.asList("endpointsChanged Room A", "exitsChanged Room A"), collector.types());
+		assertEquals(Arrays.asList("ws://a/2", "ws://a/1"), collector.received.get(0).getEndpoints());
+		assertEquals("Room C", collector.received.get(1).getExits().get("North"));
+
+		// endpoints dropped behind the concierge's back (by the prober) are streamed too.
+		c.roomDirectory.removeEndpoint("Room A", "ws://a/1");
+		assertEquals(Collections.singletonList("ws://a/2"), collector.received.get(2).getEndpoints());
+	}
+
+	@Test
+	public void subscribersResumeWhereTheyLeftOff() {
+		ChangeFeed feed = new ChangeFeed(rooms("Room A", "Room B"), 4);
+		for (int i = 0; i < 10; i++) {
+			feed.publish(new DirectoryChange(DirectoryChange.EXITS_CHANGED, "Room " + i));
+		}
+
+		Collector resumed = new Collector();
+		feed.subscribe(resumed, feed.getEpoch(), 7);
+		assertEquals(Arrays.asList("exitsChanged Room 7", "exitsChanged Room 8", "exitsChanged Room 9"), resumed.types());
+
+		Collector upToDate = new Collector();
+		feed.subscribe(upToDate, feed.getEpoch(), 10);
+		assertEquals(0, upToDate.received.size());
+
+		feed.publish(new DirectoryChange(DirectoryChange.EXITS_CHANGED, "Room 10"));
+		assertEquals(11, resumed.received.get(3).getVersion());
+		assertEquals(11, upToDate.received.get(0).getVersion());
+	}
+
+	@Test
+	public void subscribersThatCannotResumeStartAfresh() {
+		ChangeFeed feed = new ChangeFeed(rooms("Room A", "Room B"), 4);
+		for (int i = 0; i < 10; i++) {
+			feed.publish(new DirectoryChange(DirectoryChange.EXITS_CHANGED, "Room " + i));
+		}
+		List<String> reset = Arrays.asList("reset null", "roomRegistered Room A", "roomRegistered Room B");
+
+		Collector tooOld = new Collector();
+		feed.subscribe(tooOld, feed.getEpoch(), 5);
+		assertEquals(reset, tooOld.types());
+		for (DirectoryChange change : tooOld.received) {
+			assertEquals(10, change.getVersion());
+		}
+
+		Collector restarted = new Collector();
+		feed.subscribe(restarted, "some other epoch", 8);
+		assertEquals(reset, restarted.types());
+
+		Collector fromTheFuture = new Collector();
+		feed.subscribe(fromTheFuture, feed.getEpoch(), 12);
+		assertEquals(reset, fromTheFuture.types());
+		assertNull(fromTheFuture.received.get(0).getRoomId());
+	}
+
+	private static ChangeFeed.Snapshot rooms(final String... roomIds) {
+		return new ChangeFeed.Snapshot() {
+			@Override
+			public List<DirectoryChange> rooms() {
+				List<DirectoryChange> rooms = new ArrayList<DirectoryChange>();
+				for (String roomId : roomIds) {
+					rooms.add(new DirectoryChange(DirectoryChange.ROOM_REGISTERED, roomId));
+				}
+				return rooms;
+			}
+		};
+	}
+
+	private static Room room(String name, String endpoint) {
+		Room room = new Room(name);
+		room.setAttribute("endPoint", endpoint);
+		return room;
+	}
+}
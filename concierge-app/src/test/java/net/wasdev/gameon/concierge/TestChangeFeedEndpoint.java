@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.websocket.CloseReason;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+import org.junit.Test;
+
+import net.wasdev.gameon.concierge.ChangeFeedEndpoint.SessionSubscriber;
+import net.wasdev.gameon.room.common.DirectoryChange;
+
+/**
+ * Check what a WebSocket subscriber is sent, against a session that only
+ * finishes each send when the test says so.
+ */
+public class TestChangeFeedEndpoint {
+
+	/** A session that records what is sent, and whether it was closed */
+	private static final class FakeSession implements InvocationHandler {
+		final List<String> sent = new ArrayList<String>();
+		SendHandler inFlight;
+		CloseReason closed;
+
+		final Session session = (Session) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { Session.class }, this);
+		private final RemoteEndpoint.Async remote = (RemoteEndpoint.Async) Proxy.newProxyInstance(
+				getClass().getClassLoader(), new Class<?>[] { RemoteEndpoint.Async.class }, this);
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if (name.equals("getAsyncRemote")) {
+				return remote;
+			} else if (name.equals("sendText")) {
+				assertNull("only one send at a time", inFlight);
+				sent.add((String) args[0]);
+				inFlight = (SendHandler) args[1];
+			} else if (name.equals("close")) {
+				closed = args == null ? new CloseReason(CloseReason.CloseCodes.NORMAL_CLOSURE, null) : (CloseReason) args[0];
+			} else if (name.equals("isOpen")) {
+				return closed == null;
+			} else if (name.equals("getId")) {
+				return "test";
+			}
+			return null;
+		}
+
+		/** Finish the send in flight, which starts the next */
+		boolean complete() {
+			SendHandler handler = inFlight;
+			if (handler == null) {
+				return false;
+			}
+			inFlight = null;
+			handler.onResult(new SendResult());
+			return true;
+		}
+	}
+
+	@Test
+	public void aLargeDirectoryIsSentInFull() {
+		final int rooms = ChangeFeedEndpoint.MAX_BACKLOG + 100;
+		ChangeFeed feed = new ChangeFeed(new ChangeFeed.Snapshot() {
+			@Override
+			public List<DirectoryChange> rooms() {
+				List<DirectoryChange> changes = new ArrayList<DirectoryChange>();
+				for (int i = 0; i < rooms; i++) {
+					changes.add(new DirectoryChange(DirectoryChange.ROOM_REGISTERED, "Room " + i));
+				}
+				return changes;
+			}
+		});
+		FakeSession fake = new FakeSession();
+		feed.subscribe(new SessionSubscriber(fake.session, feed), null, -1);
+		assertEquals(1, feed.getSubscriberCount());
+
+		// live changes still get through once the snapshot has gone.
+		feed.publish(new DirectoryChange(DirectoryChange.EXITS_CHANGED, "Room 0"));
+		while (fake.complete()) {
+		}
+		assertNull(fake.closed);
+		assertEquals(rooms + 2, fake.sent.size());
+		assertTrue(fake.sent.get(0).contains(DirectoryChange.RESET));
+		assertTrue(fake.sent.get(rooms).contains("Room " + (rooms - 1)));
+		assertTrue(fake.sent.get(rooms + 1).contains(DirectoryChange.EXITS_CHANGED));
+	}
+
+	@Test
+	public void subscribersThatFallTooFarBehindAreDisconnected() {
+		ChangeFeed feed = new ChangeFeed(new ChangeFeed.Snapshot() {
+			@Override
+			public List<DirectoryChange> rooms() {
+				return new ArrayList<DirectoryChange>();
+			}
+		});
+		FakeSession fake = new FakeSession();
+		feed.subscribe(new SessionSubscriber(fake.session, feed), null, -1);
+		// the reset is still being sent while the changes pile up.
+		assertNotNull(fake.inFlight);
+		for (int i = 0; i <= ChangeFeedEndpoint.MAX_BACKLOG; i++) {
+			feed.publish(new DirectoryChange(DirectoryChange.EXITS_CHANGED, "Room " + i));
+		}
+		assertEquals(0, feed.getSubscriberCount());
+		assertNull("closed once the send in flight is done", fake.closed);
+
+		fake.complete();
+		assertNotNull(fake.closed);
+		assertEquals(CloseReason.CloseCodes.TRY_AGAIN_LATER, fake.closed.getCloseCode());
+		assertFalse(fake.complete());
+		assertEquals(1, fake.sent.size());
+	}
+
+	@Test
+	public void closedSessionsAreNotSubscribed() {
+		ChangeFeed feed = new ChangeFeed(new ChangeFeed.Snapshot() {
+			@Override
+			public List<DirectoryChange> rooms() {
+				return new ArrayList<DirectoryChange>();
+			}
+		});
+		FakeSession fake = new FakeSession();
+		fake.closed = new CloseReason(CloseReason.CloseCodes.GOING_AWAY, null);
+		feed.subscribe(new SessionSubscriber(fake.session, feed), null, -1);
+		assertEquals(0, feed.getSubscriberCount());
+	}
+}
@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import net.wasdev.gameon.concierge.CircuitBreaker.State;
+
+/**
+ * Check the breaker opens on failures and slow calls, refuses calls while open, and recovers.
+ */
+public class TestCircuitBreaker {
+
+	private static final long OPEN_MS = 10000;
+	private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(5000);
+
+	private final MutableClock clock = new MutableClock(1000000);
+	private final CircuitBreaker breaker = new CircuitBreaker("test", clock, 10, 50, 2000, OPEN_MS);
+
+	@Test
+	public void opensWhenHalfTheCallsFail() {
+		for (int i = 0; i < 5; i++) {
+			assertTrue(breaker.tryAcquire());
+			breaker.succeeded(FAST);
+			assertTrue(breaker.tryAcquire());
+			breaker.failed();
+		}
+		assertEquals(State.open, breaker.getState());
+		assertFalse(breaker.tryAcquire());
+		assertFalse(breaker.tryAcquire());
+		assertEquals(2, breaker.getRejected());
+		assertEquals(1, breaker.getTimesOpened());
+	}
+
+	@Test
+	public void staysClosedWhileMostCallsSucceed() {
+		for (int i = 0; i < 100; i++) {
+			assertTrue(breaker.tryAcquire());
+			if (i % 3 == 0) {
+				breaker.failed();
+			} else {
+				breaker.succeeded(FAST);
+			}
+		}
+		assertEquals(State.closed, breaker.getState());
+	}
+
+	@Test
+	public void opensWhenCallsAreSlow() {
+		for (int i = 0; i < 10; i++) {
+			assertTrue(breaker.tryAcquire());
+			breaker.succeeded(i < 5 ? SLOW : FAST);
+		}
+		assertEquals(State.open, breaker.getState());
+	}
+
+	@Test
+	public void probesCloseItAgain() {
+		open();
+		clock.advance(OPEN_MS);
+		for (int i = 0; i < CircuitBreaker.HALF_OPEN_PROBES; i++) {
+			assertTrue(breaker.tryAcquire());
+		}
+		assertEquals(State.halfOpen, breaker.getState());
+		assertFalse("only the probes are let through", breaker.tryAcquire());
+		for (int i = 0; i < CircuitBreaker.HALF_OPEN_PROBES; i++) {
+			breaker.succeeded(FAST);
+		}
+		assertEquals(State.closed, breaker.getState());
+
+		// the failures from before are forgotten.
+		assertTrue(breaker.tryAcquire());
+		breaker.failed();
+		assertEquals(State.closed, breaker.getState());
+	}
+
+	@Test
+	public void aFailedProbeOpensItAgain() {
+		open();
+		clock.advance(OPEN_MS);
+		assertTrue(breaker.tryAcquire());
+		breaker.failed();
+		assertEquals(State.open, breaker.getState());
+		assertFalse(breaker.tryAcquire());
+		assertEquals(2, breaker.getTimesOpened());
+	}
+
+	private void open() {
+		for (int i = 0; i < 10; i++) {
+			breaker.tryAcquire();
+			breaker.failed();
+		}
+		assertEquals(State.open, breaker.getState());
+	}
+}
@@ -0,0 +1,245 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import net.wasdev.gameon.room.common.Exit;
+import net.wasdev.gameon.room.common.Room;
+import net.wasdev.gameon.room.common.RoomToEndpoints;
+
+/**
+ * Hammer a single concierge from lots of threads at once, the way the JAX-RS
+ * container does during a registration burst.
+ */
+public class TestConciergeConcurrency {
+
+	private static final int THREADS = 8;
+	private static final int ROOMS_PER_THREAD = 250;
+
+	@Test
+	public void registerAndResolveFromManyThreads() throws Exception {
+		final Concierge c = new Concierge(new ManualWiringPlacement());
+		final CountDownLatch go = new CountDownLatch(1);
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS * 2);
+		try {
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for (int t = 0; t < THREADS; t++) {
+				final int thread = t;
+				// writers: each registers its own rooms, chained north to the next one.
+				results.add(pool.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						go.await();
+						for (int i = 0; i < ROOMS_PER_THREAD; i++) {
+							Room room = new Room(roomName(thread, i));
+							room.setAttribute("endPoint", "ws://" + roomName(thread, i));
+							room.setAttribute("startLocation", String.valueOf(i == 0));
+							room.addExit(new Exit("North", roomName(thread, i + 1), "onwards"));
+							c.registerRoom(room, "fish");
+						}
+						return ROOMS_PER_THREAD;
+					}
+				}));
+				// readers: resolve whatever has been published so far.
+				results.add(pool.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						go.await();
+						int seen = 0;
+						for (int pass = 0; pass < 4; pass++) {
+							for (int i = 0; i < ROOMS_PER_THREAD; i++) {
+								RoomToEndpoints rte = c.getRoom(roomName(thread, i));
+								if (rte != null) {
+									assertEquals(roomName(thread, i), rte.getRoomId());
+									assertEquals(1, rte.getEndpoints().size());
+									seen++;
+								}
+								c.exitRoom(roomName(thread, i), "North");
+								c.getStartingRoom();
+							}
+						}
+						return seen;
+					}
+				}));
+			}
+			go.countDown();
+			for (Future<Integer> f : results) {
+				f.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		for (int t = 0; t < THREADS; t++) {
+			for (int i = 0; i < ROOMS_PER_THREAD; i++) {
+				RoomToEndpoints rte = c.getRoom(roomName(t, i));
+				assertNotNull("Registration of " + roomName(t, i) + " was lost", rte);
+				assertEquals("ws://" + roomName(t, i), rte.getEndpoints().get(0));
+			}
+			for (int i = 0; i < ROOMS_PER_THREAD - 1; i++) {
+				RoomToEndpoints next = c.exitRoom(roomName(t, i), "North");
+				assertNotNull("Exit from " + roomName(t, i) + " was lost", next);
+				assertEquals(roomName(t, i + 1), next.getRoomId());
+			}
+		}
+		assertEquals(THREADS, c.startingRooms.size());
+	}
+
+	@Test
+	public void concurrentReRegistrationKeepsEveryEndpoint() throws Exception {
+		final Concierge c = new Concierge(new Simple2DPlacement());
+		final CountDownLatch go = new CountDownLatch(1);
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<?>> results = new ArrayList<Future<?>>();
+			for (int t = 0; t < THREADS; t++) {
+				final int thread = t;
+				results.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						go.await();
+						Room room = new Room("Shared Room");
+						room.setAttribute("endPoint", "ws://host" + thread);
+						c.registerRoom(room, "fish");
+						return null;
+					}
+				}));
+			}
+			go.countDown();
+			for (Future<?> f : results) {
+				f.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		RoomToEndpoints shared = c.getRoom("Shared Room");
+		assertEquals("Every concurrent registration should be kept", THREADS, shared.getEndpoints().size());
+		for (int t = 0; t < THREADS; t++) {
+			assertTrue(shared.getEndpoints().contains("ws://host" + t));
+		}
+	}
+
+	@Test
+	public void startingRoomsAreSharedOutEvenly() throws Exception {
+		final Concierge c = new Concierge(new ManualWiringPlacement());
+		final int starters = 5;
+		final int callsPerThread = 1000;
+		for (int i = 0; i < starters; i++) {
+			c.registerRoom(new Room("Starter " + i), "fish");
+		}
+		final ConcurrentHashMap<String, AtomicInteger> handedOut = new ConcurrentHashMap<String, AtomicInteger>();
+		for (int i = 0; i < starters; i++) {
+			handedOut.put("Starter " + i, new AtomicInteger());
+		}
+		final CountDownLatch go = new CountDownLatch(1);
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<?>> results = new ArrayList<Future<?>>();
+			for (int t = 0; t < THREADS; t++) {
+				results.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						go.await();
+						for (int i = 0; i < callsPerThread; i++) {
+							handedOut.get(c.getStartingRoom().getRoomId()).incrementAndGet();
+						}
+						return null;
+					}
+				}));
+			}
+			go.countDown();
+			for (Future<?> f : results) {
+				f.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		for (AtomicInteger count : handedOut.values()) {
+			assertEquals("Each starting room should get an equal share", THREADS * callsPerThread / starters, count.get());
+		}
+	}
+
+	@Test
+	public void startingRoomsCanBeAddedAndRemovedConcurrently() throws Exception {
+		final StartingRoomSelector selector = new StartingRoomSelector();
+		selector.add("Always");
+		final CountDownLatch go = new CountDownLatch(1);
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<?>> results = new ArrayList<Future<?>>();
+			for (int t = 0; t < THREADS; t++) {
+				final boolean adding = t % 2 == 0;
+				results.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						go.await();
+						for (int i = 0; i < 20000; i++) {
+							if (adding) {
+								selector.add("Flapping");
+							} else {
+								selector.remove("Flapping");
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			go.countDown();
+			for (Future<?> f : results) {
+				f.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		// whichever way it ended, the room is in the snapshot once or not at all.
+		selector.remove("Flapping");
+		for (int i = 0; i < 10; i++) {
+			assertEquals("Always", selector.next());
+		}
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void publishedSnapshotsAreImmutable() {
+		Concierge c = new Concierge(new ManualWiringPlacement());
+		Room room = new Room("Starting Room");
+		room.setAttribute("endPoint", "ws://start");
+		c.registerRoom(room, "fish");
+		c.getRoom("Starting Room").getEndpoints().add("ws://elsewhere");
+	}
+
+	private static String roomName(int thread, int index) {
+		return "Room " + thread + "-" + index;
+	}
+}
@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.wasdev.gameon.room.common.Room;
+
+/**
+ * Endpoint checks, against stand-in endpoints listening on localhost.
+ */
+public class TestEndpointProber {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ServerSocket liveRoom;
+	private String liveEndpoint;
+	private String deadEndpoint;
+
+	@Before
+	public void standUpEndpoints() throws IOException {
+		liveRoom = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		liveEndpoint = "ws://127.0.0.1:" + liveRoom.getLocalPort() + "/room";
+
+		// grab a free port, then close it so nothing is listening there.
+		ServerSocket closed = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		deadEndpoint = "ws://127.0.0.1:" + closed.getLocalPort() + "/room";
+		closed.close();
+	}
+
+	@After
+	public void tearDownEndpoints() throws IOException {
+		liveRoom.close();
+	}
+
+	@Test
+	public void tcpProbeSeesWhatIsListening() {
+		EndpointProber.TcpProbe probe = new EndpointProber.TcpProbe(1000);
+		assertTrue(probe.connect(liveEndpoint) >= 0);
+		assertEquals(-1, probe.connect(deadEndpoint));
+		assertEquals(-1, probe.connect("not a url"));
+	}
+
+	@Test
+	public void deadEndpointsAreDemotedThenDropped() throws Exception {
+		Concierge c = new Concierge(new ManualWiringPlacement());
+		EndpointProber prober = new EndpointProber(c.roomDirectory, new EndpointProber.TcpProbe(1000), 2);
+		c.roomDirectory.setRanking(prober.getRanking());
+		try {
+			register(c, "Room", liveEndpoint);
+			register(c, "Room", deadEndpoint);
+			assertEquals("Before checking, the newest endpoint is first", deadEndpoint, c.getRoom("Room").getEndpoints().get(0));
+
+			prober.probeAll();
+			List<String> endpoints = c.getRoom("Room").getEndpoints();
+			assertEquals("The live endpoint should be first", liveEndpoint, endpoints.get(0));
+			assertTrue("A single failure should only demote", endpoints.contains(deadEndpoint));
+
+			for (int i = 1; i < EndpointProber.DROP_AFTER_FAILURES; i++) {
+				prober.probeAll();
+			}
+			assertFalse("Repeated failures should drop the endpoint", c.getRoom("Room").getEndpoints().contains(deadEndpoint));
+		} finally {
+			prober.stop();
+		}
+	}
+
+	@Test
+	public void droppedEndpointsStayDroppedAfterARestart() throws Exception {
+		File dir = folder.newFolder();
+		final Concierge c = new Concierge(new ManualWiringPlacement());
+		c.openJournal(dir);
+		EndpointProber prober = new EndpointProber(c.roomDirectory, new EndpointProber.TcpProbe(1000), 2,
+				new EndpointProber.Removal() {
+					@Override
+					public void remove(String roomId, String endpoint) {
+						c.endpointFailed(roomId, endpoint);
+					}
+				});
+		c.roomDirectory.setRanking(prober.getRanking());
+		try {
+			register(c, "Room", liveEndpoint);
+			register(c, "Room", deadEndpoint);
+			for (int i = 0; i < EndpointProber.DROP_AFTER_FAILURES; i++) {
+				prober.probeAll();
+			}
+			assertFalse(c.getRoom("Room").getEndpoints().contains(deadEndpoint));
+		} finally {
+			prober.stop();
+			c.closeJournal();
+		}
+
+		Concierge restarted = new Concierge(new ManualWiringPlacement());
+		restarted.openJournal(dir);
+		try {
+			assertEquals(1, restarted.getRoom("Room").getEndpoints().size());
+			assertEquals(liveEndpoint, restarted.getRoom("Room").getEndpoints().get(0));
+		} finally {
+			restarted.closeJournal();
+		}
+	}
+
+	@Test
+	public void lastEndpointIsNeverDropped() throws Exception {
+		Concierge c = new Concierge(new ManualWiringPlacement());
+		EndpointProber prober = new EndpointProber(c.roomDirectory, new EndpointProber.TcpProbe(1000), 2);
+		c.roomDirectory.setRanking(prober.getRanking());
+		try {
+			register(c, "Lonely Room", deadEndpoint);
+			for (int i = 0; i < EndpointProber.DROP_AFTER_FAILURES + 1; i++) {
+				prober.probeAll();
+			}
+			assertEquals(deadEndpoint, c.getRoom("Lonely Room").getEndpoints().get(0));
+		} finally {
+			prober.stop();
+		}
+	}
+
+	@Test
+	public void endpointsAreOrderedByLatency() throws Exception {
+		final Map<String, Long> latencies = new HashMap<String, Long>();
+		latencies.put("ws://slow/room", 9000000L);
+		latencies.put("ws://fast/room", 1000000L);
+		latencies.put("ws://middling/room", 4000000L);
+		EndpointProber.Probe fake = new EndpointProber.Probe() {
+			@Override
+			public long connect(String endpoint) {
+				Long latency = latencies.get(endpoint);
+				return latency == null ? -1 : latency;
+			}
+		};
+
+		Concierge c = new Concierge(new ManualWiringPlacement());
+		EndpointProber prober = new EndpointProber(c.roomDirectory, fake, 2);
+		c.roomDirectory.setRanking(prober.getRanking());
+		try {
+			register(c, "Room", "ws://fast/room");
+			register(c, "Room", "ws://gone/room");
+			register(c, "Room", "ws://slow/room");
+			register(c, "Room", "ws://middling/room");
+			prober.probeAll();
+
+			List<String> endpoints = c.getRoom("Room").getEndpoints();
+			assertEquals("ws://fast/room", endpoints.get(0));
+			assertEquals("ws://middling/room", endpoints.get(1));
+			assertEquals("ws://slow/room", endpoints.get(2));
+			assertEquals("ws://gone/room", endpoints.get(3));
+
+			// a newly registered endpoint goes ahead of failing ones, but behind checked ones.
+			register(c, "Room", "ws://new/room");
+			endpoints = c.getRoom("Room").getEndpoints();
+			assertEquals("ws://new/room", endpoints.get(3));
+		} finally {
+			prober.stop();
+		}
+	}
+
+	private static void register(Concierge c, String roomName, String endpoint) {
+		Room room = new Room(roomName);
+		room.setAttribute("endPoint", endpoint);
+		c.registerRoom(room, "fish");
+	}
+}
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+
+/**
+ * Check the reusable verifier against a Mac built from scratch, the way the
+ * auth filter used to do it for every request.
+ */
+public class TestHmacVerifier {
+
+	private final HmacVerifier verifier = new HmacVerifier();
+
+	@Test
+	public void acceptsCorrectSignatures() throws Exception {
+		String query = "id=fish&serviceID=roomRegistration&stamp=1449157155123";
+		assertTrue(verifier.verify("secret", query, reference("secret", query)));
+		assertEquals(reference("secret", query), verifier.sign("secret", query));
+		// and again, now that the thread has a keyed Mac to reuse.
+		assertTrue(verifier.verify("secret", query, reference("secret", query)));
+	}
+
+	@Test
+	public void verifiesThePrefixOfAQueryString() throws Exception {
+		String signed = "id=fish&stamp=1449157155123";
+		String signature = reference("secret", signed);
+		String query = signed + "&apikey=" + signature;
+		assertTrue(verifier.verify("secret", query, signed.length(), signature));
+		assertFalse(verifier.verify("secret", query, signed.length() - 1, signature));
+		// non ASCII messages take the slower path, but only the prefix counts there too.
+		String accented = "id=caf\u00e9&stamp=1";
+		assertTrue(verifier.verify("secret", accented + "&apikey=x", accented.length(), reference("secret", accented)));
+	}
+
+	@Test
+	public void rejectsWrongSignatures() throws Exception {
+		String query = "id=fish&stamp=1449157155123";
+		String good = reference("secret", query);
+		assertFalse(verifier.verify("other secret", query, good));
+		assertFalse(verifier.verify("secret", query + "&extra=1", good));
+		char[] tampered = good.toCharArray();
+		tampered[10] = tampered[10] == 'A' ? 'B' : 'A';
+		assertFalse(verifier.verify("secret", query, new String(tampered)));
+	}
+
+	@Test
+	public void rejectsBadlyEncodedSignatures() throws Exception {
+		String query = "id=fish";
+		String good = reference("secret", query);
+		assertFalse(verifier.verify("secret", query, good.substring(0, 43)));
+		assertFalse(verifier.verify("secret", query, good + "="));
+		// a space is what an unencoded '+' turns into.
+		assertFalse(verifier.verify("secret", query, good.replace(good.charAt(5), ' ')));
+		assertFalse(verifier.verify("secret", query, good.substring(0, 42) + "\u00e9="));
+		assertFalse(verifier.verify("secret", query, null));
+		assertFalse(verifier.verify(null, query, good));
+	}
+
+	@Test
+	public void handlesMessagesThatAreNotAscii() throws Exception {
+		String query = "id=fi\u00dfh&name=caf\u00e9";
+		assertTrue(verifier.verify("s\u00e9cret", query, reference("s\u00e9cret", query)));
+		StringBuilder longQuery = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			longQuery.append("&param").append(i).append('=').append(i);
+		}
+		assertTrue(verifier.verify("secret", longQuery.toString(), reference("secret", longQuery.toString())));
+	}
+
+	@Test
+	public void manyThreadsAndSecrets() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (int t = 0; t < 8; t++) {
+				final int thread = t;
+				results.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						// more secrets than a thread keeps Macs for.
+						for (int i = 0; i < 2000; i++) {
+							String secret = "secret" + ((i * 7 + thread) % 40);
+							String query = "id=player" + i + "&stamp=" + thread;
+							String signature = reference(secret, query);
+							assertTrue(verifier.verify(secret, query, signature));
+							assertFalse(verifier.verify(secret + "x", query, signature));
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> result : results) {
+				result.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private static String reference(String secret, String message) throws Exception {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+		return Base64.getEncoder().encodeToString(mac.doFinal(message.getBytes(StandardCharsets.UTF_8)));
+	}
+}
@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.wasdev.gameon.room.common.DirectoryChange;
+import net.wasdev.gameon.room.common.Room;
+
+/**
+ * Rooms that stop sending heartbeats are dropped, driven by a clock that
+ * only moves when we say so.
+ */
+public class TestLeaseExpiry {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final MutableClock clock = new MutableClock(1000000);
+
+	@Test
+	public void roomsWithoutHeartbeatsExpire() {
+		Concierge c = concierge(new Simple2DPlacement());
+		c.registerRoom(room("Room A", "ws://a", 10), "fish");
+		c.registerRoom(room("Room B", "ws://b", 0), "fish");
+
+		tick(c, 9000);
+		assertNotNull(c.getRoom("Room A"));
+		tick(c, 2000);
+		assertNull("Room A should have expired", c.getRoom("Room A"));
+		assertNull(c.exitRoom("Room B", "West"));
+		for (int i = 0; i < 4; i++) {
+			assertEquals("Room B", c.getStartingRoom().getRoomId());
+		}
+		assertFalse(c.heartbeat("Room A", null));
+		// rooms without a lease are kept for good.
+		tick(c, 100000);
+		assertTrue(c.heartbeat("Room B", null));
+		assertNotNull(c.getRoom("Room B"));
+	}
+
+	@Test
+	public void heartbeatsKeepRoomsAlive() {
+		Concierge c = concierge(new ManualWiringPlacement());
+		c.registerRoom(room("Room A", "ws://a", 10), "fish");
+		for (int i = 0; i < 10; i++) {
+			tick(c, 8000);
+			assertTrue(c.heartbeat("Room A", null));
+		}
+		assertNotNull(c.getRoom("Room A"));
+		tick(c, 11000);
+		assertNull(c.getRoom("Room A"));
+	}
+
+	@Test
+	public void endpointsExpireSeparately() {
+		Concierge c = concierge(new ManualWiringPlacement());
+		c.registerRoom(room("Room A", "ws://a/1", 10), "fish");
+		tick(c, 5000);
+		c.registerRoom(room("Room A", "ws://a/2", 10), "fish");
+		tick(c, 4000);
+		assertTrue(c.heartbeat("Room A", "ws://a/2"));
+		tick(c, 2000);
+		assertEquals(Collections.singletonList("ws://a/2"), c.getRoom("Room A").getEndpoints());
+		assertFalse(c.heartbeat("Room A", "ws://a/1"));
+		tick(c, 10000);
+		assertNull(c.getRoom("Room A"));
+	}
+
+	@Test
+	public void leasesLongerThanTheWheelGoRound() {
+		Concierge c = concierge(new ManualWiringPlacement());
+		c.registerRoom(room("Room A", "ws://a", 200), "fish");
+		for (int i = 0; i < 199; i++) {
+			tick(c, 1000);
+		}
+		assertNotNull(c.getRoom("Room A"));
+		tick(c, 2000);
+		assertNull(c.getRoom("Room A"));
+	}
+
+	@Test
+	public void reRegisteringReplacesTheLease() {
+		Concierge c = concierge(new ManualWiringPlacement());
+		c.registerRoom(room("Room A", "ws://a", 10), "fish");
+		tick(c, 5000);
+		c.registerRoom(room("Room A", "ws://a", 0), "fish");
+		tick(c, 60000);
+		assertNotNull(c.getRoom("Room A"));
+	}
+
+	@Test
+	public void freedCellsAreReused() {
+		Concierge c = concierge(new Simple2DPlacement());
+		c.registerRoom(room("Room A", "ws://a", 0), "fish");
+		c.registerRoom(room("Room B", "ws://b", 10), "fish");
+		c.registerRoom(room("Room C", "ws://c", 0), "fish");
+		tick(c, 11000);
+		assertNull(c.exitRoom("Room A", "East"));
+		c.registerRoom(room("Room D", "ws://d", 0), "fish");
+		assertEquals("Room D", c.exitRoom("Room A", "East").getRoomId());
+		assertEquals("Room C", c.exitRoom("Room D", "East").getRoomId());
+	}
+
+	@Test
+	public void expiryIsStreamedAndJournalled() throws Exception {
+		File dir = folder.newFolder();
+		Concierge c = concierge(new Simple2DPlacement());
+		c.openJournal(dir);
+		c.registerRoom(room("Room A", "ws://a", 0), "fish");
+		c.registerRoom(room("Room B", "ws://b", 10), "fish");
+		final StringBuilder streamed = new StringBuilder();
+		c.getChangeFeed().subscribe(new ChangeFeed.Subscriber() {
+			@Override
+			public void send(String change) {
+				streamed.append(change).append('\n');
+			}
+
+			@Override
+			public boolean catchUp(List<String> changes) {
+				for (String change : changes) {
+					send(change);
+				}
+				return true;
+			}
+		}, c.getChangeFeed().getEpoch(), c.getChangeFeed().getVersion());
+		tick(c, 11000);
+		c.closeJournal();
+
+		assertTrue(streamed.toString(), streamed.toString().contains("\"" + DirectoryChange.ROOM_REMOVED + "\""));
+		assertTrue(streamed.toString(), streamed.toString().contains("\"" + DirectoryChange.EXITS_CHANGED + "\""));
+
+		Concierge restarted = new Concierge(new Simple2DPlacement());
+		restarted.openJournal(dir);
+		assertNull(restarted.getRoom("Room B"));
+		assertEquals(Arrays.asList("ws://a"), restarted.getRoom("Room A").getEndpoints());
+		assertEquals(1, restarted.startingRooms.size());
+		restarted.closeJournal();
+	}
+
+	private Concierge concierge(PlacementStrategy placement) {
+		Concierge c = new Concierge(placement);
+		c.leases = new LeaseWheel(clock, 1000, 64);
+		return c;
+	}
+
+	/**
+	 * Move the clock on, and expire whatever is due.
+	 */
+	private void tick(Concierge c, long millis) {
+		clock.advance(millis);
+		for (String[] expired : c.leases.advance()) {
+			c.leaseExpired(expired[0], expired[1]);
+		}
+	}
+
+	private static Room room(String name, String endpoint, int ttl) {
+		Room room = new Room(name);
+		room.setAttribute("endPoint", endpoint);
+		if (ttl > 0) {
+			room.setAttribute(Concierge.LEASE_TTL, String.valueOf(ttl));
+		}
+		return room;
+	}
+}
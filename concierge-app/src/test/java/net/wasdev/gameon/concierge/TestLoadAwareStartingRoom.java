@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import net.wasdev.gameon.room.common.Room;
+
+/**
+ * Starting rooms picked using the occupancy rooms report about themselves.
+ */
+public class TestLoadAwareStartingRoom {
+
+	private final MutableClock clock = new MutableClock(1000000L);
+
+	@Test
+	public void leastLoadedPicksTheQuietestRoom() {
+		Concierge c = concierge(StartingRoomSelector.Mode.leastLoaded, "Busy", "Quiet", "Medium");
+		c.reportOccupancy("Busy", 20);
+		c.reportOccupancy("Quiet", 1);
+		c.reportOccupancy("Medium", 5);
+
+		assertEquals("Quiet", c.getStartingRoom().getRoomId());
+	}
+
+	@Test
+	public void arrivalsAreSpreadBetweenReports() {
+		Concierge c = concierge(StartingRoomSelector.Mode.leastLoaded, "First", "Second");
+		c.reportOccupancy("First", 3);
+		int toSecond = 0;
+		for (int i = 0; i < 7; i++) {
+			if ("Second".equals(c.getStartingRoom().getRoomId())) {
+				toSecond++;
+			}
+		}
+		// three players catch Second up with First, then they alternate.
+		assertTrue("Second should take the first arrivals, but got " + toSecond, toSecond >= 5);
+	}
+
+	@Test
+	public void staleReportsDecay() {
+		Concierge c = concierge(StartingRoomSelector.Mode.leastLoaded, "Stale", "Fresh");
+		c.reportOccupancy("Stale", 40);
+		c.reportOccupancy("Fresh", 10);
+		assertEquals("Fresh", c.getStartingRoom().getRoomId());
+
+		// Stale stops reporting, Fresh keeps telling us it has 10 players.
+		clock.advance(5 * RoomLoadTracker.DEFAULT_HALF_LIFE_MS);
+		c.reportOccupancy("Fresh", 10);
+		assertEquals("Stale", c.getStartingRoom().getRoomId());
+	}
+
+	@Test
+	public void powerOfTwoNeverPicksTheBusierOfTwo() {
+		Concierge c = concierge(StartingRoomSelector.Mode.powerOfTwo, "Busy", "Quiet");
+		c.reportOccupancy("Busy", 1000);
+		for (int i = 0; i < 100; i++) {
+			assertEquals("Quiet", c.getStartingRoom().getRoomId());
+		}
+	}
+
+	@Test
+	public void occupancyCanBeSentWithRegistration() {
+		Concierge c = concierge(StartingRoomSelector.Mode.leastLoaded, "Other");
+		Room room = new Room("Crowded");
+		room.setAttribute("occupancy", "12");
+		c.registerRoom(room, "fish");
+
+		assertEquals(12, c.roomLoads.getLoad("Crowded"), 0.001);
+		assertEquals("Other", c.getStartingRoom().getRoomId());
+	}
+
+	@Test
+	public void reportsForUnknownRoomsAreRejected() {
+		Concierge c = concierge(StartingRoomSelector.Mode.leastLoaded, "Known");
+		assertFalse(c.reportOccupancy("Unknown", 3));
+		assertTrue(c.reportOccupancy("Known", 3));
+	}
+
+	private Concierge concierge(StartingRoomSelector.Mode mode, String... starters) {
+		Concierge c = new Concierge(new ManualWiringPlacement());
+		c.roomLoads = new RoomLoadTracker(clock);
+		c.startingRoomMode = mode;
+		for (String starter : starters) {
+			c.registerRoom(new Room(starter), "fish");
+		}
+		return c;
+	}
+}
@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import net.wasdev.gameon.concierge.Log.Level;
+
+/**
+ * Check events are formatted as key=value lines, limited per type, and dropped rather than blocking.
+ */
+public class TestLog {
+
+	private final MutableClock clock = new MutableClock(1445000000000L);
+	private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	private final PrintStream out = new PrintStream(bytes);
+
+	private String written() throws UnsupportedEncodingException {
+		out.flush();
+		String s = bytes.toString("UTF-8");
+		bytes.reset();
+		return s;
+	}
+
+	@Test
+	public void formatsFields() throws Exception {
+		Log log = new Log(clock, 16, 10, out);
+		assertTrue(log.log(Level.info, "registration", "owner", "bob", "room", "First Room", "exits", 4, "endPoint", null));
+		assertEquals("", written());
+
+		assertEquals(1, log.drain());
+		assertEquals("2015-10-16T12:53:20Z level=info type=registration owner=bob room=\"First Room\" exits=4 endPoint=null\n", written());
+
+		log.log(Level.warn, "odd", "quote", "say \"hi\"\n", "empty", "", "a=b", "c=d");
+		log.drain();
+		assertEquals("2015-10-16T12:53:20Z level=warn type=odd quote=\"say \\\"hi\\\"\\n\" empty=\"\" a=b=\"c=d\"\n", written());
+	}
+
+	@Test
+	public void limitsEachType() throws Exception {
+		Log log = new Log(clock, 64, 3, out);
+		for (int i = 0; i < 10; i++) {
+			log.log(Level.warn, "noisy", "i", i);
+		}
+		assertTrue(log.log(Level.info, "quiet"));
+		assertEquals(7, log.getSuppressed());
+		assertEquals(4, log.drain());
+		written();
+
+		clock.advance(Log.WINDOW_MS);
+		assertTrue(log.log(Level.warn, "noisy", "i", 10));
+		log.drain();
+		assertEquals("2015-10-16T12:53:21Z level=warn type=noisy i=10 suppressed=7\n", written());
+	}
+
+	@Test
+	public void dropsWhenFull() throws Exception {
+		Log log = new Log(clock, 4, 100, out);
+		for (int i = 0; i < 4; i++) {
+			assertTrue(log.log(Level.info, "event", "i", i));
+		}
+		assertFalse(log.log(Level.info, "event", "i", 4));
+		assertFalse(log.log(Level.info, "event", "i", 5));
+		assertEquals(2, log.getDropped());
+
+		assertEquals(4, log.drain());
+		String lines = written();
+		assertTrue(lines, lines.endsWith("level=warn type=log.dropped count=2\n"));
+
+		// there is room again, and the drops are only reported once.
+		assertTrue(log.log(Level.info, "event", "i", 6));
+		log.drain();
+		assertEquals("2015-10-16T12:53:20Z level=info type=event i=6\n", written());
+	}
+
+	@Test
+	public void writerWaitsForEventsAndStops() throws Exception {
+		Set<Thread> before = writers();
+		Log log = new Log(clock, 16, 10, out).start();
+		Set<Thread> started = writers();
+		started.removeAll(before);
+		assertEquals(1, started.size());
+		Thread writer = started.iterator().next();
+
+		log.log(Level.info, "first");
+		long deadline = System.currentTimeMillis() + 10000;
+		while (bytes.size() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		assertEquals("2015-10-16T12:53:20Z level=info type=first\n", written());
+
+		// with nothing to write it waits for the next event, rather than checking back.
+		while (writer.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		assertEquals(Thread.State.WAITING, writer.getState());
+
+		log.log(Level.info, "second");
+		log.stop();
+		assertFalse(writer.isAlive());
+		assertTrue(written().endsWith("type=second\n"));
+
+		// once stopped events wait to be flushed.
+		log.log(Level.info, "third");
+		Thread.sleep(20);
+		assertEquals("", written());
+		log.flush();
+		assertEquals("2015-10-16T12:53:20Z level=info type=third\n", written());
+	}
+
+	private static Set<Thread> writers() {
+		Set<Thread> writers = new HashSet<Thread>();
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			if ("concierge-log".equals(t.getName())) {
+				writers.add(t);
+			}
+		}
+		return writers;
+	}
+
+	@Test
+	public void keepsEveryEventFromConcurrentCallers() throws Exception {
+		final int threads = 4;
+		final int each = 2000;
+		final Log log = new Log(clock, 16384, Integer.MAX_VALUE, out);
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] callers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int caller = t;
+			callers[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < each; i++) {
+						log.log(Level.info, "event", "id", caller * each + i);
+					}
+				}
+			});
+			callers[t].start();
+		}
+		log.start();
+		start.countDown();
+		for (Thread t : callers) {
+			t.join();
+		}
+		log.stop();
+
+		Set<String> seen = new HashSet<String>();
+		for (String line : written().split("\n")) {
+			seen.add(line.substring(line.indexOf(" id=") + 4));
+		}
+		assertEquals(0, log.getDropped());
+		assertEquals(threads * each, seen.size());
+	}
+}
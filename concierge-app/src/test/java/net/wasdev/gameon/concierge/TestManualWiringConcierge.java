@@ -16,14 +16,19 @@
 package net.wasdev.gameon.concierge;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.junit.Test;
 
 import net.wasdev.gameon.room.common.Exit;
+import net.wasdev.gameon.room.common.Neighbourhood;
 import net.wasdev.gameon.room.common.RegistrationResponse;
 import net.wasdev.gameon.room.common.Room;
 import net.wasdev.gameon.room.common.RoomToEndpoints;
@@ -90,19 +95,148 @@ public class TestManualWiringConcierge {
 		List<Exit> exits = new ArrayList<Exit>();
 		exits.add(new Exit("North", "Second Room", "A door from the starting room to the Second room"));
 		anEasyRoom.setExits(exits);
+		anEasyRoom.setAttribute("endPoint", "ws://firsthost");
 		RegistrationResponse startingRoomUUID = c.registerRoom(anEasyRoom,"fish");
 		
 		Room sameRoomAgain = new Room("Starting Room");
+		sameRoomAgain.setAttribute("endPoint", "ws://secondhost");
      	RegistrationResponse sameRoomAgainUUID = c.registerRoom(sameRoomAgain,"fish");
 
      	RoomToEndpoints startingRoomEndpoints = c.getStartingRoom();
      	assertEquals("The starting room should contain two endpoints", 2, startingRoomEndpoints.getEndpoints().size());
-		
-		
+     	assertEquals("The latest registration should come first", "ws://secondhost", startingRoomEndpoints.getEndpoints().get(0));
+	}
+	
+	@Test
+	public void reregisterSameEndpoint() {
+		Concierge c = new Concierge(new ManualWiringPlacement());
+		for (int i = 0; i < 5; i++) {
+			Room restarted = new Room("Starting Room");
+			restarted.setAttribute("endPoint", "ws://samehost");
+			c.registerRoom(restarted,"fish");
+		}
+
+		RoomToEndpoints startingRoomEndpoints = c.getStartingRoom();
+		assertEquals("Re-registering an endpoint should not duplicate it", 1, startingRoomEndpoints.getEndpoints().size());
+		assertEquals("ws://samehost", startingRoomEndpoints.getEndpoints().get(0));
+	}
+	
+	@Test
+	public void staleEndpointsAreReplaced() {
+		Concierge c = new Concierge(new ManualWiringPlacement());
+		int registrations = EndpointSet.DEFAULT_CAPACITY * 3;
+		for (int i = 0; i < registrations; i++) {
+			Room restarted = new Room("Starting Room");
+			restarted.setAttribute("endPoint", "ws://host" + i);
+			c.registerRoom(restarted,"fish");
+		}
+		Room refreshed = new Room("Starting Room");
+		refreshed.setAttribute("endPoint", "ws://host" + (registrations - EndpointSet.DEFAULT_CAPACITY));
+		c.registerRoom(refreshed,"fish");
+		Room newest = new Room("Starting Room");
+		newest.setAttribute("endPoint", "ws://newest");
+		c.registerRoom(newest,"fish");
+
+		List<String> endpoints = c.getStartingRoom().getEndpoints();
+		assertEquals("The endpoint list should never grow past its capacity", EndpointSet.DEFAULT_CAPACITY, endpoints.size());
+		assertEquals("ws://newest", endpoints.get(0));
+		assertTrue("A refreshed endpoint should survive", endpoints.contains("ws://host" + (registrations - EndpointSet.DEFAULT_CAPACITY)));
+		assertFalse("The stalest endpoint should be dropped", endpoints.contains("ws://host" + (registrations - EndpointSet.DEFAULT_CAPACITY + 1)));
 	}
 	
 	
 	
+	@Test
+	public void exitNamesAreMatchedInAnySpelling() {
+		Concierge c = new Concierge(new ManualWiringPlacement());
+		Room anEasyRoom = new Room("Starting Room");
+		anEasyRoom.addExit(new Exit("north", "Second Room", "A door to the north"));
+		anEasyRoom.addExit(new Exit("Trapdoor", "Cellar", "A door in the floor"));
+		c.registerRoom(anEasyRoom,"fish");
+		c.registerRoom(new Room("Second Room"),"fish");
+		c.registerRoom(new Room("Cellar"),"fish");
+
+		for (String spelling : new String[] { "N", "n", "North", "north", "NORTH" }) {
+			assertEquals("'" + spelling + "' should lead north", "Second Room", c.exitRoom("Starting Room", spelling).getRoomId());
+		}
+		assertEquals("Cellar", c.exitRoom("Starting Room", "trapdoor").getRoomId());
+		assertNull(c.exitRoom("Starting Room", "South"));
+	}
+
+	@Test
+	public void laterChangesToTheRoomAreIgnored() {
+		Concierge c = new Concierge(new ManualWiringPlacement());
+		Room anEasyRoom = new Room("Starting Room");
+		Exit north = new Exit("North", "Second Room", "A door to the north");
+		anEasyRoom.addExit(north);
+		c.registerRoom(anEasyRoom,"fish");
+		c.registerRoom(new Room("Second Room"),"fish");
+
+		north.setRoom("Somewhere Else");
+		anEasyRoom.addExit(new Exit("South", "Second Room", "Another door"));
+
+		assertEquals("Second Room", c.exitRoom("Starting Room", "North").getRoomId());
+		assertNull(c.exitRoom("Starting Room", "South"));
+	}
+
+	@Test
+	public void resolveTheWholeNeighbourhood() {
+		Concierge c = new Concierge(new ManualWiringPlacement());
+		Room start = new Room("Starting Room");
+		start.addExit(new Exit("North", "Second Room", "A door to the north"));
+		start.addExit(new Exit("East", "Unbuilt Room", "A door to nowhere yet"));
+		c.registerRoom(start,"fish");
+		Room second = new Room("Second Room");
+		second.setAttribute("endPoint", "ws://second");
+		second.addExit(new Exit("North", "Third Room", "Further north"));
+		c.registerRoom(second,"fish");
+		Room third = new Room("Third Room");
+		third.setAttribute("endPoint", "ws://third");
+		c.registerRoom(third,"fish");
+
+		Neighbourhood near = c.getNeighbourhood("Starting Room", 1);
+		assertEquals("Starting Room", near.getRel().getRoomId());
+		assertEquals("Only registered rooms should be included", 1, near.getExits().size());
+		assertEquals("ws://second", near.getExits().get("North").getRel().getEndpoints().get(0));
+		assertTrue(near.getExits().get("North").getExits().isEmpty());
+
+		Neighbourhood far = c.getNeighbourhood("Starting Room", 2);
+		assertEquals("ws://third", far.getExits().get("North").getExits().get("North").getRel().getEndpoints().get(0));
+
+		assertNull(c.getNeighbourhood("Nowhere", 1));
+	}
+
+	@Test
+	public void registerABatchOfRooms() {
+		Concierge c = new Concierge(new ManualWiringPlacement());
+		Room start = new Room("Starting Room");
+		start.addExit(new Exit("North", "Second Room", "A door to the north"));
+		Room second = new Room("Second Room");
+		second.setAttribute("endPoint", "ws://second");
+		second.setAttribute("startLocation", "false");
+		second.addExit(new Exit("South", "Starting Room", "A door to the south"));
+		Room nameless = new Room();
+
+		List<RegistrationResponse> responses = c.registerRooms(Arrays.asList(start, nameless, second), "fish");
+		assertEquals(3, responses.size());
+		assertEquals("OK", responses.get(0).getResponse());
+		assertEquals(Concierge.REJECTED_NO_NAME, responses.get(1).getResponse());
+		assertEquals("OK", responses.get(2).getResponse());
+
+		assertEquals("Second Room", c.exitRoom("Starting Room", "North").getRoomId());
+		assertEquals("Starting Room", c.exitRoom("Second Room", "South").getRoomId());
+		assertEquals("Starting Room", c.getStartingRoom().getRoomId());
+		assertEquals("Starting Room", c.getStartingRoom().getRoomId());
+	}
+
+	@Test
+	public void rejectARoomWithoutAName() {
+		Concierge c = new Concierge(new ManualWiringPlacement());
+		assertEquals(Concierge.REJECTED_NO_NAME, c.registerRoom(new Room(), "fish").getResponse());
+		assertEquals(Concierge.REJECTED_NO_NAME, c.registerRoom(null, "fish").getResponse());
+		assertNull(c.getStartingRoom());
+	}
+
 	private Concierge addEasyStartingRoom() {
 		Concierge c = new Concierge();
 		Room anEasyRoom = new Room("Starting Room");
@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.Test;
+
+import net.wasdev.gameon.concierge.Metrics.Counter;
+import net.wasdev.gameon.concierge.Metrics.Histogram;
+
+/**
+ * Check what is recorded is written out in the Prometheus text format, and that nothing is lost to concurrent recording.
+ */
+public class TestMetrics {
+
+	private final Metrics metrics = new Metrics();
+
+	private String written() {
+		StringBuilder out = new StringBuilder();
+		metrics.writeTo(out);
+		return out.toString();
+	}
+
+	@Test
+	public void writesCountersAndSamples() {
+		Counter denied = metrics.counter("denied_total", "Requests denied", "stage", "checkReplay");
+		denied.increment();
+		denied.increment();
+		final LongAdder hits = new LongAdder();
+		hits.add(5);
+		metrics.counter("lookups_total", "Lookups", Metrics.sampleOf(hits), "result", "hit");
+		metrics.gauge("rooms", "Rooms", new Metrics.Sample() {
+			@Override
+			public double get() {
+				return 2.5;
+			}
+		});
+
+		assertEquals("# HELP denied_total Requests denied\n"
+				+ "# TYPE denied_total counter\n"
+				+ "denied_total{stage=\"checkReplay\"} 2\n"
+				+ "# HELP lookups_total Lookups\n"
+				+ "# TYPE lookups_total counter\n"
+				+ "lookups_total{result=\"hit\"} 5\n"
+				+ "# HELP rooms Rooms\n"
+				+ "# TYPE rooms gauge\n"
+				+ "rooms 2.5\n", written());
+
+		// the same name and labels are the same counter.
+		metrics.counter("denied_total", "Requests denied", "stage", "checkReplay").increment();
+		assertTrue(written().contains("denied_total{stage=\"checkReplay\"} 3\n"));
+	}
+
+	@Test
+	public void writesCumulativeBuckets() {
+		Histogram h = metrics.histogram("request_seconds", "Requests", "operation", "getRoom");
+		h.record(TimeUnit.MICROSECONDS.toNanos(50));
+		h.record(TimeUnit.MICROSECONDS.toNanos(100));
+		h.record(TimeUnit.MILLISECONDS.toNanos(3));
+		h.record(TimeUnit.SECONDS.toNanos(20));
+
+		String out = written();
+		assertTrue(out, out.contains("# TYPE request_seconds histogram\n"));
+		assertTrue(out, out.contains("request_seconds_bucket{operation=\"getRoom\",le=\"0.0001\"} 2\n"));
+		assertTrue(out, out.contains("request_seconds_bucket{operation=\"getRoom\",le=\"0.0025\"} 2\n"));
+		assertTrue(out, out.contains("request_seconds_bucket{operation=\"getRoom\",le=\"0.005\"} 3\n"));
+		assertTrue(out, out.contains("request_seconds_bucket{operation=\"getRoom\",le=\"10\"} 3\n"));
+		assertTrue(out, out.contains("request_seconds_bucket{operation=\"getRoom\",le=\"+Inf\"} 4\n"));
+		assertTrue(out, out.contains("request_seconds_sum{operation=\"getRoom\"} 20.00315\n"));
+		assertTrue(out, out.contains("request_seconds_count{operation=\"getRoom\"} 4\n"));
+	}
+
+	@Test
+	public void escapesLabelValues() {
+		metrics.counter("odd_total", "Odd labels", "name", "say \"hi\"\\\n").increment();
+		assertTrue(written().contains("odd_total{name=\"say \\\"hi\\\"\\\\\\n\"} 1\n"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesANameWithTwoTypes() {
+		metrics.counter("rooms", "Rooms");
+		metrics.histogram("rooms", "Rooms");
+	}
+
+	@Test
+	public void reportsBreakers() {
+		MutableClock clock = new MutableClock(1000000);
+		CircuitBreaker breaker = new CircuitBreaker("player service", clock, 10, 50, 2000, 10000);
+		breaker.registerMetrics(metrics);
+		for (int i = 0; i < CircuitBreaker.MIN_CALLS; i++) {
+			breaker.tryAcquire();
+			breaker.failed();
+		}
+		breaker.tryAcquire();
+
+		String out = written();
+		assertTrue(out, out.contains("concierge_breaker_state{breaker=\"player service\"} 1\n"));
+		assertTrue(out, out.contains("concierge_breaker_opened_total{breaker=\"player service\"} 1\n"));
+		assertTrue(out, out.contains("concierge_breaker_rejected_total{breaker=\"player service\"} 1\n"));
+	}
+
+	@Test
+	public void keepsEveryRecordingFromConcurrentCallers() throws Exception {
+		final int threads = 4;
+		final int each = 50000;
+		final Histogram h = metrics.histogram("request_seconds", "Requests");
+		final Counter c = metrics.counter("requests_total", "Requests");
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] callers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			callers[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < each; i++) {
+						h.record(i);
+						c.increment();
+					}
+				}
+			});
+			callers[t].start();
+		}
+		start.countDown();
+		for (Thread t : callers) {
+			t.join();
+		}
+		assertEquals(threads * each, h.getCount());
+		assertEquals(threads * each, c.get());
+	}
+}
@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.client.HttpResponseException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jwts;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Check lookups against a stub player service, that they reuse connections, and reuse JWTs.
+ */
+public class TestPlayerClient {
+
+	static {
+		// otherwise the stub's small responses wait on delayed acks, once connections are reused.
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	private HttpServer server;
+	private final AtomicInteger requests = new AtomicInteger();
+	private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+	private PlayerClient client;
+	private final MutableClock clock = new MutableClock(System.currentTimeMillis());
+	private static KeyPair keys;
+
+	private static synchronized KeyPair keys() throws GeneralSecurityException {
+		if (keys == null) {
+			KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+			generator.initialize(2048);
+			keys = generator.generateKeyPair();
+		}
+		return keys;
+	}
+
+	@Before
+	public void startStub() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/players", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				requests.incrementAndGet();
+				clientPorts.add(exchange.getRemoteAddress().getPort());
+				String id = exchange.getRequestURI().getPath().substring("/players/".length());
+				int status = id.startsWith("unknown") ? 404 : id.startsWith("broken") ? 500 : 200;
+				byte[] body = status == 200
+						? (id.startsWith("big") ? bigDocument(id) : "{\"id\":\"" + id + "\",\"apiKey\":\"key-" + id + "\"}")
+								.getBytes(StandardCharsets.UTF_8)
+						: "no such player".getBytes(StandardCharsets.UTF_8);
+				exchange.sendResponseHeaders(status, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			}
+		});
+		server.start();
+
+		client = new PlayerClient();
+		client.playerLocation = "http://127.0.0.1:" + server.getAddress().getPort() + "/players";
+		client.initClient();
+		client.clock = clock;
+	}
+
+	@After
+	public void stopStub() {
+		client.closeClient();
+		server.stop(0);
+	}
+
+	@Test
+	public void apiKeyIsReadFromTheResponse() throws IOException {
+		assertEquals("key-alice", client.getApiKey("alice", "jwt"));
+	}
+
+	@Test
+	public void asyncLookupsAnswerOnTheirOwnThreads() throws Exception {
+		client.signingKey = keys().getPrivate();
+		CompletableFuture<String> key = client.getApiKeyAsync("carol");
+		assertEquals("key-carol", key.get(10, TimeUnit.SECONDS));
+
+		CompletableFuture<String> unknown = client.getApiKeyAsync("unknown-dave");
+		try {
+			unknown.get(10, TimeUnit.SECONDS);
+			fail("no such player");
+		} catch (ExecutionException e) {
+			assertEquals(404, ((HttpResponseException) e.getCause()).getStatusCode());
+		}
+	}
+
+	@Test
+	public void failingLookupsOpenTheCircuit() throws Exception {
+		client.signingKey = keys().getPrivate();
+		for (int i = 0; i < CircuitBreaker.MIN_CALLS; i++) {
+			try {
+				client.getApiKeyAsync("broken" + i).get(10, TimeUnit.SECONDS);
+				fail("the player service failed");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof PlayerClient.UnavailableException);
+			}
+		}
+		assertEquals(CircuitBreaker.State.open, client.getCircuitBreaker().getState());
+		int asked = requests.get();
+
+		CompletableFuture<String> refused = client.getApiKeyAsync("carol");
+		assertTrue("refused without asking", refused.isCompletedExceptionally());
+		assertEquals(1, client.getCircuitBreaker().getRejected());
+		assertEquals(asked, requests.get());
+		assertEquals(0, client.getInFlightLookups());
+	}
+
+	@Test
+	public void apiKeyIsFoundInLargeDocuments() throws IOException {
+		for (int i = 0; i < 5; i++) {
+			assertEquals("key-big" + i, client.getApiKey("big" + i, "jwt"));
+		}
+		assertEquals("the unread part of each document was discarded", 1, clientPorts.size());
+	}
+
+	@Test
+	public void onlyTheTopLevelApiKeyIsRead() throws IOException {
+		assertEquals("top", readApiKey("{\"profile\":{\"apiKey\":\"nested\",\"tags\":[{\"apiKey\":1}]},\"apiKey\":\"top\"}"));
+		assertNull(readApiKey("{\"id\":\"x\",\"profile\":{\"apiKey\":\"nested\"}}"));
+		assertNull(readApiKey("{\"apiKey\":null}"));
+		// we stop reading once we have it.
+		assertEquals("early", readApiKey("{\"apiKey\":\"early\",\"rest\":[1,2,"));
+		try {
+			readApiKey("[\"apiKey\"]");
+			fail("not a player document");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private static String readApiKey(String document) throws IOException {
+		return PlayerClient.readApiKey(new ByteArrayInputStream(document.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/** a player document with plenty before its apiKey */
+	private static String bigDocument(String id) {
+		StringBuilder document = new StringBuilder("{\"id\":\"" + id + "\",\"history\":[");
+		for (int i = 0; i < 2000; i++) {
+			document.append(i == 0 ? "" : ",").append("{\"room\":\"room").append(i).append("\",\"apiKey\":\"not-this\"}");
+		}
+		document.append("],\"apiKey\":\"key-").append(id).append("\",\"inventory\":[");
+		for (int i = 0; i < 2000; i++) {
+			document.append(i == 0 ? "" : ",").append("\"item").append(i).append('"');
+		}
+		return document.append("]}").toString();
+	}
+
+	@Test
+	public void connectionsAreKeptAlive() throws IOException {
+		for (int i = 0; i < 20; i++) {
+			assertEquals("key-p" + i, client.getApiKey("p" + i, "jwt"));
+		}
+		assertEquals("one connection served every request", 1, clientPorts.size());
+		assertEquals(0, client.getPoolStats().getLeased());
+		assertEquals(1, client.getPoolStats().getAvailable());
+	}
+
+	@Test
+	public void errorsReleaseTheirConnection() throws IOException {
+		for (int i = 0; i < PlayerClient.MAX_CONNECTIONS + 5; i++) {
+			try {
+				client.getApiKey("unknown" + i, "jwt");
+				fail("no such player");
+			} catch (HttpResponseException e) {
+				assertEquals(404, e.getStatusCode());
+			}
+		}
+		assertEquals(0, client.getPoolStats().getLeased());
+		assertTrue(client.getPoolStats().getAvailable() <= 1);
+		assertEquals("key-bob", client.getApiKey("bob", "jwt"));
+	}
+
+	@Test
+	public void jwtsAreReusedUntilNearlyExpired() throws Exception {
+		client.signingKey = keys().getPrivate();
+		String jwt = client.getClientJwtForId("alice");
+		assertSame(jwt, client.getClientJwtForId("alice"));
+		assertNotEquals(jwt, client.getClientJwtForId("bob"));
+
+		Claims claims = Jwts.parser().setSigningKey(keys().getPublic()).parseClaimsJws(jwt).getBody();
+		assertEquals("alice", claims.getSubject());
+		assertEquals("client", claims.getAudience());
+
+		clock.advance(PlayerClient.JWT_VALIDITY_MS - PlayerClient.JWT_RENEW_MS - 1);
+		assertSame(jwt, client.getClientJwtForId("alice"));
+		clock.advance(1);
+		assertNotEquals(jwt, client.getClientJwtForId("alice"));
+	}
+}
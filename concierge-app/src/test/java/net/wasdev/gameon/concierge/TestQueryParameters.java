@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Check parameters are found where the servlet API would find them.
+ */
+public class TestQueryParameters {
+
+	private enum Names {
+		id,
+		stamp,
+		apikey
+	}
+
+	private static QueryParameters<Names> parse(String query) {
+		return new QueryParameters<Names>(query, Names.values());
+	}
+
+	@Test
+	public void findsTheParametersAsked() {
+		QueryParameters<Names> params = parse("id=fish&other=1&stamp=1449157155123&apikey=abc");
+		assertEquals("fish", params.get(Names.id));
+		assertEquals(1449157155123L, params.getLong(Names.stamp));
+		assertEquals("abc", params.get(Names.apikey));
+		assertEquals("id=fish&other=1&stamp=1449157155123&".length(), params.lastIndexOf(Names.apikey));
+	}
+
+	@Test
+	public void missingAndEmptyParameters() {
+		QueryParameters<Names> params = parse("ids=1&id=&stamp&xapikey=2");
+		assertTrue(params.has(Names.id));
+		assertEquals("", params.get(Names.id));
+		assertFalse("a name without a value isn't a parameter", params.has(Names.stamp));
+		assertEquals(-1, params.getLong(Names.stamp));
+		assertFalse(params.has(Names.apikey));
+		assertEquals(-1, params.lastIndexOf(Names.apikey));
+		assertNull(params.get(Names.apikey));
+
+		assertFalse(parse(null).has(Names.id));
+		assertFalse(parse("").has(Names.id));
+	}
+
+	@Test
+	public void firstValueWinsButLastAppearanceIsNoted() {
+		QueryParameters<Names> params = parse("apikey=one&id=x&apikey=two");
+		assertEquals("one", params.get(Names.apikey));
+		assertEquals("apikey=one&id=x&".length(), params.lastIndexOf(Names.apikey));
+	}
+
+	@Test
+	public void valuesAreDecoded() {
+		QueryParameters<Names> params = parse("id=a%20b+c&apikey=ab%2Bc%2F%3D&stamp=12a");
+		assertEquals("a b c", params.get(Names.id));
+		assertEquals("ab+c/=", params.get(Names.apikey));
+		assertEquals("not a number", -1, params.getLong(Names.stamp));
+		assertNull("badly encoded", parse("id=%zz").get(Names.id));
+	}
+}
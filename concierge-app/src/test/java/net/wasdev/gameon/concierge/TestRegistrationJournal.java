@@ -0,0 +1,278 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import net.wasdev.gameon.room.common.Exit;
+import net.wasdev.gameon.room.common.Room;
+import net.wasdev.gameon.room.common.RoomToEndpoints;
+
+/**
+ * Restart a concierge from its registration journal, including after the
+ * journal was left damaged by a crash.
+ */
+public class TestRegistrationJournal {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void restartRecoversRegistrations() throws Exception {
+		File dir = folder.newFolder();
+		Concierge c = new Concierge(new ManualWiringPlacement());
+		c.openJournal(dir);
+		c.registerRoom(room("Starting Room", "ws://start/1", "North", "Cellar"), "fish");
+		c.registerRoom(room("Starting Room", "ws://start/2", "North", "Cellar"), "fish");
+		Room cellar = room("Cellar", "ws://cellar", "South", "Starting Room");
+		cellar.setAttribute("startLocation", "false");
+		c.registerRoom(cellar, "fish");
+		c.closeJournal();
+
+		Concierge restarted = new Concierge(new ManualWiringPlacement());
+		assertEquals(3, restarted.openJournal(dir));
+		assertEquals(Arrays.asList("ws://start/2", "ws://start/1"), restarted.getRoom("Starting Room").getEndpoints());
+		assertEquals("Cellar", restarted.exitRoom("Starting Room", "North").getRoomId());
+		assertEquals("Starting Room", restarted.exitRoom("Cellar", "South").getRoomId());
+		assertEquals(1, restarted.startingRooms.size());
+		assertEquals("Starting Room", restarted.getStartingRoom().getRoomId());
+		restarted.closeJournal();
+	}
+
+	@Test
+	public void truncatedTailIsIgnored() throws Exception {
+		File dir = folder.newFolder();
+		Concierge c = new Concierge(new Simple2DPlacement());
+		c.openJournal(dir);
+		for (int i = 0; i < 3; i++) {
+			c.registerRoom(room("Room " + i, "ws://room/" + i, null, null), "fish");
+		}
+		c.closeJournal();
+
+		// cut the last record short, as if we went down halfway through writing it.
+		File log = onlyLog(dir);
+		long end = endOfRecords(log);
+		try (RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+			raf.setLength(end - 5);
+		}
+
+		Concierge restarted = new Concierge(new Simple2DPlacement());
+		assertEquals(2, restarted.openJournal(dir));
+		assertNotNull(restarted.getRoom("Room 1"));
+		assertNull(restarted.getRoom("Room 2"));
+
+		// what was left of the damaged record must not get in the way of new ones.
+		restarted.registerRoom(room("Room 3", "ws://room/3", null, null), "fish");
+		restarted.closeJournal();
+		Concierge again = new Concierge(new Simple2DPlacement());
+		assertEquals(3, again.openJournal(dir));
+		assertNotNull(again.getRoom("Room 3"));
+		assertEquals("Room 3", again.exitRoom("Room 1", "East").getRoomId());
+		again.closeJournal();
+	}
+
+	@Test
+	public void corruptTailIsIgnored() throws Exception {
+		File dir = folder.newFolder();
+		Concierge c = new Concierge(new Simple2DPlacement());
+		c.openJournal(dir);
+		for (int i = 0; i < 3; i++) {
+			c.registerRoom(room("Room " + i, "ws://room/" + i, null, null), "fish");
+		}
+		c.closeJournal();
+
+		File log = onlyLog(dir);
+		long end = endOfRecords(log);
+		try (RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+			raf.seek(end - 3);
+			int b = raf.read();
+			raf.seek(end - 3);
+			raf.write(b ^ 0xff);
+		}
+
+		Concierge restarted = new Concierge(new Simple2DPlacement());
+		assertEquals(2, restarted.openJournal(dir));
+		assertNull(restarted.getRoom("Room 2"));
+		restarted.closeJournal();
+	}
+
+	@Test
+	public void compactionKeepsTheLatestOfEachRoom() throws Exception {
+		File dir = folder.newFolder();
+		Concierge c = new Concierge(new ManualWiringPlacement());
+		c.openJournal(dir, 10);
+		for (int i = 0; i < 25; i++) {
+			String target = i < 20 ? "Nowhere" : "Cellar";
+			c.registerRoom(room("Starting Room", "ws://start/" + (i % 3), "North", target), "fish");
+		}
+		c.registerRoom(room("Cellar", "ws://cellar", "South", "Starting Room"), "fish");
+		c.closeJournal();
+
+		File[] snapshots = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File d, String name) {
+				return name.startsWith("snapshot-");
+			}
+		});
+		assertEquals(1, snapshots.length);
+
+		Concierge restarted = new Concierge(new ManualWiringPlacement());
+		assertTrue("Compaction should have dropped most of the registrations", restarted.openJournal(dir) < 10);
+		RoomToEndpoints start = restarted.getRoom("Starting Room");
+		assertEquals(Arrays.asList("ws://start/0", "ws://start/2", "ws://start/1"), start.getEndpoints());
+		assertEquals("Cellar", restarted.exitRoom("Starting Room", "North").getRoomId());
+		assertEquals("Starting Room", restarted.exitRoom("Cellar", "South").getRoomId());
+		restarted.closeJournal();
+	}
+
+	@Test
+	public void recoversManyRoomsQuickly() throws Exception {
+		File dir = folder.newFolder();
+		int rooms = 100000;
+		RegistrationJournal journal = new RegistrationJournal(dir);
+		journal.open(new RegistrationJournal.Replay() {
+			@Override
+			public void replay(RegistrationJournal.Record record) {
+			}
+		});
+		for (int i = 0; i < rooms; i++) {
+			journal.append(room("Room " + i, "ws://room/" + i, "North", "Room " + (i + 1)), "fish");
+		}
+		journal.close();
+
+		Concierge c = new Concierge(new ManualWiringPlacement());
+		long start = System.nanoTime();
+		assertEquals(rooms, c.openJournal(dir));
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		c.closeJournal();
+		assertEquals(rooms, c.roomDirectory.size());
+		assertEquals("Room 500", c.exitRoom("Room 499", "North").getRoomId());
+		// generous, so a slow build machine doesn't fail it.
+		// this was about 1.2s on a single CPU build machine, most of it garbage
+		// collection and the JIT warming up, so anything much slower is a regression.
+		assertTrue("Recovery took " + elapsed + "ms", elapsed < 3000);
+	}
+
+	@Test
+	public void recordsSurviveEncoding() throws Exception {
+		Room room = room("Caf\u00e9", "ws://cafe", "North", "Street");
+		room.addExit(new Exit("Up", "Attic", null));
+		room.setAttribute("note", null);
+		RegistrationJournal.Record decoded = RegistrationJournal.decode(
+				RegistrationJournal.encode(new RegistrationJournal.Record(RegistrationJournal.Record.REGISTER, null, room)));
+
+		assertEquals(RegistrationJournal.Record.REGISTER, decoded.type);
+		assertNull(decoded.owner);
+		assertEquals("Caf\u00e9", decoded.room.getRoomName());
+		assertEquals(room.getAssignedID(), decoded.room.getAssignedID());
+		assertEquals(room.getAttributes(), decoded.room.getAttributes());
+		assertEquals(2, decoded.room.getExits().size());
+		assertEquals("Street", decoded.room.getExits().get(0).getRoom());
+		assertEquals("A door", decoded.room.getExits().get(0).getDescription());
+		assertEquals("Up", decoded.room.getExits().get(1).getName());
+		assertNull(decoded.room.getExits().get(1).getDescription());
+	}
+
+	@Test
+	public void journalsWrittenAsJsonAreReplayed() throws Exception {
+		File dir = folder.newFolder();
+		ObjectMapper mapper = new ObjectMapper();
+		ByteBuffer records = ByteBuffer.allocate(4096);
+		for (RegistrationJournal.Record record : Arrays.asList(
+				new RegistrationJournal.Record(RegistrationJournal.Record.REGISTER, "fish",
+						room("Starting Room", "ws://start", "North", "Cellar")),
+				new RegistrationJournal.Record(RegistrationJournal.Record.REGISTER, "fish",
+						room("Cellar", "ws://cellar", "South", "Starting Room")))) {
+			byte[] content = mapper.writeValueAsBytes(record);
+			CRC32 crc = new CRC32();
+			crc.update(content, 0, content.length);
+			records.putInt(content.length);
+			records.putInt((int) crc.getValue());
+			records.put(content);
+		}
+		Files.write(new File(dir, "log-0000000000000000.dat").toPath(),
+				Arrays.copyOf(records.array(), records.position()));
+
+		Concierge c = new Concierge(new ManualWiringPlacement());
+		assertEquals(2, c.openJournal(dir));
+		assertEquals("Cellar", c.exitRoom("Starting Room", "North").getRoomId());
+		c.registerRoom(room("Attic", "ws://attic", null, null), "fish");
+		c.closeJournal();
+
+		// binary records carry on after the JSON ones.
+		Concierge restarted = new Concierge(new ManualWiringPlacement());
+		assertEquals(3, restarted.openJournal(dir));
+		assertNotNull(restarted.getRoom("Attic"));
+		restarted.closeJournal();
+	}
+
+	private static Room room(String name, String endpoint, String exit, String target) {
+		Room room = new Room(name);
+		room.setAttribute("endPoint", endpoint);
+		if (exit != null) {
+			room.addExit(new Exit(exit, target, "A door"));
+		}
+		return room;
+	}
+
+	private static File onlyLog(File dir) {
+		File[] logs = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File d, String name) {
+				return name.startsWith("log-");
+			}
+		});
+		assertEquals(1, logs.length);
+		return logs[0];
+	}
+
+	/**
+	 * Logs are preallocated, find where the records actually stop.
+	 */
+	private static long endOfRecords(File log) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(log, "r")) {
+			long end = 0;
+			while (end + 8 <= raf.length()) {
+				raf.seek(end);
+				int length = raf.readInt();
+				if (length <= 0) {
+					break;
+				}
+				end += 8 + length;
+			}
+			return end;
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Check replays are caught, from one thread and many, without remembering keys for ever.
+ */
+public class TestReplayDetector {
+
+	private static final long WINDOW = 5000;
+
+	private final MutableClock clock = new MutableClock(1000000);
+	private final ReplayDetector detector = new ReplayDetector(clock, WINDOW);
+
+	@Test
+	public void keysCanOnlyBeUsedOnce() {
+		long now = clock.millis();
+		assertTrue(detector.firstUse("key", now));
+		assertFalse(detector.firstUse("key", now));
+		// the same signature with a different stamp in the same bucket is still a replay.
+		assertFalse(detector.firstUse("key", now + 1));
+		assertTrue(detector.firstUse("other", now));
+		clock.advance(WINDOW - 1);
+		assertFalse(detector.firstUse("key", now));
+	}
+
+	@Test
+	public void stampsOutsideTheWindowAreRefused() {
+		long now = clock.millis();
+		assertFalse(detector.firstUse("old", now - WINDOW - 1));
+		assertFalse(detector.firstUse("future", now + WINDOW + 1));
+		assertTrue(detector.firstUse("edge", now - WINDOW));
+		assertTrue(detector.firstUse("ahead", now + WINDOW));
+	}
+
+	@Test
+	public void expiredKeysAreForgotten() {
+		for (int second = 0; second < 60; second++) {
+			for (int i = 0; i < 100; i++) {
+				assertTrue(detector.firstUse("key " + second + "-" + i, clock.millis()));
+			}
+			clock.advance(1000);
+		}
+		// whatever has expired is dropped as the ring comes round, the rest
+		// is only what arrived in the last window or so.
+		assertTrue("Remembering " + detector.size(), detector.size() <= 100 * (2 * WINDOW / 1000 + 2));
+	}
+
+	@Test
+	public void eachKeyIsAcceptedOnceAcrossThreads() throws Exception {
+		final int threads = 8;
+		final int keys = 20000;
+		final long stamp = clock.millis();
+		final CountDownLatch go = new CountDownLatch(1);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for (int t = 0; t < threads; t++) {
+				results.add(pool.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						go.await();
+						int accepted = 0;
+						for (int i = 0; i < keys; i++) {
+							// spread over a few buckets, so they get replaced as we go.
+							if (detector.firstUse("key " + i, stamp - (i % 5) * 1000)) {
+								accepted++;
+							}
+						}
+						return accepted;
+					}
+				}));
+			}
+			go.countDown();
+			int accepted = 0;
+			for (Future<Integer> result : results) {
+				accepted += result.get(60, TimeUnit.SECONDS);
+			}
+			assertEquals("Every key should be accepted exactly once", keys, accepted);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+}
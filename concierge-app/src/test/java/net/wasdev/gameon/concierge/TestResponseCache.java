@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.concierge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import net.wasdev.gameon.concierge.ResponseCache.CachedResponse;
+import net.wasdev.gameon.room.common.Exit;
+import net.wasdev.gameon.room.common.Room;
+
+public class TestResponseCache {
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	@Test
+	public void roomBodiesAreEncodedOnce() throws Exception {
+		Concierge c = new Concierge(new ManualWiringPlacement());
+		register(c, "Starting Room", "ws://start", new Exit("North", "Second Room", "door"));
+		ResponseCache cache = new ResponseCache(c);
+
+		CachedResponse first = cache.getRoom("Starting Room");
+		assertSame("An unchanged room should reuse the encoded body", first, cache.getRoom("Starting Room"));
+
+		JsonNode json = mapper.readTree(first.getBody());
+		assertEquals("Starting Room", json.get("rel").get("roomId").textValue());
+		assertEquals("ws://start", json.get("rel").get("endpoints").get(0).textValue());
+	}
+
+	@Test
+	public void registrationInvalidatesBodies() throws Exception {
+		Concierge c = new Concierge(new ManualWiringPlacement());
+		register(c, "Starting Room", "ws://start", new Exit("North", "Second Room", "door"));
+		ResponseCache cache = new ResponseCache(c);
+
+		assertNull("The exit leads nowhere yet", cache.exitRoom("Starting Room", "North"));
+		CachedResponse before = cache.getRoom("Starting Room");
+
+		register(c, "Second Room", "ws://second");
+		CachedResponse exit = cache.exitRoom("Starting Room", "North");
+		assertNotNull("The exit should lead to the new room", exit);
+		assertEquals("Second Room", mapper.readTree(exit.getBody()).get("rel").get("roomId").textValue());
+		assertSame(exit, cache.exitRoom("Starting Room", "North"));
+
+		assertSame("Another room registering should leave this one alone", before, cache.getRoom("Starting Room"));
+
+		register(c, "Starting Room", "ws://restarted");
+		CachedResponse restarted = cache.getRoom("Starting Room");
+		assertNotEquals("A changed body should get a new ETag", before.getEtag(), restarted.getEtag());
+	}
+
+	@Test
+	public void registeringAnotherRoomKeepsBodies() throws Exception {
+		Concierge c = new Concierge(new ManualWiringPlacement());
+		register(c, "Room A", "ws://a");
+		ResponseCache cache = new ResponseCache(c);
+
+		CachedResponse room = cache.getRoom("Room A");
+		CachedResponse neighbourhood = cache.getNeighbourhood("Room A", 1);
+		register(c, "Room B", "ws://b");
+
+		CachedResponse after = cache.getRoom("Room A");
+		assertSame(room, after);
+		assertEquals(room.getEtag(), after.getEtag());
+		assertSame("Room B isn't next to room A", neighbourhood, cache.getNeighbourhood("Room A", 1));
+	}
+
+	@Test
+	public void neighbourhoodsFollowTheRoomsInThem() throws Exception {
+		Concierge c = new Concierge(new ManualWiringPlacement());
+		register(c, "Room A", "ws://a", new Exit("North", "Room B", "door"));
+		ResponseCache cache = new ResponseCache(c);
+
+		CachedResponse alone = cache.getNeighbourhood("Room A", 1);
+		register(c, "Room B", "ws://b");
+		CachedResponse joined = cache.getNeighbourhood("Room A", 1);
+		assertNotEquals(alone.getEtag(), joined.getEtag());
+		assertEquals("Room B", mapper.readTree(joined.getBody()).get("exits").get("North").get("rel").get("roomId").textValue());
+
+		register(c, "Room B", "ws://b2");
+		assertNotEquals("A change to a room behind an exit should rebuild the neighbourhood",
+				joined.getEtag(), cache.getNeighbourhood("Room A", 1).getEtag());
+	}
+
+	@Test
+	public void removedRoomsAreEvicted() throws Exception {
+		Concierge c = new Concierge(new ManualWiringPlacement());
+		register(c, "Room A", "ws://a", new Exit("North", "Room B", "door"));
+		register(c, "Room B", "ws://b");
+		ResponseCache cache = new ResponseCache(c);
+
+		cache.getRoom("Room A");
+		cache.exitRoom("Room A", "North");
+		cache.getNeighbourhood("Room A", 2);
+		c.leaseExpired("Room A", "ws://a");
+
+		assertNull(cache.rooms.get("Room A"));
+		assertNull(cache.exits.get("Room A"));
+		assertNull(cache.neighbourhoods.get("Room A"));
+	}
+
+	@Test
+	public void unknownRoomsAreNotCached() throws Exception {
+		Concierge c = new Concierge(new ManualWiringPlacement());
+		ResponseCache cache = new ResponseCache(c);
+
+		CachedResponse unknown = cache.getRoom("Nowhere");
+		assertEquals("null", mapper.readTree(unknown.getBody()).get("rel").toString());
+		assertNull(cache.getStartingRoom());
+	}
+
+	private static void register(Concierge c, String roomName, String endpoint, Exit... exits) {
+		Room room = new Room(roomName);
+		room.setAttribute("endPoint", endpoint);
+		for (Exit exit : exits) {
+			room.addExit(exit);
+		}
+		c.registerRoom(room, "fish");
+	}
+}
@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.common;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One change to the room directory, as streamed to subscribers of the
+ * concierge change feed.
+ * <p>
+ * Changes carry the complete new value of whatever changed (all of a room's
+ * endpoints, all of its exits), so applying the same change twice is harmless.
+ * Versions only mean something within one {@code epoch}, a concierge that has
+ * restarted starts a new epoch.
+ * </p>
+ */
+public class DirectoryChange {
+
+	/** A room registered for the first time: endpoints and exits are both set */
+	public static final String ROOM_REGISTERED = "roomRegistered";
+	/** The endpoints of a room, or the order we prefer them in, changed */
+	public static final String ENDPOINTS_CHANGED = "endpointsChanged";
+	/** Where the exits of a room lead changed */
+	public static final String EXITS_CHANGED = "exitsChanged";
+	/** A room's lease expired, and it is gone */
+	public static final String ROOM_REMOVED = "roomRemoved";
+	/**
+	 * Forget everything: a {@link #ROOM_REGISTERED} for every room follows,
+	 * all at this version, then changes carry on from there.
+	 */
+	public static final String RESET = "reset";
+
+	private String epoch;
+	private long version;
+	private String type;
+	private String roomId;
+	private List<String> endpoints;
+	private Map<String, String> exits;
+
+	public DirectoryChange() {
+		//no-args constructor to allow JSON serialisation
+	}
+
+	public DirectoryChange(String type, String roomId) {
+		this.type = type;
+		this.roomId = roomId;
+	}
+
+	public String getEpoch() {
+		return epoch;
+	}
+
+	public void setEpoch(String epoch) {
+		this.epoch = epoch;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public void setType(String type) {
+		this.type = type;
+	}
+
+	public String getRoomId() {
+		return roomId;
+	}
+
+	public void setRoomId(String roomId) {
+		this.roomId = roomId;
+	}
+
+	public List<String> getEndpoints() {
+		return endpoints;
+	}
+
+	public void setEndpoints(List<String> endpoints) {
+		this.endpoints = endpoints;
+	}
+
+	/**
+	 * exit name -> the room it leads to.
+	 */
+	public Map<String, String> getExits() {
+		return exits;
+	}
+
+	public void setExits(Map<String, String> exits) {
+		this.exits = exits;
+	}
+
+}
@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.common;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A room, and the rooms its exits lead to, resolved in one go.
+ */
+public class Neighbourhood {
+
+	private RoomToEndpoints rel;
+	private Map<String, Neighbourhood> exits = new LinkedHashMap<String, Neighbourhood>();
+
+	public RoomToEndpoints getRel() {
+		return rel;
+	}
+
+	public void setRel(RoomToEndpoints rel) {
+		this.rel = rel;
+	}
+
+	/**
+	 * exit name -> the room behind it, and (if requested) its own exits.
+	 */
+	public Map<String, Neighbourhood> getExits() {
+		return exits;
+	}
+
+	public void setExits(Map<String, Neighbourhood> exits) {
+		this.exits = exits;
+	}
+
+}
@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * Copyright (c) 2015 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.common;
+
+/**
+ * Sent by a room to tell the concierge how busy it currently is.
+ */
+public class OccupancyReport {
+
+	private int occupancy;
+
+	public OccupancyReport() {
+		//no-args constructor to allow JSON serialisation
+	}
+
+	public OccupancyReport(int occupancy) {
+		this.occupancy = occupancy;
+	}
+
+	public int getOccupancy() {
+		return occupancy;
+	}
+
+	public void setOccupancy(int occupancy) {
+		this.occupancy = occupancy;
+	}
+
+}
@@ -24,7 +24,8 @@ import java.util.UUID;
 
 public class Room {
 
-	private UUID assignedID = UUID.randomUUID();		//default to a random UUID
+	private UUID assignedID;		//default to a random UUID, made when first asked for (replayed rooms always set one)
+	private boolean assigned;
 	private String roomName;
 	private final List<Exit> exits = new ArrayList<Exit>();
 	private final Map<String, String> attribs = new HashMap<String, String>();	
@@ -60,11 +61,15 @@ public class Room {
 		return exits;
 	}
 	public UUID getAssignedID() {
+		if (!assigned) {
+			setAssignedID(UUID.randomUUID());
+		}
 		return assignedID;
 	}
 	
 	public void setAssignedID(UUID assignedID) {
 		this.assignedID = assignedID;
+		this.assigned = true;
 	}
 	
 	/*